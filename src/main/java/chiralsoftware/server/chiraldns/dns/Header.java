@@ -187,6 +187,27 @@ public final class Header {
 	ARCOUNT = newARCount;
     }
 
+    /** Given an existing Header, create a new Header which is the same except for the TC bit.
+     * This is used when a response doesn't fit and has to be sent truncated. */
+    public Header(Header h, boolean truncated) {
+	if(h == null) throw new NullPointerException("Can't create a new header from a null header.");
+	this.ID = h.ID;
+	this.QR = h.QR;
+	this.OPCODE = h.OPCODE;
+	this.AA = h.AA;
+	this.TC = truncated;
+	this.RD = h.RD;
+	this.RA = h.RA;
+	this.RCODE = h.RCODE;
+	QDCOUNT = h.QDCOUNT;
+	ANCOUNT = h.ANCOUNT;
+	NSCOUNT = h.NSCOUNT;
+	ARCOUNT = h.ARCOUNT;
+    }
+
+    /** Returns true if the message was truncated. */
+    public boolean isTruncated() { return TC; }
+
     /** Send this header off to the ByteBuffer in the correct wire format.  Normally
      * this is called by the Message object. */
     public void send(ByteBuffer bb) {
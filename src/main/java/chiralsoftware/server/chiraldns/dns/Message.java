@@ -1,7 +1,11 @@
 package chiralsoftware.server.chiraldns.dns;
 
+import chiralsoftware.server.chiraldns.dns.rdata.OPTRdata;
+import chiralsoftware.server.chiraldns.dns.rdata.SOARdata;
 import java.util.Set;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
 /** This class implements a DNS message.  A message contains up to five segments:
@@ -20,17 +24,54 @@ public final class Message {
 	return result;
     }
 
-    /** Load in a message from an InputStream. */
+    /** Load in a message from an InputStream.  The answer, authority and additional records
+     * are not loaded, because they aren't needed to resolve a query, except for the OPT record,
+     * which is kept if the additional section has one. */
     public Message(ByteBuffer bb) throws ProtocolException {
 	header = new Header(bb);
 	// there is always a question section
 	questionSection = new QuestionSection(bb);
-	// XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
-	// this is a bug but for now we will not load the three other sets of RRs
-	// even if they are present.  we don't need them to resolve things...
 	answer = null;
 	authority = null;
-	additional = null;	
+	additional = null;
+	if(header.getARCOUNT() == 0) return;
+	try {
+	    int i;
+	    for(i = header.getANCOUNT() + header.getNSCOUNT(); i > 0; i--) {
+		skipName(bb);
+		bb.position(bb.position() + 8); // type, class and ttl
+		bb.position(bb.position() + (bb.getShort() & 0xffff));
+	    }
+	    int type, dnsClass, ttl, rdLength;
+	    boolean root;
+	    for(i = header.getARCOUNT(); i > 0; i--) {
+		root = skipName(bb);
+		type = bb.getShort() & 0xffff;
+		dnsClass = bb.getShort() & 0xffff;
+		ttl = bb.getInt();
+		rdLength = bb.getShort() & 0xffff;
+		// the options of an OPT record are skipped along with the data of any other record
+		bb.position(bb.position() + rdLength);
+		if(type != Type.OPT) continue;
+		if(! root) throw new ProtocolException("OPT record doesn't belong to the root.");
+		if(opt != null) throw new ProtocolException("More than one OPT record.");
+		opt = new OPTRdata(dnsClass, ttl);
+	    }
+	}
+	catch(BufferUnderflowException bue) { throw new ProtocolException("Message ends too soon."); }
+    }
+
+    /** Skip over a name, which might be compressed.  Returns true if it was the root. */
+    private static boolean skipName(ByteBuffer bb) throws ProtocolException {
+	int b;
+	boolean root = true;
+	while((b = bb.get() & 0xff) != 0) {
+	    root = false;
+	    if((b & 0xc0) == 0xc0) { bb.get(); break; } // a pointer ends the name
+	    if(b > 63) throw new ProtocolException("Bad label length: " + b);
+	    bb.position(bb.position() + b);
+	}
+	return root;
     }
 
     /** This constructs a nes message to send as a response. */
@@ -104,6 +145,8 @@ public final class Message {
 
     private Header header;
     private QuestionSection questionSection;
+    /** The OPT record of a message which was read in, or null if it didn't have one. */
+    private OPTRdata opt = null;
     /** Answer, Authority, and Additional are all of the same format: Sets of Resource Records. */
     private ResourceRecord[] answer;
     private ResourceRecord[] authority;
@@ -118,6 +161,38 @@ public final class Message {
     public Header getHeader() { return header; }
 
     public QuestionSection getQuestion() { return questionSection; }
+
+    /** Return the OPT record of a message which was read in, or null if it didn't have one. */
+    public OPTRdata getOPT() { return opt; }
+
+    /** Return how many seconds this response can be cached: the least ttl of the records in the
+     * answer and authority sections.  In a negative response, which has no answers, the ttl of
+     * the SOA record is limited by its minimum field, as RFC 2308 says.  Returns 0 if there
+     * are no records to go by. */
+    public int getMinimumTtl() {
+	int result = Integer.MAX_VALUE;
+	int ttl;
+	for(int i = 0; i < answer.length; i++) if(answer[i].getTtl() < result) result = answer[i].getTtl();
+	for(int i = 0; i < authority.length; i++) {
+	    ttl = authority[i].getTtl();
+	    if((answer.length == 0) && (authority[i].getType() == Type.SOA) &&
+	       (((SOARdata) authority[i].getRdata()).getMinimum() < ttl))
+		ttl = ((SOARdata) authority[i].getRdata()).getMinimum();
+	    if(ttl < result) result = ttl;
+	}
+	if(result == Integer.MAX_VALUE) return 0;
+	return (result < 0) ? 0 : result;
+    }
+
+    /** Return a copy of this response with the TC bit set and no records, except for an
+     * OPT record if it has one.  This is what is sent when a response doesn't fit; the client
+     * can ask again over TCP. */
+    public Message getTruncated() throws ProtocolException {
+	Set additionalSet = new HashSet(1);
+	for(int i = 0; i < additional.length; i++)
+	    if(additional[i].getType() == Type.OPT) additionalSet.add(additional[i]);
+	return new Message(new Header(header, true), questionSection, new HashSet(), new HashSet(), additionalSet);
+    }
     
     private String listResourceRecords(ResourceRecord[] rr) {
 	if(rr == null) return null;
@@ -0,0 +1,83 @@
+package chiralsoftware.server.chiraldns.dns.rdata;
+
+import chiralsoftware.server.chiraldns.dns.Compressor;
+import chiralsoftware.server.chiraldns.dns.Type;
+import java.util.Set;
+import java.util.Collections;
+import java.nio.ByteBuffer;
+
+/** OPT is the EDNS0 pseudo-record, which goes in the additional section.  It isn't
+ * really data about a name; its owner is always the root, and it reuses the fields of a resource
+ * record: the class holds the largest UDP payload the sender can take, and the ttl holds
+ * the upper eight bits of an extended RCODE, the EDNS version and the flags, of which only DO
+ * (DNSSEC OK) is defined.  Options in a query are skipped, and this server doesn't send any.<p>
+ * This class is immutable and thread-safe.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander
+ * @see <a href="http://www.faqs.org/rfcs/rfc6891.html">RFC 6891</a> */
+public final class OPTRdata extends Rdata {
+
+    /** The extended RCODE for an EDNS version this server doesn't support. */
+    public static final int BADVERS = 16;
+
+    /** The DO flag, in the low 16 bits of the ttl. */
+    private static final int DO_FLAG = 0x8000;
+
+    private final int payloadSize;
+
+    /** Construct an OPT record from the class and ttl fields read off the wire. */
+    public OPTRdata(int dnsClass, int ttl) {
+	super(ttl);
+	payloadSize = dnsClass & 0xffff;
+    }
+
+    /** Construct an OPT record to send.
+     * @param extendedRcode the whole 12 bit RCODE; only its upper eight bits go in this record,
+     * and the lower four go in the header */
+    public OPTRdata(int payloadSize, int extendedRcode, int version, boolean dnssecOk) {
+	super(((extendedRcode >> 4) << 24) | ((version & 0xff) << 16) | (dnssecOk ? DO_FLAG : 0));
+	if((payloadSize < 0) || (payloadSize > 0xffff))
+	    throw new IllegalArgumentException("Payload size: " + payloadSize + " is out of range.");
+	if((extendedRcode < 0) || (extendedRcode > 0xfff))
+	    throw new IllegalArgumentException("Extended rcode: " + extendedRcode + " is out of range.");
+	this.payloadSize = payloadSize;
+    }
+
+    /** Return the largest UDP payload the sender can take. */
+    public int getPayloadSize() { return payloadSize; }
+
+    /** Return the EDNS version. */
+    public int getVersion() { return (ttl >> 16) & 0xff; }
+
+    /** Return the upper eight bits of the extended RCODE, shifted into place. */
+    public int getExtendedRcode() { return ((ttl >> 24) & 0xff) << 4; }
+
+    public boolean isDnssecOk() { return (ttl & DO_FLAG) != 0; }
+
+    /** The class field of an OPT record holds the payload size. */
+    public int getDNSClass() { return payloadSize; }
+
+    public int getType() { return Type.OPT; }
+
+    /** There are no options, so the data is empty. */
+    public int length() { return 0; }
+
+    public void send(ByteBuffer bb) { }
+
+    public int compress(Compressor compressor, int offset) { return offset; }
+
+    /** OPT records don't contain any names. */
+    public Set getNames() { return Collections.EMPTY_SET; }
+
+    public boolean equals(Object o) {
+	if(!(o instanceof OPTRdata)) return false;
+	return (payloadSize == ((OPTRdata) o).payloadSize) && (ttl == ((OPTRdata) o).ttl);
+    }
+
+    public int hashCode() { return ttl * 17 + payloadSize; }
+
+    public String toString() {
+	return "OPT RRDATA: payload size: " + payloadSize + "; version: " + getVersion() +
+	    "; extended rcode: " + getExtendedRcode() + "; DO: " + isDnssecOk();
+    }
+}
@@ -116,6 +116,32 @@ public final class NameFactory {
 	return new DbName(sa, za, length, newStars);
     }
 
+    /** Create a new DbName for a node whose parent is a fully-resolved DbName, by adding one label
+     * and its zone number below the parent's labels, so that a name can be built from its parent
+     * without looking the parent up again. */
+    public static DbName getChildDbName(DbName parent, String label, int zoneNumber, boolean star) {
+	if(parent == null) throw new NullPointerException("No parent specified.");
+	if(! parent.isFullyResolved()) throw new IllegalArgumentException("Parent: " + parent + " is not fully resolved.");
+	if(! checkLabel(label)) throw new IllegalArgumentException("Label: " + label + " was not valid.");
+	if(zoneNumber <= 0) throw new IllegalArgumentException("Zone number: " + zoneNumber + " is out of range.");
+	int count = parent.count();
+	if(count >= Name.MAX_LABELS) throw new IllegalArgumentException("Too many labels.");
+	int length = parent.length() + label.length() + 1;
+	if(length > Name.MAX_NAME_LENGTH) throw new IllegalArgumentException("Name exceeded maximum length.");
+	String[] labels = new String[count + 1];
+	int[] zoneNumbers = new int[count + 1];
+	boolean[] stars = new boolean[count + 1];
+	for(int i = 0; i < count; i++) {
+	    labels[i] = parent.labels[i];
+	    zoneNumbers[i] = parent.getZoneNumber(i);
+	    stars[i] = parent.isStar(i);
+	}
+	labels[count] = label;
+	zoneNumbers[count] = zoneNumber;
+	stars[count] = star;
+	return new DbName(labels, zoneNumbers, length, stars);
+    }
+
     /** Given an existing name, create a new DbName by adding on an array of ints.
      * This works very efficiently (no copies) if the Name argument is a SimpleName object.
      * It also works very efficiently for creating a new DbName from an existing one with a new
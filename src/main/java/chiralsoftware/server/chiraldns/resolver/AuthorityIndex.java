@@ -0,0 +1,143 @@
+package chiralsoftware.server.chiraldns.resolver;
+
+import chiralsoftware.server.chiraldns.dns.Type;
+import chiralsoftware.server.chiraldns.dns.rdata.Rdata;
+import chiralsoftware.server.chiraldns.name.DbName;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** An AuthorityIndex remembers, for each node, the nearest node at or above it which has an SOA record,
+ * which is the apex of its zone, and the nearest which has NS records, which is its zone cut, along with
+ * those records.  Resolver.getAuthority() and isAuthoritative() used to find them by asking the store for
+ * the SOA and then the NS records of every node from the name up toward the root; with the index they
+ * are one lookup.<p>
+ * An entry is made the first time a node is asked about, from the entry of its parent and the records of
+ * the node itself, so the nodes of a zone share the walk up to its apex.  Adding SOA or NS records can
+ * change the entries of a node and all the nodes below it, so the index is cleared when that happens, and
+ * whenever the zone data changes in another process.  It is also cleared when it is full.<p>
+ * This class is thread-safe.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+public final class AuthorityIndex {
+
+    private final int maxEntries;
+
+    /** The entries, by node number as an Integer; the root is 0. */
+    private final Map entries = new ConcurrentHashMap();
+
+    /** Goes up every time the index is cleared, so that an entry which was made while the zone data
+     * changed isn't put in the index. */
+    private volatile int generation = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** @param maxEntries how many nodes there can be entries for before the index is cleared */
+    public AuthorityIndex(int maxEntries) {
+	if(maxEntries < 1) throw new IllegalArgumentException("Max entries: " + maxEntries + " is out of range.");
+	this.maxEntries = maxEntries;
+    }
+
+    /** Return the entry for the deepest node of a name, which is looked up in the store if it isn't indexed.
+     * Only the nodes of the name are used, so it doesn't have to be fully resolved. */
+    public Entry get(DbName name, ZoneStore store) throws SQLException {
+	if(name == null) throw new NullPointerException("Can't index a null name.");
+	if(store == null) throw new NullPointerException("Can't index without a store.");
+	int depth = name.getZoneNumberCount();
+	Entry result = (Entry) entries.get(Integer.valueOf(name.getNumber()));
+	if(result != null) { hits.incrementAndGet(); return result; }
+	misses.incrementAndGet();
+	int generation = this.generation;
+	// find the deepest ancestor which is indexed, then make the entries below it
+	int known = depth - 1;
+	Entry parent = null;
+	while(known >= 0) {
+	    parent = (Entry) entries.get(Integer.valueOf((known == 0) ? 0 : name.getZoneNumber(known - 1)));
+	    if(parent != null) break;
+	    known--;
+	}
+	if(parent == null) {
+	    parent = makeEntry(null, 0, 0, store);
+	    put(0, parent, generation);
+	    known = 0;
+	}
+	result = parent;
+	for(int i = known + 1; i <= depth; i++) {
+	    result = makeEntry(result, i, name.getZoneNumber(i - 1), store);
+	    put(name.getZoneNumber(i - 1), result, generation);
+	}
+	return result;
+    }
+
+    /** Make the entry for a node at a depth, from the entry of its parent, or null for the root. */
+    private static Entry makeEntry(Entry parent, int depth, int number, ZoneStore store) throws SQLException {
+	Set soa = store.getRdata(number, Type.SOA, Resolver.MAX_RECORDS);
+	Set ns = store.getRdata(number, Type.NS, Resolver.MAX_RECORDS);
+	if(parent == null) return new Entry(soa.isEmpty() ? -1 : depth, soa, ns.isEmpty() ? -1 : depth, ns);
+	return new Entry(soa.isEmpty() ? parent.soaDepth : depth, soa.isEmpty() ? parent.soa : soa,
+			 ns.isEmpty() ? parent.nsDepth : depth, ns.isEmpty() ? parent.ns : ns);
+    }
+
+    private synchronized void put(int number, Entry entry, int generation) {
+	if(generation != this.generation) return;
+	if(entries.size() >= maxEntries) {
+	    this.generation++;
+	    entries.clear();
+	}
+	entries.put(Integer.valueOf(number), entry);
+    }
+
+    /** Forget every entry, because SOA or NS records may have been added. */
+    public synchronized void clear() {
+	generation++;
+	entries.clear();
+    }
+
+    public long getHits() { return hits.get(); }
+
+    public long getMisses() { return misses.get(); }
+
+    public String toString() {
+	return "Authority index: " + entries.size() + " nodes; hits: " + hits.get() + "; misses: " + misses.get();
+    }
+
+    /** The apex and the cut of a node.  A depth is how many labels the node's name has, so the root is 0,
+     * or -1 if there is no such node. */
+    public static final class Entry {
+
+	/** The depth of the nearest node at or above this one with an SOA record, or -1. */
+	public final int soaDepth;
+
+	/** The depth of the nearest node at or above this one with NS records, or -1. */
+	public final int nsDepth;
+
+	/** The records at soaDepth and nsDepth, which are never changed or handed out. */
+	private final Set soa;
+	private final Set ns;
+
+	private Entry(int soaDepth, Set soa, int nsDepth, Set ns) {
+	    this.soaDepth = soaDepth;
+	    this.soa = soa;
+	    this.nsDepth = nsDepth;
+	    this.ns = ns;
+	}
+
+	/** Return a copy of the SOA records at soaDepth, which the caller can use in a response, or an empty set. */
+	public Set getSoa() { return copy(soa); }
+
+	/** Return a copy of the NS records at nsDepth, which the caller can use in a response, or an empty set. */
+	public Set getNs() { return copy(ns); }
+
+	private static Set copy(Set rdataSet) {
+	    Set result = new HashSet(rdataSet.size());
+	    Iterator it = rdataSet.iterator();
+	    while(it.hasNext()) result.add(MemoryZoneStore.copy((Rdata) it.next()));
+	    return result;
+	}
+    }
+}
@@ -0,0 +1,131 @@
+package chiralsoftware.server.chiraldns.resolver;
+
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+import java.sql.SQLException;
+
+/** A bounded pool of database connections, each wrapped in a Database, which keeps the prepared
+ * statements for its own connection.  A thread takes a Database, uses it, and gives it back; if there
+ * are no idle ones and the pool is not full, a new connection is opened, and otherwise the thread waits.<p>
+ * A connection which has been idle for longer than the validation interval is checked before it is
+ * handed out, and replaced if it no longer works, so that a database which restarted while the
+ * server was quiet costs no failed queries.  A Database whose connection failed while it was in use is
+ * discarded, and a new connection is opened in its place when it is next needed.<p>
+ * This class is thread-safe.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+public final class ConnectionPool {
+
+    private static final Logger LOG = Logger.getLogger(ConnectionPool.class.getName());
+
+    /** How many seconds to wait for a connection to answer when it is validated. */
+    static final int VALIDATE_TIMEOUT = 2;
+
+    private final Properties resolverProperties;
+    private final NodeCache nodeCache;
+    private final NameCache nameCache;
+    private final boolean singleQueries;
+
+    /** The idle connections, as Idle entries, most recently given back last. */
+    private final Queue idle = new ConcurrentLinkedQueue();
+
+    /** There is one permit for every connection which could be opened. */
+    private final Semaphore permits;
+
+    private final int size;
+
+    /** How long, in nanoseconds, a connection can be idle before it is validated. */
+    private final long validateAfter;
+
+    private volatile boolean released = false;
+
+    /** Create a new pool which will open up to size connections with the given resolver properties.
+     * No connections are opened until they are needed, but the driver is loaded now, so that a
+     * missing driver is found when the server starts.
+     * @param nodeCache the cache of nodes the Databases share, or null
+     * @param nameCache the cache of names of nodes the Databases share, or null
+     * @param validateAfter how many seconds a connection can be idle before it is validated, or 0 to
+     * validate it every time */
+    public ConnectionPool(Properties resolverProperties, NodeCache nodeCache, NameCache nameCache, int size,
+			  int validateAfter) throws ClassNotFoundException {
+	if(resolverProperties == null) throw new NullPointerException("Can't create a pool without resolver properties.");
+	if(size < 1) throw new IllegalArgumentException("Pool size: " + size + " is out of range.");
+	if(validateAfter < 0) throw new IllegalArgumentException("Validate after: " + validateAfter + " is out of range.");
+	Class.forName(resolverProperties.getProperty("driverClass"));
+	this.resolverProperties = resolverProperties;
+	this.nodeCache = nodeCache;
+	this.nameCache = nameCache;
+	singleQueries = Database.isSingleQueries(resolverProperties);
+	this.size = size;
+	this.validateAfter = validateAfter * 1000000000L;
+	permits = new Semaphore(size, true);
+    }
+
+    /** Return the maximum number of connections in this pool. */
+    public int getSize() { return size; }
+
+    /** Take a Database from the pool, waiting until one is available, and opening a new connection if
+     * there is no idle one which works.  It must be given back with give(), or with discard() if its
+     * connection has failed. */
+    public Database take() throws SQLException, InterruptedException {
+	if(released) throw new IllegalStateException("This pool has been released.");
+	permits.acquire();
+	Idle entry;
+	while((entry = (Idle) idle.poll()) != null) {
+	    if((System.nanoTime() - entry.since < validateAfter) || entry.database.isValid(VALIDATE_TIMEOUT))
+		return entry.database;
+	    LOG.info("An idle database connection stopped working; opening a new one.");
+	    entry.database.release();
+	}
+	try { return new Database(Database.connect(resolverProperties), nodeCache, nameCache, singleQueries); }
+	catch(ClassNotFoundException cnfe) {
+	    permits.release();
+	    throw new SQLException("Couldn't load the database driver: " + cnfe.getMessage());
+	}
+	catch(SQLException sqe) { permits.release(); throw sqe; }
+	catch(RuntimeException re) { permits.release(); throw re; }
+    }
+
+    /** Give a Database back to the pool so another thread can use it. */
+    public void give(Database database) {
+	if(database == null) throw new NullPointerException("Can't give back a null database.");
+	if(released) database.release();
+	else idle.offer(new Idle(database, System.nanoTime()));
+	permits.release();
+    }
+
+    /** Give back a Database whose connection has failed.  A new connection will be opened to replace
+     * it when needed. */
+    public void discard(Database database) {
+	if(database == null) throw new NullPointerException("Can't discard a null database.");
+	LOG.fine("Discarding a database connection.");
+	database.release();
+	permits.release();
+    }
+
+    /** Close all the idle connections.  Connections which are in use are closed when they are given back. */
+    public void release() {
+	released = true;
+	Idle entry;
+	while((entry = (Idle) idle.poll()) != null) entry.database.release();
+    }
+
+    public String toString() {
+	return "Connection pool: " + size + " connections; " + idle.size() + " idle; " +
+	    permits.availablePermits() + " available";
+    }
+
+    /** A Database which is waiting in the pool, and since when, from System.nanoTime(). */
+    private static final class Idle {
+	final Database database;
+	final long since;
+
+	Idle(Database database, long since) {
+	    this.database = database;
+	    this.since = since;
+	}
+    }
+}
@@ -14,11 +14,14 @@ import chiralsoftware.server.chiraldns.name.NameFactory;
 import java.util.Date;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Collections;
+import java.util.Properties;
 import java.util.logging.Logger;
 import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.ResultSet;
 import java.sql.PreparedStatement;
@@ -26,27 +29,79 @@ import java.sql.Statement;
 
 /** This class implements the database connection for the dns server.<p>
  * This class is not thread-safe.  It has private members which are PreparedStatements
- * which cannot be used by more than one thread at a time.<p>
+ * which cannot be used by more than one thread at a time.  A PooledDatabase shares several
+ * Databases between threads.<p>
+ * As a ZoneStore, it asks the database for every lookup, except for the nodes of names, which can
+ * be remembered in a NodeCache shared with other Databases, and the names of nodes, which can be
+ * remembered in a NameCache.<p>
+ * A name is looked up either one label at a time, which works with any database, or, if the Database
+ * is created with singleQueries, with one statement for all the labels which aren't in the NodeCache,
+ * and one recursive statement for all the ancestors of a node, so that a name which isn't cached costs
+ * one round trip however many labels it has.  Those statements need a database which has
+ * WITH RECURSIVE, which PostgreSQL has.<p>
  * Copyright 2001-2017, Eric Hollander.  All rights reserved.
  * @author Eric Hollander */
-public final class Database {
+public final class Database implements ZoneStore {
 
     private static final Logger LOG = Logger.getLogger(Database.class.getName());
 
     private final Connection db;
 
+    /** The tables which addZone(), createNode() and addRdata() add rows to, and the column of each
+     * which holds the node the row belongs to.  A new node belongs to itself. */
+    private static final String[] CHANGE_TABLES =
+	{ "zone", "arecord", "nsrecord", "cnamerecord", "mxrecord", "soarecord", "txtrecord" };
+    private static final String[] CHANGE_COLUMNS =
+	{ "number", "zone", "zone", "zone", "zone", "zone", "zone" };
+
+    /** Remembers the nodes getDbName() finds, or null if they aren't remembered. */
+    private final NodeCache nodeCache;
+
+    /** Remembers the names findDbName() builds, or null if they aren't remembered. */
+    private final NameCache nameCache;
+
     private final PreparedStatement findNextNodePreparedStatement;
     private final PreparedStatement findDbNamePreparedStatement;
+    private final PreparedStatement isStarZonePreparedStatement;
+
+    /** If this is true, names and ancestors are looked up with one statement each. */
+    private final boolean singleQueries;
+
+    /** The statements which find the nodes of several labels at once, by how many labels, or null
+     * until they are first used. */
+    private final PreparedStatement[] findPathPreparedStatements = new PreparedStatement[Name.MAX_LABELS + 1];
+
+    /** The statement which finds a node and all its ancestors, or null if singleQueries is false. */
+    private final PreparedStatement findAncestorsPreparedStatement;
     private final Map getResultSetStatements;
 
     /** Create a new Database given a connection. */
-    public Database(Connection db) throws SQLException {
+    public Database(Connection db) throws SQLException { this(db, null, null, false); }
+
+    /** Create a new Database given a connection, which remembers the nodes it finds in a cache,
+     * and the names of nodes in another, or doesn't if either cache is null.  If singleQueries is
+     * true, it looks up the labels of a name, and the ancestors of a node, with one statement each. */
+    public Database(Connection db, NodeCache nodeCache, NameCache nameCache, boolean singleQueries) throws SQLException {
 	if(db == null) throw new NullPointerException("Can't create a new database with a null link.");
 	this.db = db;
+	this.nodeCache = nodeCache;
+	this.nameCache = nameCache;
+	this.singleQueries = singleQueries;
 	String qstring = "SELECT number, star FROM zone WHERE name = ? AND previous = ?";
 	findNextNodePreparedStatement = db.prepareStatement(qstring);
 	qstring = "SELECT name, previous, star FROM zone WHERE number = ?";
 	findDbNamePreparedStatement = db.prepareStatement(qstring);
+	qstring = "SELECT star FROM zone WHERE number = ?";
+	isStarZonePreparedStatement = db.prepareStatement(qstring);
+	if(singleQueries) {
+	    // the chain stops at the root, or after one node more than a name can have, so a loop can't run away
+	    qstring = "WITH RECURSIVE chain (number, name, previous, star, depth) AS (" +
+		"SELECT number, name, previous, star, 0 FROM zone WHERE number = ? " +
+		"UNION ALL SELECT z.number, z.name, z.previous, z.star, c.depth + 1 FROM zone z, chain c " +
+		"WHERE z.number = c.previous AND c.previous <> 0 AND c.depth < " + Name.MAX_LABELS + ") " +
+		"SELECT number, name, previous, star FROM chain ORDER BY depth";
+	    findAncestorsPreparedStatement = db.prepareStatement(qstring);
+	} else findAncestorsPreparedStatement = null;
 
 	int limit = 10;
 
@@ -85,10 +140,41 @@ public final class Database {
 	getResultSetStatements = Collections.unmodifiableMap(m);
     }
 
+    /** Open a connection to the database with the driverClass, connectionString, userName and
+     * userPassword resolver properties. */
+    static Connection connect(Properties resolverProperties) throws SQLException, ClassNotFoundException {
+	Class.forName(resolverProperties.getProperty("driverClass"));
+	Connection result = DriverManager.getConnection(resolverProperties.getProperty("connectionString"),
+							resolverProperties.getProperty("userName"),
+							resolverProperties.getProperty("userPassword"));
+	if(result == null) throw new SQLException("Couldn't open a connection to the database.");
+	return result;
+    }
+
+    /** Return whether the nameQueries resolver property asks for single queries. */
+    static boolean isSingleQueries(Properties resolverProperties) {
+	String nameQueries = resolverProperties.getProperty("nameQueries");
+	if((nameQueries != null) && !nameQueries.equalsIgnoreCase("single") && !nameQueries.equalsIgnoreCase("label"))
+	    throw new IllegalArgumentException("Unknown nameQueries: " + nameQueries);
+	return (nameQueries != null) && nameQueries.equalsIgnoreCase("single");
+    }
+
+    /** Return whether the connection still works, waiting up to timeout seconds to find out. */
+    boolean isValid(int timeout) {
+	try { return db.isValid(timeout); }
+	catch(SQLException sqe) { return false; }
+    }
+
     /** Release resources associated with this database. */
     public void release() {
 	try { findNextNodePreparedStatement.close(); } catch(SQLException sqe) { }
 	try { findDbNamePreparedStatement.close(); } catch(SQLException sqe) { }
+	try { isStarZonePreparedStatement.close(); } catch(SQLException sqe) { }
+	for(int i = 0; i < findPathPreparedStatements.length; i++)
+	    if(findPathPreparedStatements[i] != null)
+		try { findPathPreparedStatements[i].close(); } catch(SQLException sqe) { }
+	if(findAncestorsPreparedStatement != null)
+	    try { findAncestorsPreparedStatement.close(); } catch(SQLException sqe) { }
 	try { db.close(); } catch(SQLException sqe) { }
     }
 
@@ -101,15 +187,25 @@ public final class Database {
 	if(name.equals(Name.ROOT)) return DbName.ROOT;
 	int[] labelNumbers = new int[name.count()];
 	boolean[] stars = new boolean[name.count()];
-	Node node = Node.ROOT;
-	int i;
-	Node lastNode;
+	int previous = 0;
+	long found;
+	int i, limit, count;
 	for(i = 0; i < labelNumbers.length; i++) {
-	    node = findNextNode(name.get(i), node);
-	    if(node == null) break;
-	    labelNumbers[i] = node.getNumber();
-	    stars[i] = node.isStar();
-	    lastNode = node;
+	    found = (nodeCache == null) ? NodeCache.UNKNOWN : nodeCache.get(previous, name.get(i));
+	    if((found == NodeCache.UNKNOWN) && singleQueries) {
+		// the rest of the labels, or as many as one statement looks up, in one round trip
+		limit = Math.min(labelNumbers.length - i, Name.MAX_LABELS);
+		count = findPath(name, i, limit, previous, labelNumbers, stars);
+		if(count == 0) break;
+		i += count - 1;
+		previous = labelNumbers[i];
+		if(count < limit) { i++; break; }
+		continue;
+	    }
+	    if(found == NodeCache.UNKNOWN) found = findNextNode(name.get(i), previous);
+	    if(found == NodeCache.ABSENT) break;
+	    labelNumbers[i] = previous = NodeCache.getNumber(found);
+	    stars[i] = NodeCache.isStar(found);
 	}
 	int[] result = new int[i];
 	boolean[] starResult = new boolean[i];
@@ -118,27 +214,82 @@ public final class Database {
 	return NameFactory.createDbNameFromName(name, result, starResult);
     }
 
-    /** Given a string, and a previous node, find the node associated with the string. */
-    private Node findNextNode(String s, Node n) throws SQLException {
+    /** Given a string, and a previous node, find the node associated with the string in the database,
+     * remember it in the cache if there is one, and return it as NodeCache.found() does, or NodeCache.ABSENT. */
+    private long findNextNode(String s, int previous) throws SQLException {
 	assert(db != null); assert(! db.isClosed());
 	if(s == null) throw new NullPointerException("Cannot look up a null label.");
 	if((s.length() == 0) || (s.length() > 63))
 	    throw new IllegalArgumentException("String: " + s + " is not a valid name.");
-	if(n == null) throw new NullPointerException("Node is null in findNextNode");
-	Node result = null;
+	long result = NodeCache.ABSENT;
+	int generation = (nodeCache == null) ? 0 : nodeCache.getGeneration();
 	String qstring = "SELECT number, star FROM zone WHERE name = ? AND previous = ?";
 //	PreparedStatement ps = db.prepareStatement(qstring);
 	findNextNodePreparedStatement.setString(1, s);
-	findNextNodePreparedStatement.setInt(2, n.getNumber());
+	findNextNodePreparedStatement.setInt(2, previous);
 	// ps.setString(1, s); ps.setInt(2, n.getNumber());
 //	ResultSet rs = ps.executeQuery();
 	ResultSet rs = findNextNodePreparedStatement.executeQuery();
-	if(rs.next())
-	    result = Node.getInstance(rs.getInt(1), s, n.getNumber(), rs.getBoolean(2));
+	if(rs.next()) result = NodeCache.found(rs.getInt(1), rs.getBoolean(2));
 	rs.close(); findNextNodePreparedStatement.clearParameters();
+	if(nodeCache != null) nodeCache.put(previous, s, result, generation);
+	return result;
+    }
+
+    /** Find the nodes of count labels of a name, starting at label start, under a previous node, with one
+     * statement, and put them in the numbers and stars arrays at the same places as their labels, and in
+     * the cache if there is one.  Return how many labels were found; the one after them isn't there. */
+    private int findPath(Name name, int start, int count, int previous, int[] numbers, boolean[] stars)
+	throws SQLException {
+	assert(db != null); assert(! db.isClosed());
+	if((count < 1) || (count > Name.MAX_LABELS)) throw new IllegalArgumentException("Count: " + count + " is out of range.");
+	String s;
+	for(int i = start; i < start + count; i++) {
+	    s = name.get(i);
+	    if((s.length() == 0) || (s.length() > 63))
+		throw new IllegalArgumentException("String: " + s + " is not a valid name.");
+	}
+	int generation = (nodeCache == null) ? 0 : nodeCache.getGeneration();
+	PreparedStatement ps = getFindPathPreparedStatement(count);
+	// the labels below the first are in the joins, which come before the where clause
+	for(int i = 1; i < count; i++) ps.setString(i, name.get(start + i));
+	ps.setInt(count, previous);
+	ps.setString(count + 1, name.get(start));
+	ResultSet rs = ps.executeQuery();
+	int result = 0;
+	if(rs.next()) {
+	    for(; result < count; result++) {
+		numbers[start + result] = rs.getInt(2 * result + 1);
+		if(rs.wasNull()) break;
+		stars[start + result] = rs.getBoolean(2 * result + 2);
+	    }
+	}
+	rs.close(); ps.clearParameters();
+	if(nodeCache != null) {
+	    for(int i = 0; i < result; i++) {
+		nodeCache.put(previous, name.get(start + i), NodeCache.found(numbers[start + i], stars[start + i]), generation);
+		previous = numbers[start + i];
+	    }
+	    if(result < count) nodeCache.put(previous, name.get(start + result), NodeCache.ABSENT, generation);
+	}
 	return result;
     }
 
+    /** Return the statement which finds the nodes of count labels, preparing it the first time.  It joins
+     * the zone table to itself once for each label, so a label which isn't there leaves nulls for itself
+     * and the labels after it. */
+    private PreparedStatement getFindPathPreparedStatement(int count) throws SQLException {
+	if(findPathPreparedStatements[count] != null) return findPathPreparedStatements[count];
+	StringBuffer sb = new StringBuffer("SELECT z0.number, z0.star");
+	for(int i = 1; i < count; i++) sb.append(", z" + i + ".number, z" + i + ".star");
+	sb.append(" FROM zone z0");
+	for(int i = 1; i < count; i++)
+	    sb.append(" LEFT JOIN zone z" + i + " ON z" + i + ".previous = z" + (i - 1) + ".number AND z" + i + ".name = ?");
+	sb.append(" WHERE z0.previous = ? AND z0.name = ?");
+	findPathPreparedStatements[count] = db.prepareStatement(sb.toString());
+	return findPathPreparedStatements[count];
+    }
+
     /** This is a helper method for getStatistics. */
     private int getCount(String qstring) throws SQLException {
 	assert(db != null); assert(! db.isClosed());
@@ -151,6 +302,51 @@ public final class Database {
 	return result;
     }
 
+    /** Return the highest row number in each of the tables which can change, for getChangedNodes().
+     * Row numbers come from sequences, so rows which are added later have higher numbers. */
+    public int[] getChangeMarks() throws SQLException {
+	int[] result = new int[CHANGE_TABLES.length];
+	for(int i = 0; i < CHANGE_TABLES.length; i++)
+	    result[i] = getCount("SELECT COALESCE(MAX(number), 0) FROM " + CHANGE_TABLES[i]);
+	return result;
+    }
+
+    /** Return the numbers of the nodes, as Integers, which have had rows added since the floors, which
+     * came from getChangeMarks(), apart from the rows in seen, and add the rows which were found to seen, and
+     * move the marks up to them.  A row's number is taken from its sequence before the row is committed, so
+     * a row can turn up after rows with higher numbers, and the caller finds it by keeping the floors some
+     * way behind the marks.  The rows in seen are Longs, the index of the table in the top half and the row's
+     * number in the bottom half; the rows at or below the floors are taken out of it, since they will never
+     * be looked at again. */
+    public Set getChangedNodes(int[] floors, int[] marks, Set seen) throws SQLException {
+	if((floors == null) || (marks == null) || (seen == null)) throw new NullPointerException("Floors, marks or seen was null.");
+	if((floors.length != CHANGE_TABLES.length) || (marks.length != CHANGE_TABLES.length))
+	    throw new IllegalArgumentException("There should be " + CHANGE_TABLES.length + " floors and marks.");
+	Iterator it = seen.iterator();
+	long row;
+	while(it.hasNext()) {
+	    row = ((Long) it.next()).longValue();
+	    if((int) row <= floors[(int) (row >>> 32)]) it.remove();
+	}
+	Set result = new HashSet();
+	Statement st = db.createStatement();
+	ResultSet rs;
+	int number;
+	for(int i = 0; i < CHANGE_TABLES.length; i++) {
+	    rs = st.executeQuery("SELECT number, " + CHANGE_COLUMNS[i] + " FROM " + CHANGE_TABLES[i] +
+				 " WHERE number > " + floors[i]);
+	    while(rs.next()) {
+		number = rs.getInt(1);
+		if(! seen.add(Long.valueOf(((long) i << 32) | number))) continue;
+		if(number > marks[i]) marks[i] = number;
+		result.add(Integer.valueOf(rs.getInt(2)));
+	    }
+	    rs.close();
+	}
+	st.close();
+	return result;
+    }
+
     /** Return a new ResolverStatistics object reflecting the current state of the resolver. */
     public ResolverStatistics getStatistics(Date startDate) {
 	try {
@@ -261,62 +457,88 @@ public final class Database {
 
     /** Determine whether a given zone number is a star label or an ordinary label. */
     public boolean isStarZone(int zoneNumber) throws SQLException {
-	String qstring = "SELECT star FROM zone WHERE number = " + zoneNumber;
-	PreparedStatement ps = db.prepareStatement(qstring);
-	ResultSet rs = ps.executeQuery();
-	if(! rs.next()) { rs.close(); ps.close(); return false; }
+	isStarZonePreparedStatement.setInt(1, zoneNumber);
+	ResultSet rs = isStarZonePreparedStatement.executeQuery();
+	if(! rs.next()) { rs.close(); return false; }
 	boolean result = rs.getBoolean(1);
-	rs.close(); ps.close();
+	rs.close();
 	return result;
     }
 
     /** Given a zone number, resolve it fully into a DbName.  If the zone number cannot be found,
      * return null.  If the zone number is 0, return the root name.  This is useful for rdata
      * types such as MX or CNAME which contain a reference to another name.  This name
-     * must then be loaded to compose the response. */
+     * must then be loaded to compose the response.<p>
+     * If there is a name cache, this only walks up as far as the nearest node whose name is in it,
+     * and builds the names below that node from its name, putting each of them in the cache. */
     public DbName findDbName(int previousNode) throws SQLException {
 	if(previousNode < 0) throw new IllegalArgumentException("Zone number: " + previousNode + " is out of range.");
 	if(previousNode == 0) return DbName.ROOT;
 	String[] labelArray = new String[Name.MAX_LABELS + 1];
 	int[] numberArray = new int[Name.MAX_LABELS + 1];
 	boolean[] starArray = new boolean[Name.MAX_LABELS + 1];
-	// String qstring = "SELECT name, previous, star FROM zone WHERE number = ?";
-	// PreparedStatement ps = db.prepareStatement(qstring);
 	int i = 0;
 	// look for the label with number previousNode.
 	// add this label to the list, and set previousNode to that number
-	// keep doing this until we see a previousNode = 0, which means root, which means we're done
+	// keep doing this until we see a previousNode = 0, which means root, or a node whose name is known
+	DbName known = null;
 	ResultSet rs;
-	// go through until previousNode is 0, which means we have hit the root.
+	if(singleQueries) {
+	    if((nameCache != null) && ((known = nameCache.get(previousNode)) != null)) return known;
+	    i = findAncestors(previousNode, labelArray, numberArray, starArray);
+	    if(i < 0) return null;
+	    previousNode = 0;
+	}
 	while(previousNode != 0) {
+	    if((nameCache != null) && ((known = nameCache.get(previousNode)) != null)) break;
 	    findDbNamePreparedStatement.setInt(1, previousNode);
 	    rs = findDbNamePreparedStatement.executeQuery();
 	    if(rs.next()) {
 		labelArray[i] = rs.getString(1);
-		starArray[i] = rs.getBoolean(2);
+		starArray[i] = rs.getBoolean(3);
 		numberArray[i] = previousNode;
 		previousNode = rs.getInt(2);
 		rs.close();
 		i++;
 		if(i >= labelArray.length) {
 		    // there are too many nodes here; we can't add any more
-		    rs.close(); return null;
+		    return null;
 		}
 	    } else {
 		// in this case, it didn't find a previous node, and we haven't reached 0 yet, so name can't be found
 		rs.close(); return null;
 	    }
 	}
-	// now we have a list of labels and zone numbers.  make a new DbName
-	String[] resultLabels = new String[i];
-	int[] resultNumbers = new int[i];
-	boolean[] resultStars = new boolean[i];
-	for(i = 0; i < resultLabels.length; i++) {
-	    resultLabels[i] = labelArray[resultLabels.length - i - 1];
-	    resultNumbers[i] = numberArray[resultNumbers.length -i - 1];
-	    resultStars[i] = starArray[resultNumbers.length - i - 1];
+	if(known == null) known = DbName.ROOT;
+	if(known.count() + i > Name.MAX_LABELS) return null;
+	// now we have a list of labels and zone numbers below the known name.  add them on, nearest the root first
+	DbName result = known;
+	for(i = i - 1; i >= 0; i--) {
+	    result = NameFactory.getChildDbName(result, labelArray[i], numberArray[i], starArray[i]);
+	    if(nameCache != null) nameCache.put(result);
+	}
+	return result;
+    }
+
+    /** Find a node and all its ancestors with one statement, and put their labels, numbers and stars in
+     * the arrays, the node first, as findDbName() does.  Return how many there are, or -1 if one of them
+     * can't be found or there are too many. */
+    private int findAncestors(int number, String[] labels, int[] numbers, boolean[] stars) throws SQLException {
+	findAncestorsPreparedStatement.setInt(1, number);
+	ResultSet rs = findAncestorsPreparedStatement.executeQuery();
+	int result = 0;
+	int previous = number;
+	while(rs.next()) {
+	    if(result >= labels.length) { rs.close(); return -1; }
+	    labels[result] = rs.getString(2);
+	    numbers[result] = rs.getInt(1);
+	    stars[result] = rs.getBoolean(4);
+	    previous = rs.getInt(3);
+	    result++;
 	}
-	DbName result = NameFactory.getDbName(resultLabels, resultNumbers, resultStars);
+	rs.close(); findAncestorsPreparedStatement.clearParameters();
+	// the chain only reaches the root if every node in it was found
+	if(previous != 0) return -1;
 	return result;
     }
 
@@ -349,6 +571,7 @@ public final class Database {
 	PreparedStatement ps = db.prepareStatement(qstring);
 	ps.setString(1, zoneName);
 	ps.executeUpdate();
+	if(nodeCache != null) nodeCache.remove(previousZone, zoneName);
 	return number;
     }
 
@@ -381,6 +604,7 @@ public final class Database {
 	ps.setBoolean(2, star);
 	ps.executeUpdate();
 	ps.close();
+	if(nodeCache != null) nodeCache.remove(previousNode, label);
 	return result;
     }
 
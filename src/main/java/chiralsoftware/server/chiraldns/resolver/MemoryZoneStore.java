@@ -0,0 +1,244 @@
+package chiralsoftware.server.chiraldns.resolver;
+
+import chiralsoftware.server.chiraldns.dns.Type;
+import chiralsoftware.server.chiraldns.dns.rdata.ARdata;
+import chiralsoftware.server.chiraldns.dns.rdata.CNAMERdata;
+import chiralsoftware.server.chiraldns.dns.rdata.MXRdata;
+import chiralsoftware.server.chiraldns.dns.rdata.NSRdata;
+import chiralsoftware.server.chiraldns.dns.rdata.Rdata;
+import chiralsoftware.server.chiraldns.dns.rdata.SOARdata;
+import chiralsoftware.server.chiraldns.dns.rdata.TXTRdata;
+import chiralsoftware.server.chiraldns.name.DbName;
+import chiralsoftware.server.chiraldns.name.Name;
+import chiralsoftware.server.chiraldns.name.NameFactory;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/** A MemoryZoneStore holds all the nodes of the zone table and all the records of the record tables
+ * in a tree in memory, so that a Resolver can answer queries without asking the database anything.
+ * The database is still where the zone data is kept and changed; load() reads all of it into a new
+ * tree, which replaces the old one as a whole, so a lookup sees either the old tree or the new one.
+ * The trees are never changed once they are loaded.  One MemoryZoneStore is shared by all the Resolvers
+ * of a server, and someone has to call Resolver.load() with it when the zone data changes.<p>
+ * The records which hold names, such as MX and NS records, are changed when a response is compressed,
+ * so getRdata() returns copies of them; the others are shared.<p>
+ * This class is thread-safe.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+public final class MemoryZoneStore implements ZoneStore {
+
+    private static final Logger LOG = Logger.getLogger(MemoryZoneStore.class.getName());
+
+    /** The types which are loaded, and the queries which load them.  The first column is the node,
+     * and the rest are those Database.getNextResult() reads. */
+    private static final int[] TYPES = { Type.A, Type.MX, Type.NS, Type.CNAME, Type.TXT, Type.SOA };
+    private static final String[] QUERIES = {
+	"SELECT zone, ttl, addr FROM arecord",
+	"SELECT zone, ttl, preference, exchange FROM mxrecord",
+	"SELECT zone, ttl, name FROM nsrecord",
+	"SELECT zone, ttl, name FROM cnamerecord",
+	"SELECT zone, ttl, text FROM txtrecord",
+	"SELECT zone, mname, rname, ser, refresh, retry, expire, minimum FROM soarecord" };
+
+    /** The current tree: the nodes by number, as Integers, with the root node. */
+    private volatile Map nodes = null;
+
+    /** Create a new store, which is empty until it is loaded. */
+    public MemoryZoneStore() { }
+
+    /** Read all the zone data through the connection into a new tree, and start using it.  Lookups which
+     * are running when this returns finish with the old tree. */
+    void load(Connection db) throws SQLException {
+	if(db == null) throw new NullPointerException("Can't load from a null connection.");
+	long start = System.currentTimeMillis();
+	Map result = new HashMap();
+	MemoryNode root = new MemoryNode(Node.ROOT);
+	result.put(Integer.valueOf(0), root);
+	Statement st = db.createStatement();
+	int recordCount = 0;
+	try {
+	    ResultSet rs = st.executeQuery("SELECT number, name, previous, star FROM zone");
+	    while(rs.next())
+		result.put(Integer.valueOf(rs.getInt(1)),
+			   new MemoryNode(Node.getInstance(rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getBoolean(4))));
+	    rs.close();
+	    Iterator it = result.values().iterator();
+	    MemoryNode node, previous;
+	    while(it.hasNext()) {
+		node = (MemoryNode) it.next();
+		if(node.node.isRoot()) continue;
+		previous = (MemoryNode) result.get(Integer.valueOf(node.node.getPrevious()));
+		// a node whose previous node isn't there can't be reached, as it can't in the database
+		if(previous != null) previous.children.put(node.node.getName(), node);
+	    }
+	    for(int i = 0; i < TYPES.length; i++) {
+		rs = st.executeQuery(QUERIES[i]);
+		while(rs.next()) {
+		    node = (MemoryNode) result.get(Integer.valueOf(rs.getInt(1)));
+		    if(node == null) continue;
+		    node.add(TYPES[i], makeRdata(rs, TYPES[i], result));
+		    recordCount++;
+		}
+		rs.close();
+	    }
+	}
+	finally { st.close(); }
+	Iterator it = result.values().iterator();
+	while(it.hasNext()) ((MemoryNode) it.next()).freeze();
+	nodes = Collections.unmodifiableMap(result);
+	LOG.info("Loaded " + result.size() + " nodes and " + recordCount + " records in " +
+		 (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    /** Make an Rdata out of a row of one of the QUERIES, with its names looked up in the new tree. */
+    private static Rdata makeRdata(ResultSet rs, int type, Map tree) throws SQLException {
+	if(type == Type.A) return new ARdata(rs.getInt(2), rs.getInt(3));
+	if(type == Type.MX) return new MXRdata(rs.getInt(2), findDbName(tree, rs.getInt(4)), rs.getInt(3));
+	if(type == Type.NS) return new NSRdata(rs.getInt(2), findDbName(tree, rs.getInt(3)));
+	if(type == Type.CNAME) return new CNAMERdata(rs.getInt(2), findDbName(tree, rs.getInt(3)));
+	if(type == Type.TXT) return new TXTRdata(rs.getInt(2), rs.getString(3));
+	if(type == Type.SOA)
+	    return new SOARdata(findDbName(tree, rs.getInt(2)), findDbName(tree, rs.getInt(3)), rs.getInt(4),
+				rs.getInt(5), rs.getInt(6), rs.getInt(7), rs.getInt(8));
+	throw new IllegalArgumentException("type: " + type + " is not supported");
+    }
+
+    /** Return the current tree. */
+    private Map getNodes() {
+	Map result = nodes;
+	if(result == null) throw new IllegalStateException("The zone store hasn't been loaded.");
+	return result;
+    }
+
+    public DbName getDbName(Name name) {
+	if(name == null) throw new NullPointerException("Can't lookup a null name.");
+	if(name.equals(Name.ROOT)) return DbName.ROOT;
+	MemoryNode node = (MemoryNode) getNodes().get(Integer.valueOf(0));
+	int[] labelNumbers = new int[name.count()];
+	boolean[] stars = new boolean[name.count()];
+	int i;
+	for(i = 0; i < labelNumbers.length; i++) {
+	    node = (MemoryNode) node.children.get(name.get(i));
+	    if(node == null) break;
+	    labelNumbers[i] = node.node.getNumber();
+	    stars[i] = node.node.isStar();
+	}
+	int[] result = new int[i];
+	boolean[] starResult = new boolean[i];
+	System.arraycopy(labelNumbers, 0, result, 0, i);
+	System.arraycopy(stars, 0, starResult, 0, i);
+	return NameFactory.createDbNameFromName(name, result, starResult);
+    }
+
+    public Set getRdata(int zoneNumber, int type, int limit) {
+	if(zoneNumber < 0) throw new IllegalArgumentException("invalid zone number in getRdata");
+	if(! Type.isSupported(type)) return Collections.EMPTY_SET;
+	MemoryNode node = (MemoryNode) getNodes().get(Integer.valueOf(zoneNumber));
+	if(node == null) return new HashSet();
+	Rdata[] records = (Rdata[]) node.records.get(Integer.valueOf(type));
+	if(records == null) return new HashSet();
+	Set result = new HashSet();
+	for(int i = 0; (i < records.length) && (i < limit); i++) result.add(copy(records[i]));
+	return result;
+    }
+
+    public boolean isStarZone(int zoneNumber) {
+	MemoryNode node = (MemoryNode) getNodes().get(Integer.valueOf(zoneNumber));
+	return (node != null) && node.node.isStar();
+    }
+
+    public DbName findDbName(int number) {
+	if(number < 0) throw new IllegalArgumentException("Zone number: " + number + " is out of range.");
+	return findDbName(getNodes(), number);
+    }
+
+    /** Look up a node in a tree and all the nodes above it, and make a DbName of them, or return
+     * null if one of them isn't there or there are too many. */
+    private static DbName findDbName(Map tree, int number) {
+	if(number == 0) return DbName.ROOT;
+	String[] labelArray = new String[Name.MAX_LABELS + 1];
+	int[] numberArray = new int[Name.MAX_LABELS + 1];
+	boolean[] starArray = new boolean[Name.MAX_LABELS + 1];
+	int i = 0;
+	MemoryNode node;
+	while(number != 0) {
+	    if(i >= labelArray.length) return null;
+	    node = (MemoryNode) tree.get(Integer.valueOf(number));
+	    if(node == null) return null;
+	    labelArray[i] = node.node.getName();
+	    numberArray[i] = number;
+	    starArray[i] = node.node.isStar();
+	    number = node.node.getPrevious();
+	    i++;
+	}
+	String[] resultLabels = new String[i];
+	int[] resultNumbers = new int[i];
+	boolean[] resultStars = new boolean[i];
+	for(int j = 0; j < i; j++) {
+	    resultLabels[j] = labelArray[i - j - 1];
+	    resultNumbers[j] = numberArray[i - j - 1];
+	    resultStars[j] = starArray[i - j - 1];
+	}
+	return NameFactory.getDbName(resultLabels, resultNumbers, resultStars);
+    }
+
+    /** Return an Rdata which can be given to a caller: a copy of one which holds names, which
+     * compression changes, or else the Rdata itself. */
+    public static Rdata copy(Rdata rdata) {
+	switch(rdata.getType()) {
+	case Type.MX: return new MXRdata(rdata.getTtl(), ((MXRdata) rdata).getExchange(), ((MXRdata) rdata).getPreference());
+	case Type.NS: return new NSRdata(rdata.getTtl(), ((NSRdata) rdata).getServer());
+	case Type.CNAME: return new CNAMERdata(rdata.getTtl(), ((CNAMERdata) rdata).getServer());
+	case Type.SOA:
+	    SOARdata soa = (SOARdata) rdata;
+	    return new SOARdata(soa.getMname(), soa.getRname(), soa.getSerial(), soa.getRefresh(),
+				soa.getRetry(), soa.getExpire(), soa.getMinimum());
+	default: return rdata;
+	}
+    }
+
+    /** A node of the tree, with its children by label and its records by type.  It is changed while
+     * its tree is being loaded, and then frozen. */
+    private static final class MemoryNode {
+	final Node node;
+	Map children = new HashMap(4);
+
+	/** The records, by type as an Integer; each a List while loading, and an array of Rdata after. */
+	Map records = new HashMap(2);
+
+	MemoryNode(Node node) { this.node = node; }
+
+	void add(int type, Rdata rdata) {
+	    Integer key = Integer.valueOf(type);
+	    List list = (List) records.get(key);
+	    if(list == null) {
+		list = new ArrayList(1);
+		records.put(key, list);
+	    }
+	    list.add(rdata);
+	}
+
+	void freeze() {
+	    children = children.isEmpty() ? Collections.EMPTY_MAP : Collections.unmodifiableMap(children);
+	    Map frozen = new HashMap(records.size() * 2);
+	    Iterator it = records.entrySet().iterator();
+	    Map.Entry e;
+	    while(it.hasNext()) {
+		e = (Map.Entry) it.next();
+		frozen.put(e.getKey(), ((List) e.getValue()).toArray(new Rdata[0]));
+	    }
+	    records = frozen.isEmpty() ? Collections.EMPTY_MAP : Collections.unmodifiableMap(frozen);
+	}
+    }
+}
@@ -0,0 +1,61 @@
+package chiralsoftware.server.chiraldns.resolver;
+
+import chiralsoftware.server.chiraldns.name.DbName;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A NameCache remembers the DbName of a node, by its number, once Database.findDbName() has built it,
+ * so that the target of an MX, NS, CNAME or SOA record is usually found without asking the database
+ * anything.  When a node isn't in the cache, findDbName() only walks up to the nearest ancestor which is,
+ * and builds the names below it from that one, so names in the same zone share the walk to the zone.<p>
+ * Nodes are never taken out of the zone table, and their labels and parents never change, so a name which
+ * was found stays right, and the cache doesn't need to be told when the zone data changes.  When it is full
+ * it is cleared, like the NegativeCache, and it fills up again from the names which are still asked for.<p>
+ * This class is thread-safe.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+public final class NameCache {
+
+    private final int maxEntries;
+
+    /** The names, by node number as an Integer. */
+    private final Map names = new ConcurrentHashMap();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** @param maxEntries how many names there can be before the cache is cleared */
+    public NameCache(int maxEntries) {
+	if(maxEntries < 1) throw new IllegalArgumentException("Max entries: " + maxEntries + " is out of range.");
+	this.maxEntries = maxEntries;
+    }
+
+    /** Return the name of a node, or null if the cache doesn't have it. */
+    public DbName get(int number) {
+	DbName result = (DbName) names.get(Integer.valueOf(number));
+	if(result == null) misses.incrementAndGet();
+	else hits.incrementAndGet();
+	return result;
+    }
+
+    /** Remember the name of a node, which must be fully resolved, with the node as its last label. */
+    public void put(DbName name) {
+	if(name == null) throw new NullPointerException("Can't cache a null name.");
+	if(! name.isFullyResolved() || name.isRoot())
+	    throw new IllegalArgumentException("Name: " + name + " can't be cached.");
+	if(names.size() >= maxEntries) names.clear();
+	names.put(Integer.valueOf(name.getNumber()), name);
+    }
+
+    /** Forget every name. */
+    public void clear() { names.clear(); }
+
+    public long getHits() { return hits.get(); }
+
+    public long getMisses() { return misses.get(); }
+
+    public String toString() {
+	return "Name cache: " + names.size() + " names; hits: " + hits.get() + "; misses: " + misses.get();
+    }
+}
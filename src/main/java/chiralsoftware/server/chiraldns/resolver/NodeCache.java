@@ -0,0 +1,191 @@
+package chiralsoftware.server.chiraldns.resolver;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A NodeCache remembers what Database.getDbName() found when it looked for a label under a node,
+ * so that resolving a name usually doesn't ask the database anything, without holding the whole zone
+ * table in memory like a MemoryZoneStore.  It remembers that a label isn't there, too, because most of
+ * the labels of most names asked about aren't.<p>
+ * Each entry is three longs in one table: the previous node, exactly, with a 32 bit hash of the label;
+ * another, 64 bit, hash of the label; and what was found, which is the node's number and its star flag,
+ * or ABSENT.  Nothing else is kept, so there are no objects for the entries.  The two hashes are worked
+ * out independently, from seeds which are picked at random when the cache is made, so two labels under
+ * one node are only taken for each other if 96 bits of hash collide, and nobody outside the process can
+ * pick labels which do.  An entry can go in any of a few slots after its home slot; when they are all full,
+ * the one in its home slot is replaced, so the cache never grows.<p>
+ * Lookups don't take a lock.  A writer clears a slot's first long before it changes the slot, and a
+ * lookup reads it again after the others; the value also holds the top bits of the 64 bit hash, in case
+ * the slot was given to another entry and back while it was read, so a lookup never takes the value of
+ * one entry for another's.  Nodes are never taken out of the zone table, so a node which was found stays
+ * right, but a label which wasn't there can be added, so the caller must remove() the label, or clear()
+ * the cache, when the zone data changes.<p>
+ * This class is thread-safe.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+public final class NodeCache {
+
+    /** get() didn't find the label in the cache. */
+    public static final long UNKNOWN = -1L;
+
+    /** The label isn't in the database under the previous node. */
+    public static final long ABSENT = 0L;
+
+    /** How many slots after its home slot an entry can go in. */
+    private static final int PROBES = 4;
+
+    /** How many longs there are in a slot. */
+    private static final int WIDTH = 3;
+
+    /** The bits of a value which hold what was found; the rest hold the top bits of the label's hash. */
+    private static final long FOUND_MASK = (1L << 33) - 1;
+
+    /** The slots: the previous node and the short hash of the label, the long hash of the label, and
+     * the value; a first long of 0 is an empty slot. */
+    private final AtomicLongArray table;
+    private final int mask;
+
+    /** The seeds of the two hashes of a label. */
+    private final long seed;
+    private final long shortSeed;
+
+    /** Goes up every time an entry is removed, so that what was looked up in the database before the
+     * zone data changed isn't put in the cache after. */
+    private volatile int generation = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** @param size how many entries the cache can hold; it is rounded up to a power of two */
+    public NodeCache(int size) {
+	if((size < 1) || (size > (1 << 28))) throw new IllegalArgumentException("Size: " + size + " is out of range.");
+	int slots = 1;
+	while(slots < size) slots <<= 1;
+	table = new AtomicLongArray(WIDTH * slots);
+	mask = slots - 1;
+	SecureRandom random = new SecureRandom();
+	seed = random.nextLong();
+	shortSeed = random.nextLong();
+    }
+
+    /** Return what get() returns for a node which was found. */
+    public static long found(int number, boolean star) {
+	if(number <= 0) throw new IllegalArgumentException("Node number: " + number + " is out of range.");
+	return ((long) number << 1) | (star ? 1 : 0);
+    }
+
+    /** Return the number of a node from what get() returned. */
+    public static int getNumber(long found) { return (int) (found >>> 1); }
+
+    /** Return the star flag of a node from what get() returned. */
+    public static boolean isStar(long found) { return (found & 1) != 0; }
+
+    /** Return what was found for a label under a previous node: the node, which getNumber() and isStar()
+     * take apart, ABSENT if it isn't there, or UNKNOWN if the cache doesn't know. */
+    public long get(int previous, String label) {
+	long hash = hash(label);
+	long node = node(previous, label);
+	int home = home(previous, hash);
+	int slot;
+	long value;
+	for(int i = 0; i < PROBES; i++) {
+	    slot = WIDTH * ((home + i) & mask);
+	    if(table.get(slot) != node) continue;
+	    if(table.get(slot + 1) != hash) continue;
+	    value = table.get(slot + 2);
+	    // the slot may have been given to another entry while it was read
+	    if((table.get(slot) != node) || (table.get(slot + 1) != hash) ||
+	       ((value & ~FOUND_MASK) != (hash & ~FOUND_MASK))) break;
+	    hits.incrementAndGet();
+	    return value & FOUND_MASK;
+	}
+	misses.incrementAndGet();
+	return UNKNOWN;
+    }
+
+    /** Return the generation, which must be taken before the database is asked, and given to put(). */
+    public int getGeneration() { return generation; }
+
+    /** Remember what was found for a label under a previous node, if nothing has been removed since the
+     * generation was taken.
+     * @param found what found() returned, or ABSENT */
+    public synchronized void put(int previous, String label, long found, int generation) {
+	if(generation != this.generation) return;
+	long hash = hash(label);
+	long node = node(previous, label);
+	int home = home(previous, hash);
+	int slot = WIDTH * home;
+	int s;
+	long n;
+	for(int i = 0; i < PROBES; i++) {
+	    s = WIDTH * ((home + i) & mask);
+	    n = table.get(s);
+	    if((n == 0) || ((n == node) && (table.get(s + 1) == hash))) {
+		slot = s;
+		break;
+	    }
+	}
+	table.set(slot, 0);
+	table.set(slot + 1, hash);
+	table.set(slot + 2, (hash & ~FOUND_MASK) | (found & FOUND_MASK));
+	table.set(slot, node);
+    }
+
+    /** Forget what was found for a label under a previous node, because it may have been added. */
+    public synchronized void remove(int previous, String label) {
+	generation++;
+	long hash = hash(label);
+	long node = node(previous, label);
+	int home = home(previous, hash);
+	int slot;
+	for(int i = 0; i < PROBES; i++) {
+	    slot = WIDTH * ((home + i) & mask);
+	    if((table.get(slot) == node) && (table.get(slot + 1) == hash)) table.set(slot, 0);
+	}
+    }
+
+    /** Forget everything. */
+    public synchronized void clear() {
+	generation++;
+	for(int i = 0; i < table.length(); i += WIDTH) table.set(i, 0);
+    }
+
+    /** Return the 64 bit hash of a label: FNV-1a from the seed, mixed. */
+    private long hash(String label) {
+	long h = 0xcbf29ce484222325L ^ seed;
+	for(int i = 0, length = label.length(); i < length; i++) h = (h ^ label.charAt(i)) * 0x100000001b3L;
+	return mix(h);
+    }
+
+    /** Return the first long of the slot of a label under a previous node: the previous node in the
+     * top half and a 32 bit hash of the label, which isn't worked out like hash(), in the bottom half.
+     * It is never 0. */
+    private long node(int previous, String label) {
+	long h = shortSeed;
+	for(int i = 0, length = label.length(); i < length; i++) h = (h + label.charAt(i)) * 0x9e3779b97f4a7c15L;
+	h = mix(h ^ label.length()) & 0xffffffffL;
+	return ((long) previous << 32) | ((h == 0) ? 1 : h);
+    }
+
+    /** Return the home slot of a label under a previous node. */
+    private int home(int previous, long hash) { return (int) mix(hash + previous * 0x9e3779b97f4a7c15L) & mask; }
+
+    /** The finalizer of MurmurHash3, which spreads every bit of the input over the whole result. */
+    private static long mix(long h) {
+	h ^= h >>> 33;
+	h *= 0xff51afd7ed558ccdL;
+	h ^= h >>> 33;
+	h *= 0xc4ceb9fe1a85ec53L;
+	h ^= h >>> 33;
+	return h;
+    }
+
+    public long getHits() { return hits.get(); }
+
+    public long getMisses() { return misses.get(); }
+
+    public String toString() {
+	return "Node cache: " + (mask + 1) + " slots; hits: " + hits.get() + "; misses: " + misses.get();
+    }
+}
@@ -0,0 +1,89 @@
+package chiralsoftware.server.chiraldns.resolver;
+
+import chiralsoftware.server.chiraldns.name.DbName;
+import chiralsoftware.server.chiraldns.name.Name;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/** A PooledDatabase is a ZoneStore which any number of threads can share.  Each lookup takes a
+ * Database from a ConnectionPool, with its own connection and prepared statements, and gives it back
+ * when it is done.<p>
+ * If a lookup throws an SQLException and its connection no longer works, the connection is discarded
+ * and the lookup is tried once more on another one, which the pool opens if it has to, so a database
+ * which restarts costs at most one failed query per thread, not the server.  If the connection still
+ * works, the exception is about the query, and is thrown without trying again.<p>
+ * This class is thread-safe.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+public final class PooledDatabase implements ZoneStore {
+
+    private static final Logger LOG = Logger.getLogger(PooledDatabase.class.getName());
+
+    private final ConnectionPool pool;
+
+    public PooledDatabase(ConnectionPool pool) {
+	if(pool == null) throw new NullPointerException("Can't create a pooled database without a pool.");
+	this.pool = pool;
+    }
+
+    public DbName getDbName(final Name name) throws SQLException {
+	return (DbName) lookup(new Lookup() {
+		Object run(Database database) throws SQLException { return database.getDbName(name); } });
+    }
+
+    public Set getRdata(final int zoneNumber, final int type, final int limit) throws SQLException {
+	return (Set) lookup(new Lookup() {
+		Object run(Database database) throws SQLException { return database.getRdata(zoneNumber, type, limit); } });
+    }
+
+    public boolean isStarZone(final int zoneNumber) throws SQLException {
+	return ((Boolean) lookup(new Lookup() {
+		Object run(Database database) throws SQLException {
+		    return Boolean.valueOf(database.isStarZone(zoneNumber)); } })).booleanValue();
+    }
+
+    public DbName findDbName(final int number) throws SQLException {
+	return (DbName) lookup(new Lookup() {
+		Object run(Database database) throws SQLException { return database.findDbName(number); } });
+    }
+
+    /** One of the lookups of a ZoneStore, made on whichever Database lookup() takes from the pool. */
+    private abstract static class Lookup {
+	abstract Object run(Database database) throws SQLException;
+    }
+
+    /** Make a lookup on a Database from the pool, and give the Database back, or discard it and try once
+     * more on another if its connection failed. */
+    private Object lookup(Lookup lookup) throws SQLException {
+	Database database;
+	Object result;
+	for(int attempt = 0; ; attempt++) {
+	    database = take();
+	    try { result = lookup.run(database); }
+	    catch(SQLException sqe) { failed(database, sqe, attempt); continue; }
+	    catch(RuntimeException re) { pool.give(database); throw re; }
+	    pool.give(database);
+	    return result;
+	}
+    }
+
+    /** Take a Database from the pool.  Being interrupted while waiting for one is reported as an
+     * SQLException, since that is all a ZoneStore can throw, and the thread stays interrupted. */
+    private Database take() throws SQLException {
+	try { return pool.take(); }
+	catch(InterruptedException ie) {
+	    Thread.currentThread().interrupt();
+	    throw new SQLException("Interrupted while waiting for a database connection.");
+	}
+    }
+
+    /** Deal with a lookup which threw an SQLException: give the Database back and throw the exception if its
+     * connection still works or this was the last attempt, or else discard it so the lookup can try again. */
+    private void failed(Database database, SQLException sqe, int attempt) throws SQLException {
+	if(database.isValid(ConnectionPool.VALIDATE_TIMEOUT)) { pool.give(database); throw sqe; }
+	pool.discard(database);
+	if(attempt > 0) throw sqe;
+	LOG.warning("Database connection failed: " + sqe + "; trying again on another connection.");
+    }
+}
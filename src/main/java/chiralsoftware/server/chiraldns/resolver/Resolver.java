@@ -14,10 +14,12 @@ import java.util.Properties;
 import java.util.Date;
 import java.util.logging.Logger;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
-/** This class implements a DNS resolver by querying a db.<p>
+/** This class implements a DNS resolver by querying a db.  The names and records it answers with
+ * are looked up in its ZoneStore, which is the database itself, unless it is given a MemoryZoneStore.
+ * Changes always go to the database.  If it is given an AuthorityIndex, it finds the zone apex and
+ * the zone cut of a name in that instead of walking up the name.<p>
  * Copyirght 2001-2017, Eric Hollander.  All rights reserved.
  * @author Eric Hollander */
 public final class Resolver {
@@ -29,20 +31,47 @@ public final class Resolver {
     private final Connection db;
     private Database database = null;
 
+    /** Where names and records are looked up: the database, or a copy of it. */
+    private final ZoneStore store;
+
+    /** Where the apex and the cut of a name are found, or null to walk up the name every time. */
+    private final AuthorityIndex authorityIndex;
+
     /** Holds the date when this resolver first started life. */
     private final Date startDate = new Date();
 
     /** Construct a new resolver.  This could include loading a config file and then making
      * a db connection, but for now it will be all hard-coded. */
     public Resolver(Properties resolverProperties) throws SQLException, ClassNotFoundException {
+	this(resolverProperties, null, null, null, null);
+    }
+
+    /** Construct a new resolver which looks up names and records in a store, which can be shared
+     * with other resolvers, or in the database if the store is null.  If it uses the database, it
+     * remembers the nodes it finds in a cache, and the names of nodes in another, which can also be shared,
+     * unless they are null too.  It finds the apex and the cut of a name in an index, which can be shared,
+     * unless that is null.<p>
+     * Besides the connection settings, the resolver properties can set <code>nameQueries</code> to
+     * <code>single</code>, to look up all the labels of a name, or all the ancestors of a node, with one
+     * statement each, or to <code>label</code>, the default, to look them up one at a time. */
+    public Resolver(Properties resolverProperties, ZoneStore store, NodeCache nodeCache, NameCache nameCache,
+		    AuthorityIndex authorityIndex) throws SQLException, ClassNotFoundException {
 	// it's sql db connection openning time!
-	Class.forName(resolverProperties.getProperty("driverClass"));
-	//db = DriverManager.getConnection("jdbc:postgresql:domain", "hh", "");
-	db = DriverManager.getConnection(resolverProperties.getProperty("connectionString"),
-					 resolverProperties.getProperty("userName"),
-					 resolverProperties.getProperty("userPassword"));
-	if(db == null) { LOG.severe("Couldn't open db connection in init."); System.exit(1); }
-	database = new Database(db);
+	db = Database.connect(resolverProperties);
+	database = new Database(db, nodeCache, nameCache, Database.isSingleQueries(resolverProperties));
+	this.store = (store == null) ? database : store;
+	this.authorityIndex = authorityIndex;
+    }
+
+    /** Construct a new resolver which has no database connection of its own, and looks up names and
+     * records in a store.  It is thread-safe if the store is, as a PooledDatabase or a MemoryZoneStore is,
+     * so one of them can be shared by every thread.  It can't change the zone data or look for changes.
+     * It finds the apex and the cut of a name in an index, unless that is null. */
+    public Resolver(ZoneStore store, AuthorityIndex authorityIndex) {
+	if(store == null) throw new NullPointerException("Can't create a resolver without a store.");
+	db = null;
+	this.store = store;
+	this.authorityIndex = authorityIndex;
     }
 
     public Resolver(Connection db) throws SQLException {
@@ -50,17 +79,39 @@ public final class Resolver {
 	if(db.isClosed()) throw new IllegalArgumentException("Database was closed.");
 	this.db = db;
 	database = new Database(db);
+	store = database;
+	authorityIndex = null;
+    }
+
+    /** Read all the zone data into a MemoryZoneStore, which then answers from it, through this
+     * resolver's connection.  This is done when the server starts, and again whenever the zone data changes. */
+    public void load(MemoryZoneStore memoryStore) throws SQLException {
+	if(memoryStore == null) throw new NullPointerException("Can't load a null store.");
+	if(db == null) throw new IllegalStateException("This resolver has no database connection to load from.");
+	memoryStore.load(db);
     }
 
-    /** Release resources associated with this resolver. */
+    /** Release resources associated with this resolver.  A resolver without a connection of its own
+     * has nothing to release. */
     public void release() { 
+	if(database == null) return;
 	database.release();
 	try { db.close(); } catch(SQLException e) { LOG.warning("Releasing db, caught: " + e); }
     }
 
+    /** Return whether this resolver has a database connection of its own, which is no good once it
+     * has thrown an SQLException.  A resolver without one uses a store which reconnects by itself. */
+    public boolean hasConnection() { return database != null; }
+
+    /** Return the database of this resolver's own connection. */
+    private Database getDatabase() {
+	if(database == null) throw new IllegalStateException("This resolver has no database connection of its own.");
+	return database;
+    }
+
     /** Return some stats about the resolver's database. */
     public ResolverStatistics getStatistics() throws SQLException {
-	return database.getStatistics(startDate); }
+	return getDatabase().getStatistics(startDate); }
 
     /** Given a DbName, return a set of nameserver ResourceRecords which are appropriate for it.
      * This is done by going up the labels (from more specific towards less specific) and 
@@ -69,11 +120,16 @@ public final class Resolver {
      * @throws SQLException */
     public Set getNSRecordSet(DbName name) throws SQLException {
 	if(name == null) throw new NullPointerException("Can't resolve a null name.");
+	if(authorityIndex != null) {
+	    AuthorityIndex.Entry entry = authorityIndex.get(name, store);
+	    if(entry.nsDepth < 0) return Collections.EMPTY_SET;
+	    return makeResourceRecordSet(entry.getNs(), name.getFullyResolvedName().subName(entry.nsDepth));
+	}
 	// if the dbname is not fully resolved, we can start iterating up from the last label which is in the db.
 	Set rdataSet = null;
 	DbName fullyResolved = name.getFullyResolvedName();
 	while((rdataSet == null) || rdataSet.isEmpty()) {
-	    rdataSet = database.getRdata(fullyResolved, Type.NS);
+	    rdataSet = getRdata(fullyResolved, Type.NS);
 	    if(!rdataSet.isEmpty()) return makeResourceRecordSet(rdataSet, fullyResolved);
 	    if(fullyResolved.isRoot()) return Collections.EMPTY_SET;
 	    fullyResolved = fullyResolved.subName();
@@ -100,13 +156,14 @@ public final class Resolver {
      * if there are no records of the requested type for the zone, unless that zone has an NS record. */
     public Set getAuthority(DbName name, boolean noAnswer) throws SQLException {
 	if(name == null) throw new NullPointerException("Can't getAuthority on a null name.");
+	if(authorityIndex != null) return getIndexedAuthority(name, noAnswer);
 	if(name.isStar() && noAnswer) {
 	    // in this case, the name is fully resolved, so there must be an soa
 	    // so go up the tree and look for that
 	    name = name.getFullyResolvedName();
 	    Set rdataSet;
 	    while(!name.isRoot()) {
-		rdataSet = database.getRdata(name, Type.SOA);
+		rdataSet = getRdata(name, Type.SOA);
 		if(!rdataSet.isEmpty()) return makeResourceRecordSet(rdataSet, name);
 		name = name.subName();
 	    }
@@ -118,10 +175,10 @@ public final class Resolver {
 	if(noAnswer) {
 	    name = name.getFullyResolvedName();
 	    Set rdataSet;
-	    rdataSet = database.getRdata(name, Type.NS);
+	    rdataSet = getRdata(name, Type.NS);
 	    if(!rdataSet.isEmpty()) return makeResourceRecordSet(rdataSet, name);
 	    while(!name.isRoot()) {
-		rdataSet = database.getRdata(name, Type.SOA);
+		rdataSet = getRdata(name, Type.SOA);
 		if(!rdataSet.isEmpty()) return makeResourceRecordSet(rdataSet, name);
 		name = name.subName();
 	    }
@@ -131,33 +188,62 @@ public final class Resolver {
 	}
 	Set rdataSet;
 	if(name.getZoneNumberCount() == 0) // this hasn't been resolved at all, so return the root NS servers
-	    return makeResourceRecordSet(database.getRdata(0, Type.NS), name);
+	    return makeResourceRecordSet(getRdata(0, Type.NS), name);
 	if(name.isFullyResolved() || name.isStar()) {
 	    // in this case we must be looking for a NS record, not SOA.
 	    // any name which fully exists in the db exists and has an NS record.
 	    while(!name.isRoot()) {
-		rdataSet = database.getRdata(name, Type.NS);
+		rdataSet = getRdata(name, Type.NS);
 		if(!rdataSet.isEmpty()) return makeResourceRecordSet(rdataSet, name);
 		name = name.subName();
 	    }
 	    // we should never get here
 	    LOG.warning("Warning! Went too far in Resolver.getAuthority.");
-	    return makeResourceRecordSet(database.getRdata(0, Type.NS), name);
+	    return makeResourceRecordSet(getRdata(0, Type.NS), name);
 	} else {
 	    // in this case the name is not fully resolved and has no star record,
 	    // so go up the zones.  first look for an soa, then an ns record
 	    name = name.getFullyResolvedName();
 	    while(!name.isRoot()) {
-		rdataSet = database.getRdata(name, Type.SOA);
+		rdataSet = getRdata(name, Type.SOA);
 		if(!rdataSet.isEmpty()) return makeResourceRecordSet(rdataSet, name);
-		rdataSet = database.getRdata(name, Type.NS);
+		rdataSet = getRdata(name, Type.NS);
 		if(!rdataSet.isEmpty()) return makeResourceRecordSet(rdataSet, name);
 		name = name.subName();
 	    }
 	    // should never get here
 	    LOG.warning("Warning! Went too far in Resolver.getAuthority.");
-	    return makeResourceRecordSet(database.getRdata(0, Type.NS), name);
+	    return makeResourceRecordSet(getRdata(0, Type.NS), name);
+	}
+    }
+
+    /** Return the authority records for a name, as getAuthority() does, from the authorityIndex. */
+    private Set getIndexedAuthority(DbName name, boolean noAnswer) throws SQLException {
+	AuthorityIndex.Entry entry = authorityIndex.get(name, store);
+	DbName fullyResolved = name.getFullyResolvedName();
+	if(noAnswer) {
+	    // the NS records of the name itself, unless it is a star, and then the SOA of its zone
+	    if(!name.isStar() && (entry.nsDepth == fullyResolved.count()))
+		return makeResourceRecordSet(entry.getNs(), fullyResolved);
+	    if(entry.soaDepth > 0) return makeResourceRecordSet(entry.getSoa(), fullyResolved.subName(entry.soaDepth));
+	    LOG.warning("getAuthority in SOAOnly section shouldn't have gotten here.");
+	    return Collections.EMPTY_SET;
 	}
+	AuthorityIndex.Entry root = authorityIndex.get(DbName.ROOT, store);
+	if(name.getZoneNumberCount() == 0) // this hasn't been resolved at all, so return the root NS servers
+	    return makeResourceRecordSet((root.nsDepth == 0) ? root.getNs() : new HashSet(), name);
+	if(name.isFullyResolved() || name.isStar()) {
+	    // the nearest NS records; a star which isn't the whole name owns them under the whole name
+	    if(entry.nsDepth == fullyResolved.count()) return makeResourceRecordSet(entry.getNs(), name);
+	    if(entry.nsDepth > 0) return makeResourceRecordSet(entry.getNs(), name.subName(entry.nsDepth));
+	} else {
+	    // the nearer of the SOA and the NS records, and the SOA if they are at the same node
+	    if((entry.soaDepth > 0) && (entry.soaDepth >= entry.nsDepth))
+		return makeResourceRecordSet(entry.getSoa(), fullyResolved.subName(entry.soaDepth));
+	    if(entry.nsDepth > 0) return makeResourceRecordSet(entry.getNs(), fullyResolved.subName(entry.nsDepth));
+	}
+	LOG.warning("Warning! Went too far in Resolver.getAuthority.");
+	return makeResourceRecordSet((root.nsDepth == 0) ? root.getNs() : new HashSet(), DbName.ROOT);
     }
 		
     /** Given a name, find out if this server is a Source of Authority for that name.
@@ -169,13 +255,22 @@ public final class Resolver {
 	if(name == null) throw new NullPointerException("Cannot find isAuthoritative() for a null name.");
 	// if((! name.isFullyResolved()) && (! name.isStar())) return false;
 	name = name.getFullyResolvedName();
+	if(authorityIndex != null) {
+	    // the nearer of the SOA and the NS records, as below; the root only counts for itself
+	    AuthorityIndex.Entry entry = authorityIndex.get(name, store);
+	    if(name.isRoot()) return entry.soaDepth == 0;
+	    if((entry.soaDepth > 0) && (entry.soaDepth >= entry.nsDepth)) return true;
+	    if(entry.nsDepth > 0) return false;
+	    LOG.warning("Warning! Went too far in Resolver.isAuthoritative.");
+	    return false;
+	}
 	if(name.isRoot()) // if this is a root server, there should be an soa for the root record
-	    return ! database.getRdata(0, Type.SOA).isEmpty();
+	    return ! getRdata(0, Type.SOA).isEmpty();
 	Set s = null;
 	while(! name.isRoot()) {
-	    s = database.getRdata(name, Type.SOA); // this should never return a null
+	    s = getRdata(name, Type.SOA); // this should never return a null
 	    if(! s.isEmpty()) return true;
-	    s = database.getRdata(name, Type.NS); // this should never return null
+	    s = getRdata(name, Type.NS); // this should never return null
 	    if(! s.isEmpty()) return false;
 	    name = name.subName();
 	}
@@ -193,7 +288,23 @@ public final class Resolver {
 	    LOG.warning("The provided name is already a dbname: " + n + " so this doesn't make sense.");
 	    return (DbName) n;
 	}
-	return database.getDbName(n);
+	return store.getDbName(n);
+    }
+
+    /** Return the marks which getChangedNames() starts from, so that it finds the names which
+     * change after this is called. */
+    public int[] getChangeMarks() throws SQLException { return getDatabase().getChangeMarks(); }
+
+    /** Return the names which have had nodes or records added since the floors, which came from
+     * getChangeMarks(), as DbNames, apart from the rows in seen, add the rows to seen, and move the marks
+     * past them; see Database.getChangedNodes().  This lets a server find out about changes made by
+     * addName() and addRdata() in another process, such as LoadFile or the console. */
+    public Set getChangedNames(int[] floors, int[] marks, Set seen) throws SQLException {
+	Set nodes = getDatabase().getChangedNodes(floors, marks, seen);
+	Set result = new HashSet(nodes.size());
+	Iterator it = nodes.iterator();
+	while(it.hasNext()) result.add(getDatabase().findDbName(((Integer) it.next()).intValue()));
+	return result;
     }
 
     /** Get exactly one resource record of the given type.  If there are more than
@@ -205,7 +316,7 @@ public final class Resolver {
     public ResourceRecord getOneResourceRecord(DbName zone, int type) throws SQLException {
 	if(zone == null) throw new NullPointerException("Can't getOneResourceRecord for a null zone.");
 	if(type == Type.ANY) throw new IllegalArgumentException("Can't getOneResourceRecord for type = any");
-	Set rdataSet = database.getRdata(zone.getNumber(), type, 1);
+	Set rdataSet = store.getRdata(zone.getNumber(), type, 1);
 	if(rdataSet.isEmpty()) return null;
 	Iterator it = rdataSet.iterator();
 	if(! it.hasNext()) return null;
@@ -225,22 +336,22 @@ public final class Resolver {
 	if(type == Type.ANY) {
 	    if(! zone.isFullyResolved()) return Collections.EMPTY_SET;
 	    Set rdataSet = new HashSet();
-	    rdataSet.addAll(database.getRdata(zone.getNumber(), Type.A, limit));
-	    rdataSet.addAll(database.getRdata(zone.getNumber(), Type.MX, limit));	    
-	    rdataSet.addAll(database.getRdata(zone.getNumber(), Type.NS, limit));	    
-	    rdataSet.addAll(database.getRdata(zone.getNumber(), Type.CNAME, limit));	    
+	    rdataSet.addAll(store.getRdata(zone.getNumber(), Type.A, limit));
+	    rdataSet.addAll(store.getRdata(zone.getNumber(), Type.MX, limit));	    
+	    rdataSet.addAll(store.getRdata(zone.getNumber(), Type.NS, limit));	    
+	    rdataSet.addAll(store.getRdata(zone.getNumber(), Type.CNAME, limit));	    
 	    return makeResourceRecordSet(rdataSet, zone);
 	}
 	if(! Type.isSupported(type)) return Collections.EMPTY_SET;
 	Set rdataSet;
 	if(! zone.isFullyResolved()) {
-	    if(database.isStarZone(zone.getNumber())) {
-		rdataSet = database.getRdata(zone.getNumber(), type, limit);
+	    if(store.isStarZone(zone.getNumber())) {
+		rdataSet = store.getRdata(zone.getNumber(), type, limit);
 	    } else {
 		rdataSet = new HashSet();
 	    }
 	} else { // zone is fully resolved
-	    rdataSet = database.getRdata(zone.getNumber(), type, limit);
+	    rdataSet = store.getRdata(zone.getNumber(), type, limit);
 	}
 	return makeResourceRecordSet(rdataSet, zone);
     }
@@ -267,6 +378,15 @@ public final class Resolver {
 	return makeResourceRecordSet(rdata, newName);
 	}*/
 
+    /** Return the Rdata of a type for a node, from the store. */
+    private Set getRdata(DbName name, int type) throws SQLException {
+	return store.getRdata(name.getNumber(), type, MAX_RECORDS);
+    }
+
+    private Set getRdata(int zoneNumber, int type) throws SQLException {
+	return store.getRdata(zoneNumber, type, MAX_RECORDS);
+    }
+
     /** Given a set of Rdata and a Name, return an equivalent set of resource records. */
     public Set makeResourceRecordSet(Set rdataSet, Name name) {
 	if(rdataSet == null)
@@ -285,7 +405,11 @@ public final class Resolver {
     public int addRdata(int zoneNumber, Rdata rdata) throws IllegalArgumentException, SQLException {
 	if(zoneNumber < 0) throw new IllegalArgumentException("invalid zone number: " + zoneNumber);
 	if(rdata == null) throw new NullPointerException("rdata is null.");
-	return database.addRdata(zoneNumber, rdata);
+	int result = getDatabase().addRdata(zoneNumber, rdata);
+	// new SOA or NS records change the apex or the cut of the node and everything below it
+	if((authorityIndex != null) && ((rdata.getType() == Type.SOA) || (rdata.getType() == Type.NS)))
+	    authorityIndex.clear();
+	return result;
     }
 
     /** Given a name, make sure it is present in the database, and if it is not, add
@@ -310,7 +434,7 @@ public final class Resolver {
 	// make sure that existing.getNumber can return 0 if there is no stored previous node in the db....
 	int lastNode = existing.getNumber();
 	for(int i = zoneCount; i < labels.length; i++) {
-	    newZones[i] = database.createNode(labels[i], lastNode, (i == labels.length - 1) & star);
+	    newZones[i] = getDatabase().createNode(labels[i], lastNode, (i == labels.length - 1) & star);
 	    lastNode = newZones[i];
 	}
 	for(int i = 0; i < zoneCount; i++) newStars[i] = existing.isStar(i);
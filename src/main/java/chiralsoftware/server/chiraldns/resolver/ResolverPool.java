@@ -0,0 +1,133 @@
+package chiralsoftware.server.chiraldns.resolver;
+
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+import java.sql.SQLException;
+
+/** A bounded pool of Resolvers.  Each Resolver has its own database connection, and
+ * a Resolver can only be used by one thread at a time, so a thread must take a Resolver
+ * from the pool, use it, and then give it back.  If there are no idle Resolvers and the pool
+ * is not full, a new Resolver is opened; otherwise the thread waits until another thread gives one back.
+ * This bounds the number of database connections no matter how many threads are resolving.<p>
+ * A pool can instead hand out one shared Resolver, which has no connection of its own and is
+ * thread-safe, such as one over a PooledDatabase.  Then it only bounds how many threads are resolving
+ * at once, and discard() doesn't release anything, because the store replaces failed connections itself.<p>
+ * This class is thread-safe.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+public final class ResolverPool {
+
+    private static final Logger LOG = Logger.getLogger(ResolverPool.class.getName());
+
+    private final Properties resolverProperties;
+
+    /** The store the Resolvers look names and records up in, or null for the database. */
+    private final ZoneStore store;
+
+    /** The cache of nodes the Resolvers share, or null. */
+    private final NodeCache nodeCache;
+
+    /** The cache of names of nodes the Resolvers share, or null. */
+    private final NameCache nameCache;
+
+    /** The index of zone apexes and cuts the Resolvers share, or null. */
+    private final AuthorityIndex authorityIndex;
+
+    /** The Resolver every thread is given, or null if each is given one of its own. */
+    private final Resolver shared;
+
+    /** The Resolvers which are open but not in use. */
+    private final Queue idle = new ConcurrentLinkedQueue();
+
+    /** There is one permit for every Resolver which could be opened. */
+    private final Semaphore permits;
+
+    private final int size;
+
+    private volatile boolean released = false;
+
+    /** Create a new pool which will open up to size Resolvers using the given resolver properties.
+     * No connections are opened until they are needed. */
+    public ResolverPool(Properties resolverProperties, int size) { this(resolverProperties, null, null, null, null, size); }
+
+    /** Create a new pool whose Resolvers look up names and records in a store which they share,
+     * or in the database if it is null, with caches of nodes and of their names, and an index of zone apexes
+     * and cuts, which they share, or none if they are null. */
+    public ResolverPool(Properties resolverProperties, ZoneStore store, NodeCache nodeCache, NameCache nameCache,
+			AuthorityIndex authorityIndex, int size) {
+	if(resolverProperties == null) throw new NullPointerException("Can't create a pool without resolver properties.");
+	if(size < 1) throw new IllegalArgumentException("Pool size: " + size + " is out of range.");
+	this.resolverProperties = resolverProperties;
+	this.store = store;
+	this.nodeCache = nodeCache;
+	this.nameCache = nameCache;
+	this.authorityIndex = authorityIndex;
+	shared = null;
+	this.size = size;
+	permits = new Semaphore(size, true);
+    }
+
+    /** Create a new pool which gives the same thread-safe Resolver to up to size threads at once. */
+    public ResolverPool(Resolver shared, int size) {
+	if(shared == null) throw new NullPointerException("Can't create a pool without a resolver.");
+	if(shared.hasConnection()) throw new IllegalArgumentException("A resolver with a connection of its own can't be shared.");
+	if(size < 1) throw new IllegalArgumentException("Pool size: " + size + " is out of range.");
+	resolverProperties = null;
+	store = null;
+	nodeCache = null;
+	nameCache = null;
+	authorityIndex = null;
+	this.shared = shared;
+	this.size = size;
+	permits = new Semaphore(size, true);
+    }
+
+    /** Return the maximum number of Resolvers in this pool. */
+    public int getSize() { return size; }
+
+    /** Take a Resolver from the pool, waiting until one is available.  The Resolver must be
+     * returned with give(), or with discard() if its connection has failed. */
+    public Resolver take() throws SQLException, InterruptedException {
+	if(released) throw new IllegalStateException("This pool has been released.");
+	permits.acquire();
+	if(shared != null) return shared;
+	Resolver result = (Resolver) idle.poll();
+	if(result != null) return result;
+	try { return new Resolver(resolverProperties, store, nodeCache, nameCache, authorityIndex); }
+	catch(ClassNotFoundException cnfe) {
+	    permits.release();
+	    throw new SQLException("Couldn't load the database driver: " + cnfe.getMessage());
+	}
+	catch(SQLException sqe) { permits.release(); throw sqe; }
+    }
+
+    /** Give a Resolver back to the pool so another thread can use it. */
+    public void give(Resolver resolver) {
+	if(resolver == null) throw new NullPointerException("Can't give back a null resolver.");
+	if(resolver == shared) { permits.release(); return; }
+	if(released) resolver.release();
+	else idle.offer(resolver);
+	permits.release();
+    }
+
+    /** Give back a Resolver which should not be used again, for instance because its
+     * connection threw an SQLException.  A new Resolver will be opened to replace it when needed. */
+    public void discard(Resolver resolver) {
+	if(resolver == null) throw new NullPointerException("Can't discard a null resolver.");
+	if(resolver == shared) { permits.release(); return; }
+	LOG.fine("Discarding a resolver.");
+	resolver.release();
+	permits.release();
+    }
+
+    /** Release all the idle Resolvers.  Resolvers which are in use are released when they
+     * are given back. */
+    public void release() {
+	released = true;
+	Resolver resolver;
+	while((resolver = (Resolver) idle.poll()) != null) resolver.release();
+    }
+}
@@ -0,0 +1,28 @@
+package chiralsoftware.server.chiraldns.resolver;
+
+import chiralsoftware.server.chiraldns.name.DbName;
+import chiralsoftware.server.chiraldns.name.Name;
+import java.sql.SQLException;
+import java.util.Set;
+
+/** A ZoneStore is where a Resolver looks up names and records while it answers queries.  The
+ * Database is one, which asks the database every time, and a MemoryZoneStore is another, which holds a
+ * copy of all the zone data and never asks the database.  Changes to the zone data always go to the Database.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+public interface ZoneStore {
+
+    /** Given a Name, turn it into a DbName by resolving as many labels as it can into nodes. */
+    public DbName getDbName(Name name) throws SQLException;
+
+    /** Given a node number, get a set of up to limit Rdata of the given type.  If the type is not
+     * supported, return an empty set.  The set and its Rdata belong to the caller. */
+    public Set getRdata(int zoneNumber, int type, int limit) throws SQLException;
+
+    /** Determine whether a given node number is a star label or an ordinary label. */
+    public boolean isStarZone(int zoneNumber) throws SQLException;
+
+    /** Given a node number, resolve it fully into a DbName, or return null if it can't be found.
+     * If the number is 0, return the root name. */
+    public DbName findDbName(int number) throws SQLException;
+}
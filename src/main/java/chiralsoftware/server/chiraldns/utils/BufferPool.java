@@ -0,0 +1,121 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** A BufferPool hands out direct ByteBuffers of one size, so that a listener doesn't have to
+ * allocate a buffer for every query it has in flight.  The buffers are slices of big direct
+ * slabs, which are allocated a chunk at a time as they are needed, up to the maximum number of
+ * buffers; after that take() returns null until a buffer is given back.<p>
+ * In debug mode the pool remembers where each buffer was taken, logs buffers which are given
+ * back twice or which don't belong to it, and when it is released it logs every buffer which was
+ * never given back, with the stack trace of the take() which leaked it.<p>
+ * This class is thread-safe; buffers can be taken on one thread and given back on another.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+final class BufferPool {
+
+    private static final Logger LOG = Logger.getLogger(BufferPool.class.getName());
+
+    /** How many buffers are sliced from each slab. */
+    private static final int CHUNK = 64;
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final boolean debug;
+
+    /** The buffers which are not in use. */
+    private final Queue free;
+
+    /** How many buffers have been sliced so far.  Guarded by this. */
+    private int allocated = 0;
+
+    /** In debug mode, every buffer in the pool, so foreign buffers can be caught.  Guarded by itself. */
+    private final Map owned;
+
+    /** In debug mode, the buffers which are in use, each with a Throwable recording where it was
+     * taken.  Guarded by owned. */
+    private final Map outstanding;
+
+    BufferPool(int bufferSize, int maxBuffers, boolean debug) {
+	if(bufferSize < 1) throw new IllegalArgumentException("Buffer size: " + bufferSize + " is out of range.");
+	if(maxBuffers < 1) throw new IllegalArgumentException("Max buffers: " + maxBuffers + " is out of range.");
+	this.bufferSize = bufferSize;
+	this.maxBuffers = maxBuffers;
+	this.debug = debug;
+	free = new ArrayBlockingQueue(maxBuffers);
+	// ByteBuffer.equals compares the contents, so buffers have to be tracked by identity
+	owned = debug ? new IdentityHashMap() : null;
+	outstanding = debug ? new IdentityHashMap() : null;
+    }
+
+    /** Return the size of each buffer. */
+    int getBufferSize() { return bufferSize; }
+
+    /** Take a cleared buffer from the pool, or return null if they are all in use.  The buffer
+     * must be given back with give() when it is no longer needed. */
+    ByteBuffer take() {
+	ByteBuffer result = (ByteBuffer) free.poll();
+	if(result == null) result = grow();
+	if(result == null) return null;
+	result.clear();
+	if(debug) synchronized(owned) { outstanding.put(result, new Throwable("Buffer taken here")); }
+	return result;
+    }
+
+    /** Give a buffer back to the pool.  It must not be used after this. */
+    void give(ByteBuffer bb) {
+	if(bb == null) throw new NullPointerException("Can't give back a null buffer.");
+	if(debug) synchronized(owned) {
+	    if(! owned.containsKey(bb)) {
+		LOG.log(Level.SEVERE, "A buffer which isn't from this pool was given back.", new Throwable());
+		return;
+	    }
+	    if(outstanding.remove(bb) == null) {
+		LOG.log(Level.SEVERE, "A buffer was given back twice.", new Throwable());
+		return;
+	    }
+	}
+	free.offer(bb);
+    }
+
+    /** Slice another chunk of buffers from a new slab, keep all but one of them, and return that one.
+     * Returns null if the pool is already at its maximum size. */
+    private synchronized ByteBuffer grow() {
+	// another thread may have grown the pool while this one waited
+	ByteBuffer result = (ByteBuffer) free.poll();
+	if(result != null) return result;
+	if(allocated >= maxBuffers) return null;
+	int count = maxBuffers - allocated;
+	if(count > CHUNK) count = CHUNK;
+	ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * count);
+	ByteBuffer bb;
+	for(int i = 0; i < count; i++) {
+	    bb = slab.slice(bufferSize * i, bufferSize);
+	    if(debug) synchronized(owned) { owned.put(bb, Boolean.TRUE); }
+	    if(i == 0) result = bb;
+	    else free.offer(bb);
+	}
+	allocated += count;
+	if(LOG.isLoggable(Level.FINEST)) LOG.finest("Pool has grown to " + allocated + " buffers of " + bufferSize + " bytes.");
+	return result;
+    }
+
+    /** In debug mode, log the buffers which were never given back.  The buffers themselves
+     * are freed by the garbage collector when the pool is no longer referenced. */
+    void release() {
+	if(! debug) return;
+	synchronized(owned) {
+	    if(outstanding.isEmpty()) return;
+	    LOG.warning(outstanding.size() + " buffers were never given back to the pool.");
+	    Iterator it = outstanding.values().iterator();
+	    while(it.hasNext()) LOG.log(Level.WARNING, "Leaked buffer:", (Throwable) it.next());
+	}
+    }
+}
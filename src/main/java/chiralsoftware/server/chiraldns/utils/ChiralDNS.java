@@ -1,35 +1,54 @@
 package chiralsoftware.server.chiraldns.utils;
 
+import chiralsoftware.server.chiraldns.resolver.AuthorityIndex;
+import chiralsoftware.server.chiraldns.resolver.ConnectionPool;
+import chiralsoftware.server.chiraldns.resolver.MemoryZoneStore;
+import chiralsoftware.server.chiraldns.resolver.NameCache;
+import chiralsoftware.server.chiraldns.resolver.NodeCache;
+import chiralsoftware.server.chiraldns.resolver.PooledDatabase;
 import chiralsoftware.server.chiraldns.resolver.Resolver;
+import chiralsoftware.server.chiraldns.resolver.ResolverPool;
 import chiralsoftware.server.chiraldns.resolver.Version;
+import chiralsoftware.server.chiraldns.resolver.ZoneStore;
+import chiralsoftware.server.chiraldns.dns.Compressor;
 import chiralsoftware.server.chiraldns.dns.Header;
 import chiralsoftware.server.chiraldns.dns.Message;
-import chiralsoftware.server.chiraldns.dns.PacketDumper;
 import chiralsoftware.server.chiraldns.dns.ProtocolException;
 import chiralsoftware.server.chiraldns.dns.QuestionSection;
 import chiralsoftware.server.chiraldns.dns.ResourceRecord;
 import chiralsoftware.server.chiraldns.dns.Type;
 import chiralsoftware.server.chiraldns.dns.rdata.CNAMERdata;
+import chiralsoftware.server.chiraldns.dns.rdata.OPTRdata;
 import chiralsoftware.server.chiraldns.dns.rdata.Rdata;
 import chiralsoftware.server.chiraldns.name.DbName;
 import chiralsoftware.server.chiraldns.name.Name;
-import chiralsoftware.server.chiraldns.name.NameFactory;
-import chiralsoftware.server.chiraldns.name.QuestionKey;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.DatagramChannel;
-import java.net.SocketAddress;
 import java.net.InetSocketAddress;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.Inet4Address;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Iterator;
 import java.util.Properties;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.StringTokenizer;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.sql.SQLException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /** This is the class that actually starts resolver and listens on the ports.<p>
@@ -87,28 +106,215 @@ public final class ChiralDNS {
 
     private static final Logger LOG = Logger.getLogger(ChiralDNS.class.getName());
 
-    private final Resolver resolver;
     private final Properties resolverProperties;
 
     private final int PORT;
     private final String bindName;
     private final boolean dnsSpam;
 
-    /** This defines the max length of a dns udp packet, which is defined by the protocol to be... */
+    /** This defines the max length of a dns udp packet, which is defined by the protocol to be...
+     * 512 bytes, unless the query has an OPT record which allows a longer one. */
     public static final int LENGTH = 512;
 
     /** Determine whether Named will use response caching.  Response caching
-     * makes queries quicker, but the cache never expires entries, so stale
-     * entries can remain in the cache. */
+     * makes queries quicker.  Each response is cached for the least ttl of its records,
+     * but a change to the zone data is seen within the cacheCheckInterval, which drops the responses it affects. */
     public final static boolean defaultCacheP = false;
     private final boolean cacheP;
 
-    private final DatagramChannel channel;
+    /** The default cacheBytes, 64 megabytes. */
+    public static final int defaultCacheBytes = 64 * 1024 * 1024;
+
+    /** The response cache, which is shared by all the workers, or null if caching is turned off. */
+    private final ResponseCache cache;
+
+    /** The default negativeCacheSize. */
+    public static final int defaultNegativeCacheSize = 10000;
+
+    /** The cache of negative responses by closest encloser, or null if caching or negative caching is turned off. */
+    private final NegativeCache negativeCache;
+
+    /** The copy of the zone data which the resolvers answer from, or null if they ask the database. */
+    private final MemoryZoneStore zoneStore;
+
+    /** The default nodeCacheSize. */
+    public static final int defaultNodeCacheSize = 65536;
+
+    /** The cache of nodes which the resolvers share, or null if they answer from the zoneStore or it is turned off. */
+    private final NodeCache nodeCache;
+
+    /** The default nameCacheSize. */
+    public static final int defaultNameCacheSize = 16384;
+
+    /** The cache of the names of nodes which the resolvers share, or null if they answer from the zoneStore
+     * or it is turned off. */
+    private final NameCache nameCache;
+
+    /** The default authorityIndexSize. */
+    public static final int defaultAuthorityIndexSize = 65536;
+
+    /** The index of zone apexes and cuts which the resolvers share, or null if it is turned off. */
+    private final AuthorityIndex authorityIndex;
+
+    /** The default cacheCheckInterval, in seconds. */
+    public static final int defaultCacheCheckInterval = 5;
+
+    /** Drops cached responses when the zone data changes, or null if caching or checking is turned off. */
+    private final ZoneWatcher zoneWatcher;
+
+    /** The default cacheSaveInterval, in seconds. */
+    public static final int defaultCacheSaveInterval = 300;
+
+    /** Where the response cache is saved, or null if it isn't. */
+    private final Path cacheFile;
+
+    /** How many seconds to wait between saves of the response cache, or 0 to only save it when releasing. */
+    private final int cacheSaveInterval;
+
+    /** Saves the response cache every cacheSaveInterval, or null if it hasn't been started. */
+    private Thread cacheSaver = null;
+
+    /** Saves the response cache when the JVM is shut down, or null if it hasn't been added. */
+    private Thread cacheSaverHook = null;
+
+    /** The default cacheRefreshAhead, in seconds. */
+    public static final int defaultCacheRefreshAhead = 10;
+
+    /** The default cacheRefreshFrequency. */
+    public static final int defaultCacheRefreshFrequency = 3;
+
+    /** Refreshes the cached responses which are asked for often, or null if caching or refreshing is turned off. */
+    private final Refresher refresher;
+
+    /** If this is true, the buffer pools look for leaked buffers. */
+    private final boolean debugBuffers;
+
+    /** How long, in nanoseconds, a query can wait to be resolved before it is shed, or 0 for no limit. */
+    private final long maxQueryAge;
+
+    /** What to do with a query which is shed: SHED_DROP, SHED_REFUSED or SHED_SERVFAIL. */
+    private final int shedAction;
+
+    /** Drop a shed query without answering it. */
+    static final int SHED_DROP = 0;
+
+    /** Answer a shed query with REFUSED. */
+    static final int SHED_REFUSED = 1;
+
+    /** Answer a shed query with SERVFAIL. */
+    static final int SHED_SERVFAIL = 2;
+
+    /** How many queries have been shed. */
+    private final AtomicLong shedCount = new AtomicLong();
+
+    /** The default maxQueryAge in milliseconds, which is less than the time a typical stub
+     * resolver waits before it asks again. */
+    public static final int defaultMaxQueryAge = 2000;
+
+    /** Limits the responses to each client network over UDP, or null if rate limiting is turned off. */
+    private final RateLimiter rateLimiter;
+
+    /** The default rateLimitSlip: every other limited response is sent truncated. */
+    public static final int defaultRateLimitSlip = 2;
+
+    /** The default rateLimitTableSize. */
+    public static final int defaultRateLimitTableSize = 65536;
+
+    /** The largest UDP payload which is advertised in OPT records, or 0 if EDNS is turned off. */
+    private final int ednsBufferSize;
+
+    /** The default ednsBufferSize, which is small enough to avoid IP fragmentation on almost any path. */
+    public static final int defaultEdnsBufferSize = 1232;
+
+    /** The largest ednsBufferSize allowed. */
+    public static final int MAX_EDNS_BUFFER_SIZE = 4096;
+
+    /** Each worker is a thread with its own socket, buffers and resolver.  There are no workers
+     * in virtual, selector and pipeline modes. */
+    private final Worker[] workers;
+
+    /** In virtual mode, this listener hands each query to a virtual thread; otherwise it is null. */
+    private final VirtualThreadListener listener;
+
+    /** In selector mode, this listener runs the event loop for all the addresses; otherwise it is null. */
+    private final SelectorListener selectorListener;
+
+    /** In pipeline mode, this listener runs the receive, resolve and encode stages; otherwise it is null. */
+    private final PipelineListener pipelineListener;
+
+    /** If TCP is turned on, this listener answers queries over TCP; otherwise it is null. */
+    private final TcpListener tcpListener;
+
+    /** In virtual and selector modes, and for TCP, the virtual threads share this pool of resolvers;
+     * otherwise it is null. */
+    private final ResolverPool resolverPool;
+
+    /** The default number of database connections in virtual mode. */
+    public static final int defaultResolverPoolSize = 16;
+
+    /** The default connectionValidateInterval, in seconds. */
+    public static final int defaultConnectionValidateInterval = 30;
+
+    /** The database connections which every resolver shares, or null if each resolver has its own. */
+    private final ConnectionPool connectionPool;
+
+    /** Looks up names and records through the connectionPool, or null if there isn't one. */
+    private final PooledDatabase pooledDatabase;
+
+    /** The default limit on the number of queries in flight in virtual mode. */
+    public static final int defaultMaxInFlight = 10000;
+
+    /** The default number of resolve threads in pipeline mode. */
+    public static final int defaultResolveThreads = 16;
+
+    /** The default number of encode threads in pipeline mode. */
+    public static final int defaultEncodeThreads = 2;
+
+    /** The default length of each queue in pipeline mode. */
+    public static final int defaultQueueSize = 1024;
+
+    /** The default number of packets the mmsg transport moves in one system call. */
+    public static final int defaultMmsgBatch = 32;
+
+    /** The default number of seconds an idle TCP connection stays open. */
+    public static final int defaultTcpIdleTimeout = 10;
+
+    /** The default limit on the number of open TCP connections. */
+    public static final int defaultTcpMaxConnections = 256;
+
+    /** The default limit on the number of queries one TCP connection can have in flight. */
+    public static final int defaultTcpMaxQueries = 16;
+
+    /** The default limit on the number of queries in flight over all the TCP connections.
+     * Each one can hold a buffer for a 64k response. */
+    public static final int defaultTcpMaxInFlight = 1024;
 
     /** Release the resources associated with this chiralDNS. */
     public void release() {
-	resolver.release();
-	try { channel.close(); } catch(IOException ioe) { LOG.warning("Caught ioexception: " + ioe); }
+	if(workers != null) releaseWorkers(workers);
+	if(listener != null) listener.release();
+	if(selectorListener != null) selectorListener.release();
+	if(pipelineListener != null) pipelineListener.release();
+	if(tcpListener != null) tcpListener.release();
+	if(resolverPool != null) resolverPool.release();
+	if(zoneWatcher != null) zoneWatcher.release();
+	if(refresher != null) refresher.release();
+	if(connectionPool != null) connectionPool.release();
+	if(cacheSaver != null) cacheSaver.interrupt();
+	if(cacheSaverHook != null) {
+	    // this fails if the JVM is already shutting down, and then the hook saves the cache
+	    try {
+		Runtime.getRuntime().removeShutdownHook(cacheSaverHook);
+		saveCache();
+	    }
+	    catch(IllegalStateException ise) { LOG.fine("Shutting down; the hook saves the cache."); }
+	}
+	if(cache != null) {
+	    cache.release();
+	    LOG.info(cache.toString());
+	}
+	if(negativeCache != null) LOG.info(negativeCache.toString());
+	if(authorityIndex != null) LOG.info(authorityIndex.toString());
     }
 
     /** Given a message, compose a response message which answers the query.
@@ -119,17 +325,38 @@ public final class ChiralDNS {
 	if(m == null) throw new NullPointerException("No message found in makeResponse");
 	if(resolver == null) throw new NullPointerException("No resolver found in makeResponse.");
 	if(m.getHeader().isQueryResponse()) return null;
+	OPTRdata opt = getOPT(m);
+	if((opt != null) && (opt.getVersion() != 0)) {
+	    // this is the only version there is, so anything else gets BADVERS and no answer
+	    Set optSet = new HashSet(1);
+	    optSet.add(new ResourceRecord(Name.ROOT, new OPTRdata(ednsBufferSize, OPTRdata.BADVERS, 0, false)));
+	    Header h = new Header(m.getHeader().getID(), true, false, false, false, false,
+				  (byte) (OPTRdata.BADVERS & 15), Header.QUERY);
+	    return new Message(h, m.getQuestion(), new HashSet(), new HashSet(), optSet);
+	}
 	// for now we assume that all queries are QUERY opcode (ie, not reverse)
 	// and all are looking only for one A record.  Later add other opcodes
 	// and record types.
 	Header queryHeader = m.getHeader();
 	QuestionSection questionSection = m.getQuestion();
 	Name questionName = questionSection.getName();
+	// this is taken before the database is read, so a change while it is being read isn't missed
+	int negativeGeneration = (negativeCache == null) ? 0 : negativeCache.getGeneration();
 	// Turn the questioname into a DbName.  This is a win for efficiency, but it does
 	// somewhat break the abstraction of the named.  But the speedup is worth it.
 	questionName = resolver.getDbName(questionName);
 	Name newQuestionName = null;
 	int type = questionSection.getType();
+	// every name under the same closest encloser gets the same negative response
+	long negativeKey = NegativeCache.key((DbName) questionName, type);
+	NegativeCache.Entry negative = (negativeCache == null) ? null : negativeCache.get(negativeKey);
+	if(negative != null) {
+	    Set additional = negative.getAdditional();
+	    if(opt != null) additional.add(new ResourceRecord(Name.ROOT, new OPTRdata(ednsBufferSize, 0, 0, false)));
+	    Header h = new Header(queryHeader.getID(), true, negative.authoritative, false, false, false,
+				  negative.rCode, Header.QUERY);
+	    return new Message(h, questionSection, new HashSet(), negative.getAuthority(), additional);
+	}
 	Set answer = resolver.getResourceRecordSet((DbName) questionName, type);
 	if(answer.isEmpty()) {
 	    ResourceRecord cnameRecord = resolver.getOneResourceRecord((DbName) questionName, Type.CNAME);
@@ -161,6 +388,10 @@ public final class ChiralDNS {
 	}
 	if(dnsSpam & (m.getQuestion().getType() == Type.NS))
 	    additionalRecords.addAll(resolver.getResourceRecordSet((DbName) questionName, Type.TXT));
+	if((negativeCache != null) && answer.isEmpty())
+	    negativeCache.put(negativeKey, negativeGeneration, rCode, isAuthoritative, authorityRecords, additionalRecords);
+	if(opt != null)
+	    additionalRecords.add(new ResourceRecord(Name.ROOT, new OPTRdata(ednsBufferSize, 0, 0, false)));
 	Message result = new Message(responseHeader, questionSection, answer,
 				     authorityRecords, additionalRecords);
 	result.updateCounts();
@@ -203,7 +434,115 @@ public final class ChiralDNS {
 	return result;
     }
 
-    /** Construct a new Named by loading in configuration information. */
+    /** Construct a new Named by loading in configuration information.
+     * These are the settings which are read from the NamedSettings file:
+     * <ul>
+     * <li><code>portNumber</code>: the port to listen on; defaults to 53.</li>
+     * <li><code>bindName</code>: the address to bind to; defaults to all addresses.</li>
+     * <li><code>bindAddresses</code>: a list of addresses to listen on, separated by commas or
+     * spaces, such as <code>192.0.2.1:53, [2001:db8::1]:53, 127.0.0.1:5353</code>.  An address without a port
+     * uses <code>portNumber</code>.  Only selector mode can listen on more than one address;
+     * if this isn't set, <code>bindName</code> and <code>portNumber</code> are used.</li>
+     * <li><code>cache</code>: <code>yes</code> to turn on response caching.</li>
+     * <li><code>cacheBytes</code>: how much memory the response cache can use; defaults to 64 megabytes.
+     * The responses are kept off the heap; the index and the LRU lists take about 16 percent more.
+     * When it is full, the responses to the questions which are asked least often are evicted.</li>
+     * <li><code>negativeCacheSize</code>: when caching is on, how many closest enclosers to keep
+     * NXDOMAIN and NODATA responses for, so that the names under an encloser which isn't there share
+     * one resolution; defaults to 10000, or 0 to turn negative caching off.</li>
+     * <li><code>zoneStore</code>: <code>memory</code> to read all the zone data into memory when the
+     * server starts, and answer from that without asking the database, or <code>database</code> to ask the
+     * database for every query that isn't cached; defaults to <code>database</code>.</li>
+     * <li><code>nodeCacheSize</code>: when the <code>zoneStore</code> is <code>database</code>, how many
+     * labels to remember the nodes of, or that they aren't there, so that most names are resolved without
+     * asking the database; defaults to 65536, or 0 to ask the database for every label.</li>
+     * <li><code>nameCacheSize</code>: when the <code>zoneStore</code> is <code>database</code>, how many
+     * names of nodes to remember, so that the names in MX, NS, CNAME and SOA records are built without
+     * asking the database; defaults to 16384, or 0 to ask the database for every one.</li>
+     * <li><code>authorityIndexSize</code>: how many nodes to remember the zone apex and the zone cut of,
+     * with their SOA and NS records, so that the authority section and the AA bit of a response are
+     * found without walking up the name; defaults to 65536, or 0 to walk up the name every time.</li>
+     * <li><code>cacheCheckInterval</code>: how many seconds to wait between looks at the database for
+     * names and records added by LoadFile or the console, whose cached responses are then dropped, along with
+     * those of the names below them, and which are read into memory again if the <code>zoneStore</code>
+     * is <code>memory</code>, or which clear the node cache; defaults to 5, or 0 to never look.</li>
+     * <li><code>cacheFile</code>: when caching is on, a file to save the response cache to when the
+     * server stops or is shut down, and every <code>cacheSaveInterval</code>, and to load it from when
+     * it starts, so that it starts out warm.  Responses which have expired or whose zone data has changed
+     * since they were saved aren't loaded.  If this isn't set, the cache isn't saved.</li>
+     * <li><code>cacheSaveInterval</code>: how many seconds to wait between saves of the response cache;
+     * defaults to 300, or 0 to only save it when the server stops.</li>
+     * <li><code>cacheRefreshAhead</code>: how many seconds before a cached response expires to resolve
+     * it again, if its question is asked often, so that it never misses the cache; defaults to 10, or 0 to
+     * let every response expire.  Responses whose ttl is less than twice this aren't refreshed.</li>
+     * <li><code>cacheRefreshFrequency</code>: how often a question must have been asked lately for its
+     * response to be refreshed, as counted by the cache, from 1 to 15; defaults to 3.</li>
+     * <li><code>dnsSpam</code>: <code>yes</code> to add TXT records to NS responses.</li>
+     * <li><code>ednsBufferSize</code>: the largest UDP response to send to a query with an EDNS0
+     * OPT record, which is also the payload size advertised in the response's OPT record; from 512 to 4096,
+     * or 0 to ignore OPT records.  Defaults to 1232.</li>
+     * <li><code>debugBuffers</code>: <code>yes</code> to make the buffer pools track every buffer
+     * and log the ones which are never given back.</li>
+     * <li><code>workers</code>: how many worker threads answer queries; defaults to the number
+     * of processors.  Each worker has its own socket, receive buffer and database connection,
+     * so a slow query only holds up the worker that is answering it.</li>
+     * <li><code>mode</code>: <code>workers</code> (the default) to answer queries with the
+     * workers, or <code>virtual</code> to receive on one socket and answer each query on its own
+     * virtual thread, or <code>selector</code> to receive on all the bind addresses from one
+     * non-blocking thread and answer each query on its own virtual thread, or <code>pipeline</code>
+     * to answer queries in receive, resolve and encode stages connected by bounded queues.</li>
+     * <li><code>resolverPoolSize</code>: in virtual and selector modes, how many database connections the
+     * virtual threads share, or with a <code>connectionPoolSize</code>, how many of them can be resolving
+     * at once; defaults to 16.</li>
+     * <li><code>connectionPoolSize</code>: how many database connections every worker, thread and mode shares,
+     * through one thread-safe resolver which checks connections before it uses them and opens new ones
+     * when they fail, so that a failed connection costs a query, not a worker; defaults to 0, which gives
+     * each worker and resolve thread, and each resolver in the <code>resolverPoolSize</code> pool, a
+     * connection of its own.  The zone watcher always has its own.</li>
+     * <li><code>connectionValidateInterval</code>: how many seconds a pooled connection can be idle before
+     * it is checked; defaults to 30.</li>
+     * <li><code>maxInFlight</code>: in virtual and selector modes, how many queries can be waiting for
+     * an answer before new queries are dropped; defaults to 10000.</li>
+     * <li><code>resolveThreads</code>: in pipeline mode, how many threads, each with its own
+     * database connection, resolve queries; defaults to 16.</li>
+     * <li><code>encodeThreads</code>: in pipeline mode, how many threads encode and send responses;
+     * defaults to 2.</li>
+     * <li><code>queueSize</code>: in pipeline mode, how many queries can wait for each of the resolve
+     * and encode stages; defaults to 1024.</li>
+     * <li><code>maxQueueDepth</code>: in pipeline mode, how deep the resolve queue can get before
+     * queries which miss the cache are shed; defaults to the queueSize.</li>
+     * <li><code>maxQueryAge</code>: how many milliseconds a query which misses the cache can wait
+     * to be resolved before it is shed, in every mode but workers mode; defaults to 2000, and 0 means no limit.
+     * Cache hits are answered right away in those modes, without waiting behind the queries
+     * which need the database.</li>
+     * <li><code>shedAction</code>: what to do with a query which is shed: <code>servfail</code>
+     * (the default) or <code>refused</code> to answer it with that error, or <code>drop</code>
+     * to not answer it at all.</li>
+     * <li><code>rateLimit</code>: how many responses per second each client network, a /24 for IPv4
+     * or a /56 for IPv6, can get for each question over UDP; defaults to 0, which turns rate limiting off.
+     * Queries over the limit are dropped before the cache or the database is used.</li>
+     * <li><code>rateLimitMisses</code>: how many responses per second each client network can get over UDP
+     * which aren't in the cache, whatever the question, so that a flood of different names can't get past
+     * rateLimit; defaults to rateLimit.</li>
+     * <li><code>rateLimitSlip</code>: one out of this many queries over the rate limit is answered
+     * with an empty, truncated response, so a real client can ask again over TCP; defaults to 2, and
+     * 0 means they are all dropped.</li>
+     * <li><code>rateLimitTableSize</code>: how many token buckets the rate limiter keeps; defaults to 65536.</li>
+     * <li><code>transport</code>: in workers mode, <code>nio</code> (the default) for datagram channels,
+     * or <code>mmsg</code> to receive and send batches of packets with recvmmsg and sendmmsg.
+     * mmsg only works on 64 bit Linux; elsewhere the nio transport is used.</li>
+     * <li><code>mmsgBatch</code>: how many packets the mmsg transport moves in one system call;
+     * defaults to 32.</li>
+     * <li><code>tcp</code>: <code>yes</code> to also answer queries over TCP on the same addresses
+     * and port, in any mode.  TCP queries are answered on virtual threads with resolvers from the
+     * pool, so <code>resolverPoolSize</code> applies to them too.</li>
+     * <li><code>tcpIdleTimeout</code>: how many seconds a TCP connection with nothing in flight
+     * stays open; defaults to 10.</li>
+     * <li><code>tcpMaxConnections</code>: how many TCP connections can be open at once; defaults to 256.</li>
+     * <li><code>tcpMaxQueries</code>: how many queries one TCP connection can have in flight; defaults to 16.</li>
+     * <li><code>tcpMaxInFlight</code>: how many TCP queries can be in flight over all the connections;
+     * defaults to 1024.</li>
+     * </ul> */
     public ChiralDNS() throws IOException, NumberFormatException, SQLException, ClassNotFoundException {
 	String fileName = System.getProperty("chiralDNS.NamedSettings");
 	if(fileName == null) fileName = "NamedSettings";
@@ -218,92 +557,649 @@ public final class ChiralDNS {
 	String cacheString = properties.getProperty("cache");
 	if(cacheString == null) cacheP = defaultCacheP;
 	else cacheP = cacheString.equalsIgnoreCase("yes");
-	fileName = System.getProperty("chiralDNS.ResolverSettings");
-	if(fileName == null) fileName = "ResolverSettings";
-	LOG.finest("Loading resolver settings from this file: " + fileName);
-	fis = new FileInputStream(fileName);
-	resolverProperties = new Properties();
-	resolverProperties.load(fis);
-	fis.close();
-	resolver = new Resolver(resolverProperties);
-	if(resolver == null) throw new IllegalStateException("Couldn't create a resolver.");
-	if(PORT == 0) throw new IllegalStateException("Port number couldn't be found.");
-	bindName = properties.getProperty("bindName");
-	String spamString = properties.getProperty("dnsSpam");
-	dnsSpam = ((spamString != null) && spamString.equalsIgnoreCase("yes"));
-	channel = DatagramChannel.open();
-	InetSocketAddress isa;
-	if(bindName == null) isa = new InetSocketAddress(PORT);
-	else isa = new InetSocketAddress(InetAddress.getByName(bindName), PORT);
-	channel.socket().bind(isa);
-	LOG.finest("Datagram channel is open.");
+	// whatever is opened before something fails is released, since main() tries again
+	try {
+	    int cacheBytes = getIntProperty(properties, "cacheBytes", defaultCacheBytes);
+	    if(cacheBytes < 1024 * 1024) throw new IllegalStateException("cacheBytes: " + cacheBytes + " is too small.");
+	    cache = cacheP ? new ResponseCache(cacheBytes) : null;
+	    int negativeCacheSize = getIntProperty(properties, "negativeCacheSize", defaultNegativeCacheSize);
+	    if(negativeCacheSize < 0) throw new IllegalStateException("negativeCacheSize can't be negative.");
+	    negativeCache = (cacheP && (negativeCacheSize != 0)) ? new NegativeCache(negativeCacheSize) : null;
+	    fileName = System.getProperty("chiralDNS.ResolverSettings");
+	    if(fileName == null) fileName = "ResolverSettings";
+	    LOG.finest("Loading resolver settings from this file: " + fileName);
+	    fis = new FileInputStream(fileName);
+	    resolverProperties = new Properties();
+	    resolverProperties.load(fis);
+	    fis.close();
+	    String zoneStoreString = properties.getProperty("zoneStore");
+	    if((zoneStoreString == null) || zoneStoreString.equalsIgnoreCase("database")) zoneStore = null;
+	    else if(zoneStoreString.equalsIgnoreCase("memory")) zoneStore = new MemoryZoneStore();
+	    else throw new IllegalStateException("Unknown zoneStore: " + zoneStoreString);
+	    int nodeCacheSize = getIntProperty(properties, "nodeCacheSize", defaultNodeCacheSize);
+	    if(nodeCacheSize < 0) throw new IllegalStateException("nodeCacheSize can't be negative.");
+	    nodeCache = ((zoneStore != null) || (nodeCacheSize == 0)) ? null : new NodeCache(nodeCacheSize);
+	    int nameCacheSize = getIntProperty(properties, "nameCacheSize", defaultNameCacheSize);
+	    if(nameCacheSize < 0) throw new IllegalStateException("nameCacheSize can't be negative.");
+	    nameCache = ((zoneStore != null) || (nameCacheSize == 0)) ? null : new NameCache(nameCacheSize);
+	    int authorityIndexSize = getIntProperty(properties, "authorityIndexSize", defaultAuthorityIndexSize);
+	    if(authorityIndexSize < 0) throw new IllegalStateException("authorityIndexSize can't be negative.");
+	    authorityIndex = (authorityIndexSize == 0) ? null : new AuthorityIndex(authorityIndexSize);
+	    int connectionPoolSize = getIntProperty(properties, "connectionPoolSize", 0);
+	    if(connectionPoolSize < 0) throw new IllegalStateException("connectionPoolSize can't be negative.");
+	    int connectionValidateInterval =
+		getIntProperty(properties, "connectionValidateInterval", defaultConnectionValidateInterval);
+	    if(connectionValidateInterval < 0) throw new IllegalStateException("connectionValidateInterval can't be negative.");
+	    connectionPool = (connectionPoolSize == 0) ? null :
+		new ConnectionPool(resolverProperties, nodeCache, nameCache, connectionPoolSize, connectionValidateInterval);
+	    pooledDatabase = (connectionPool == null) ? null : new PooledDatabase(connectionPool);
+	    int cacheCheckInterval = getIntProperty(properties, "cacheCheckInterval", defaultCacheCheckInterval);
+	    if(cacheCheckInterval < 0) throw new IllegalStateException("cacheCheckInterval can't be negative.");
+	    zoneWatcher = (((cache == null) && (zoneStore == null) && (nodeCache == null) && (authorityIndex == null)) ||
+			   (cacheCheckInterval == 0)) ? null :
+		new ZoneWatcher(new Resolver(resolverProperties, zoneStore, nodeCache, nameCache, null), cache, negativeCache,
+				zoneStore, nodeCache, authorityIndex, cacheCheckInterval);
+	    if(zoneStore != null) {
+		// this comes after the watcher has taken its marks, so that no change is missed
+		Resolver loader = new Resolver(resolverProperties);
+		try { loader.load(zoneStore); }
+		finally { loader.release(); }
+	    }
+	    int cacheRefreshAhead = getIntProperty(properties, "cacheRefreshAhead", defaultCacheRefreshAhead);
+	    if(cacheRefreshAhead < 0) throw new IllegalStateException("cacheRefreshAhead can't be negative.");
+	    int cacheRefreshFrequency = getIntProperty(properties, "cacheRefreshFrequency", defaultCacheRefreshFrequency);
+	    if((cacheRefreshFrequency < 1) || (cacheRefreshFrequency > 15))
+		throw new IllegalStateException("cacheRefreshFrequency: " + cacheRefreshFrequency + " is out of range.");
+	    if((cache != null) && (cacheRefreshAhead != 0)) {
+		// this comes before the cache is loaded, so that the loaded responses are refreshed too
+		cache.setRefresh(cacheRefreshAhead, cacheRefreshFrequency);
+		refresher = new Refresher(this, cache, newResolver());
+	    }
+	    else refresher = null;
+	    String cacheFileString = properties.getProperty("cacheFile");
+	    cacheFile = ((cache == null) || (cacheFileString == null)) ? null : Paths.get(cacheFileString);
+	    cacheSaveInterval = getIntProperty(properties, "cacheSaveInterval", defaultCacheSaveInterval);
+	    if(cacheSaveInterval < 0) throw new IllegalStateException("cacheSaveInterval can't be negative.");
+	    if(cacheFile != null) loadCache();
+	    if(PORT == 0) throw new IllegalStateException("Port number couldn't be found.");
+	    bindName = properties.getProperty("bindName");
+	    ednsBufferSize = getIntProperty(properties, "ednsBufferSize", defaultEdnsBufferSize);
+	    if((ednsBufferSize != 0) && ((ednsBufferSize < LENGTH) || (ednsBufferSize > MAX_EDNS_BUFFER_SIZE)))
+		throw new IllegalStateException("ednsBufferSize: " + ednsBufferSize + " is out of range.");
+	    String debugString = properties.getProperty("debugBuffers");
+	    debugBuffers = ((debugString != null) && debugString.equalsIgnoreCase("yes"));
+	    maxQueryAge = getIntProperty(properties, "maxQueryAge", defaultMaxQueryAge) * 1000000L;
+	    if(maxQueryAge < 0) throw new IllegalStateException("maxQueryAge can't be negative.");
+	    String shedString = properties.getProperty("shedAction");
+	    if((shedString == null) || shedString.equalsIgnoreCase("servfail")) shedAction = SHED_SERVFAIL;
+	    else if(shedString.equalsIgnoreCase("refused")) shedAction = SHED_REFUSED;
+	    else if(shedString.equalsIgnoreCase("drop")) shedAction = SHED_DROP;
+	    else throw new IllegalStateException("Unknown shedAction: " + shedString);
+	    int rateLimit = getIntProperty(properties, "rateLimit", 0);
+	    if((rateLimit < 0) || (rateLimit > RateLimiter.MAX_RATE))
+		throw new IllegalStateException("rateLimit: " + rateLimit + " is out of range.");
+	    int rateLimitSlip = getIntProperty(properties, "rateLimitSlip", defaultRateLimitSlip);
+	    if(rateLimitSlip < 0) throw new IllegalStateException("rateLimitSlip can't be negative.");
+	    int rateLimitTableSize = getIntProperty(properties, "rateLimitTableSize", defaultRateLimitTableSize);
+	    if((rateLimitTableSize < 1) || (rateLimitTableSize > (1 << 30)))
+		throw new IllegalStateException("rateLimitTableSize: " + rateLimitTableSize + " is out of range.");
+	    int rateLimitMisses = getIntProperty(properties, "rateLimitMisses", rateLimit);
+	    if((rateLimit != 0) && ((rateLimitMisses < 1) || (rateLimitMisses > RateLimiter.MAX_RATE)))
+		throw new IllegalStateException("rateLimitMisses: " + rateLimitMisses + " is out of range.");
+	    rateLimiter = (rateLimit == 0) ? null :
+		new RateLimiter(rateLimit, rateLimitMisses, rateLimitSlip, rateLimitTableSize);
+	    String spamString = properties.getProperty("dnsSpam");
+	    dnsSpam = ((spamString != null) && spamString.equalsIgnoreCase("yes"));
+	    InetSocketAddress[] addresses;
+	    String addressesString = properties.getProperty("bindAddresses");
+	    if(addressesString != null) addresses = parseAddresses(addressesString, PORT);
+	    else if(bindName == null) addresses = new InetSocketAddress[] { new InetSocketAddress(PORT) };
+	    else addresses = new InetSocketAddress[] { new InetSocketAddress(InetAddress.getByName(bindName), PORT) };
+	    String modeString = properties.getProperty("mode");
+	    boolean selectorMode = (modeString != null) && modeString.equalsIgnoreCase("selector");
+	    boolean virtualMode = (modeString != null) && modeString.equalsIgnoreCase("virtual");
+	    boolean pipelineMode = (modeString != null) && modeString.equalsIgnoreCase("pipeline");
+	    if((modeString != null) && !selectorMode && !virtualMode && !pipelineMode &&
+	       !modeString.equalsIgnoreCase("workers"))
+		throw new IllegalStateException("Unknown mode: " + modeString);
+	    if(!selectorMode && (addresses.length != 1))
+		throw new IllegalStateException("Only selector mode can listen on more than one address.");
+	    String tcpString = properties.getProperty("tcp");
+	    boolean tcp = (tcpString != null) && tcpString.equalsIgnoreCase("yes");
+	    if((selectorMode || virtualMode || tcp) && (connectionPool != null))
+		resolverPool = new ResolverPool(newResolver(),
+						getIntProperty(properties, "resolverPoolSize", defaultResolverPoolSize));
+	    else if(selectorMode || virtualMode || tcp)
+		resolverPool = new ResolverPool(resolverProperties, zoneStore, nodeCache, nameCache, authorityIndex,
+						getIntProperty(properties, "resolverPoolSize", defaultResolverPoolSize));
+	    else resolverPool = null;
+	    if(selectorMode) {
+		workers = new Worker[0];
+		listener = null;
+		pipelineListener = null;
+		selectorListener = new SelectorListener(this, addresses, resolverPool,
+							getIntProperty(properties, "maxInFlight", defaultMaxInFlight));
+		LOG.finest("Datagram channels are open in selector mode.");
+	    } else if(virtualMode) {
+		workers = new Worker[0];
+		selectorListener = null;
+		pipelineListener = null;
+		listener = new VirtualThreadListener(this, openChannel(addresses[0], false), resolverPool,
+						     getIntProperty(properties, "maxInFlight", defaultMaxInFlight));
+		LOG.finest("Datagram channel is open in virtual mode.");
+	    } else if(pipelineMode) {
+		workers = new Worker[0];
+		listener = null;
+		selectorListener = null;
+		DatagramChannel channel = openChannel(addresses[0], false);
+		try {
+		    int queueSize = getIntProperty(properties, "queueSize", defaultQueueSize);
+		    pipelineListener = new PipelineListener(this, channel,
+							    getIntProperty(properties, "resolveThreads", defaultResolveThreads),
+							    getIntProperty(properties, "encodeThreads", defaultEncodeThreads),
+							    queueSize,
+							    getIntProperty(properties, "maxQueueDepth", queueSize));
+		}
+		catch(Exception e) { channel.close(); throw e; }
+		LOG.finest("Datagram channel is open in pipeline mode.");
+	    } else {
+		listener = null;
+		selectorListener = null;
+		pipelineListener = null;
+		workers = openWorkers(properties, addresses[0]);
+	    }
+	    if(tcp) {
+		tcpListener = new TcpListener(this, addresses, resolverPool,
+					      getIntProperty(properties, "tcpIdleTimeout", defaultTcpIdleTimeout),
+					      getIntProperty(properties, "tcpMaxConnections", defaultTcpMaxConnections),
+					      getIntProperty(properties, "tcpMaxQueries", defaultTcpMaxQueries),
+					      getIntProperty(properties, "tcpMaxInFlight", defaultTcpMaxInFlight));
+	    } else tcpListener = null;
+	}
+	catch(Exception e) { release(); throw e; }
     }
 
-    /** Run a Named thread.  After the loop starts, it will not throw any exceptions,
-     * because it should continue resolving even if an exception has occured.  */
-    public void run() throws IOException, SocketException {
-	// A direct buffer offers the highest IO performance
-	ByteBuffer bb = ByteBuffer.allocateDirect(LENGTH);
-	SocketAddress sa = null;
-	Message m;
-	QuestionKey q;
-	Map cache = new HashMap();
-	byte[] cached;
-
-	while(true) {
-	    bb.clear();
-	    sa = channel.receive(bb);
-	    if(false) { // dump the packets for debugging
-		bb.flip();
-		LOG.finest("Received a packet from this sa: " + sa);
-		LOG.finest("here is the dump:");
-		LOG.finest(PacketDumper.decode(bb));
+    /** Open the sockets and the database connections for the workers. */
+    private Worker[] openWorkers(Properties properties, InetSocketAddress isa)
+	throws IOException, SQLException, ClassNotFoundException {
+	int workerCount = getIntProperty(properties, "workers", Runtime.getRuntime().availableProcessors());
+	if(workerCount < 1) throw new IllegalStateException("There must be at least one worker.");
+	Worker[] result = new Worker[workerCount];
+	String transportString = properties.getProperty("transport");
+	if((transportString != null) && transportString.equalsIgnoreCase("mmsg")) {
+	    if(MmsgWorker.isSupported()) {
+		int batch = getIntProperty(properties, "mmsgBatch", defaultMmsgBatch);
+		Resolver resolver = null;
+		try {
+		    for(int i = 0; i < result.length; i++) {
+			resolver = newResolver();
+			result[i] = new MmsgWorker(this, isa, resolver, batch);
+			resolver = null;
+		    }
+		}
+		catch(Exception e) {
+		    // the last resolver might not belong to a worker yet
+		    if(resolver != null) resolver.release();
+		    releaseWorkers(result);
+		    throw e;
+		}
+		LOG.finest("Sockets are open for " + workerCount + " mmsg workers.");
+		return result;
+	    }
+	    LOG.info("The mmsg transport is not supported on this platform; using nio.");
+	} else if((transportString != null) && !transportString.equalsIgnoreCase("nio"))
+	    throw new IllegalStateException("Unknown transport: " + transportString);
+	// with SO_REUSEPORT every worker binds its own socket to the same address and the kernel
+	// spreads the incoming packets across them.  Without it, the workers share one socket.
+	boolean reusePort = (workerCount > 1) && supportsReusePort();
+	if((workerCount > 1) && !reusePort)
+	    LOG.info("SO_REUSEPORT is not supported; the " + workerCount + " workers will share one socket.");
+	DatagramChannel channel = null;
+	try {
+	    for(int i = 0; i < result.length; i++) {
+		if((channel == null) || reusePort) channel = openChannel(isa, reusePort);
+		result[i] = new UdpWorker(this, channel, newResolver());
 	    }
-	    bb.flip();
-	    bb.mark();
-	    q = NameFactory.getQuestionKey(bb);
-	    bb.reset();
-	    if(cacheP) {
-		if((q != null) && cache.containsKey(q)) {
-		    cached = (byte[]) cache.get(q);
-		    bb.position(2); // preserve the id (short) in the query
-		    bb.limit(cached.length + 2); // there should be a more natural way to do this, right?
-		    bb.put(cached);
-		    bb.flip();
-		    channel.send(bb, sa);
-		    continue;
+	}
+	catch(Exception e) {
+	    // the last channel might not belong to a worker yet
+	    if(channel != null) channel.close();
+	    releaseWorkers(result);
+	    throw e;
+	}
+	LOG.finest("Datagram channels are open for " + workerCount + " workers.");
+	return result;
+    }
+
+    /** Open a new Resolver, which answers from the zoneStore if there is one, and otherwise shares the nodeCache
+     * and the nameCache, and finds zone apexes and cuts in the authorityIndex.  It has a database connection of its own, unless there is a connectionPool, in which
+     * case it shares the pool's connections, and has nothing to release. */
+    Resolver newResolver() throws SQLException, ClassNotFoundException {
+	if(connectionPool != null)
+	    return new Resolver((zoneStore != null) ? (ZoneStore) zoneStore : pooledDatabase, authorityIndex);
+	return new Resolver(resolverProperties, zoneStore, nodeCache, nameCache, authorityIndex);
+    }
+
+    private static void releaseWorkers(Worker[] workers) {
+	for(int i = 0; i < workers.length; i++) if(workers[i] != null) workers[i].release();
+    }
+
+    /** Read an int setting, or return the default value if it isn't set. */
+    private static int getIntProperty(Properties properties, String name, int defaultValue) {
+	String s = properties.getProperty(name);
+	if(s == null) return defaultValue;
+	return Integer.parseInt(s.trim());
+    }
+
+    /** Find out if datagram sockets on this platform support SO_REUSEPORT. */
+    private static boolean supportsReusePort() throws IOException {
+	DatagramChannel channel = DatagramChannel.open();
+	boolean result = channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+	channel.close();
+	return result;
+    }
+
+    /** Parse a list of addresses, separated by commas or spaces.  Each address can have a port,
+     * as in <code>192.0.2.1:53</code> or <code>[2001:db8::1]:53</code>; otherwise the default port
+     * is used.  An IPv6 address without a port doesn't need the brackets. */
+    static InetSocketAddress[] parseAddresses(String s, int defaultPort) throws UnknownHostException {
+	if(s == null) throw new NullPointerException("Can't parse a null address list.");
+	StringTokenizer st = new StringTokenizer(s, ", \t");
+	InetSocketAddress[] result = new InetSocketAddress[st.countTokens()];
+	if(result.length == 0) throw new IllegalArgumentException("No addresses in: " + s);
+	String token, host;
+	int port, colon;
+	for(int i = 0; i < result.length; i++) {
+	    token = st.nextToken();
+	    port = defaultPort;
+	    colon = token.lastIndexOf(':');
+	    if(token.startsWith("[")) {
+		int close = token.indexOf(']');
+		if(close == -1) throw new IllegalArgumentException("Bad address: " + token);
+		host = token.substring(1, close);
+		if(colon > close) port = Integer.parseInt(token.substring(colon + 1));
+	    } else if((colon != -1) && (colon == token.indexOf(':'))) { // exactly one colon, so host:port
+		host = token.substring(0, colon);
+		port = Integer.parseInt(token.substring(colon + 1));
+	    } else host = token;
+	    if((port < 1) || (port > 65535)) throw new IllegalArgumentException("Port out of range in: " + token);
+	    result[i] = new InetSocketAddress(InetAddress.getByName(host), port);
+	}
+	return result;
+    }
+
+    /** Open a datagram channel bound to the given address.  An IPv4 address gets an IPv4
+     * socket, so that it doesn't collide with an IPv6 socket bound to the same port. */
+    static DatagramChannel openChannel(InetSocketAddress isa, boolean reusePort) throws IOException {
+	DatagramChannel channel;
+	if(isa.getAddress() instanceof Inet4Address) channel = DatagramChannel.open(StandardProtocolFamily.INET);
+	else channel = DatagramChannel.open();
+	try {
+	    if(reusePort) channel.setOption(StandardSocketOptions.SO_REUSEPORT, Boolean.TRUE);
+	    channel.bind(isa);
+	}
+	catch(IOException ioe) { channel.close(); throw ioe; }
+	return channel;
+    }
+
+    /** Answer the query packet which is in the query's buffer, from position to limit, and leave the
+     * response in the same buffer, ready to send.  This is called concurrently by all the workers,
+     * each with its own buffer and resolver.
+     * In virtual mode, and for TCP, it is called concurrently by the virtual threads, each with a resolver
+     * taken from the pool.<p>
+     * A UDP response can be 512 bytes long, or if the query has an OPT record, as long as the
+     * payload size it asks for, up to the ednsBufferSize.  A TCP response can fill the buffer.
+     * A response which is too long is sent truncated, with the TC bit set.  Responses to queries
+     * with and without OPT records differ, so they are cached separately, and a cached response
+     * is only used if it fits.
+     * This does all the steps of answering a query, prepare(), resolve() and encode(), on one thread.
+     * A worker which answers one query at a time reset()s the same Query for each packet,
+     * so that a query which is answered from the cache makes no objects.
+     * @return true if there is a response to send, or false if the packet should be dropped. */
+    boolean answer(Query query, Resolver resolver) throws SQLException {
+	int state = prepare(query);
+	if(state != RESOLVE) return state == ANSWERED;
+	return resolve(query, resolver) && encode(query);
+    }
+
+    /** prepare() found the response in the cache, and it is in the buffer, ready to send. */
+    static final int ANSWERED = 0;
+
+    /** prepare() found that the packet should be dropped. */
+    static final int DROP = 1;
+
+    /** prepare() parsed the query, which now has to be resolved and encoded. */
+    static final int RESOLVE = 2;
+
+    /** The first step of answering a query, which doesn't need the database: find the cache key
+     * and the OPT record, work out how long the response can be, and either answer from the cache
+     * or parse the query so it can be resolved.
+     * @return ANSWERED, DROP or RESOLVE */
+    int prepare(Query query) {
+	ByteBuffer bb = query.bb;
+	boolean parsed = false;
+	boolean withOPT = false;
+	int payloadSize = 0;
+	int version = 0;
+	int opt;
+
+	bb.mark();
+	// the cache key is the question, as it is in the packet
+	query.keyLength = getQuestionLength(bb);
+	query.hash = (query.keyLength > 0) ? ResponseCache.hash(bb, Compressor.HEADER_LENGTH, query.keyLength) : 0;
+	// only a query with an additional section can have an OPT record, and it has to be
+	// found to work out how long the response can be before the cache can be used
+	if((ednsBufferSize != 0) && (bb.remaining() >= Compressor.HEADER_LENGTH) &&
+	   (bb.getShort(bb.position() + 10) != 0)) {
+	    // a simple query with only an OPT record is read in place; anything else is parsed
+	    if((query.keyLength > 0) && ((opt = getOPTOffset(bb, query.keyLength)) >= 0)) {
+		withOPT = true;
+		payloadSize = bb.getChar(opt + 3);
+		version = bb.get(opt + 6) & 0xff;
+	    } else {
+		query.message = Message.getInstance(bb);
+		bb.reset();
+		parsed = true;
+		if(query.message != null) query.opt = getOPT(query.message);
+		if(query.opt != null) {
+		    withOPT = true;
+		    payloadSize = query.opt.getPayloadSize();
+		    version = query.opt.getVersion();
 		}
 	    }
-	    m = Message.getInstance(bb);
-	    LOG.finest("Query: " + q.asLogString() +
-		       " / " + sa);
-	    if(m == null) {
-		LOG.finest("Couldn't construct a correct message object for this query; dropping.");
-		continue; }
-	    if(m.getHeader().isQueryResponse()) {
-		LOG.fine("Got a query response instead of a query.");
-		continue; }
-	    try { m = makeResponse(m, resolver); }
-	    catch(SQLException sqe) { LOG.warning("Caught sqlexception: " + sqe); return; }
-	    catch(ProtocolException pe) { LOG.warning("Caught protocol exception: " + pe); continue; }
-	    if(m == null) continue;
+	}
+	query.limit = getLimit(bb, withOPT, payloadSize, query.udp);
+	// a query with an unknown EDNS version gets BADVERS, which is not cached
+	query.cacheable = cacheP && (query.keyLength > 0) && (version == 0);
+	// rate limiting comes before the cache, because a cached response can be reflected as well
+	long client = RateLimiter.NO_CLIENT;
+	if((rateLimiter != null) && query.udp) {
+	    client = query.client;
+	    if((client == RateLimiter.NO_CLIENT) && (query.sa != null)) client = RateLimiter.prefix(query.sa);
+	    if(client != RateLimiter.NO_CLIENT) {
+		int limited = rateLimiter.check(client, (int) (query.hash ^ (query.hash >>> 32)));
+		if(limited != RateLimiter.ALLOW) return limit(query, limited, parsed);
+	    }
+	}
+	if(query.cacheable) {
+	    // this is taken before the response is resolved, so a change while it is being resolved isn't missed
+	    query.generation = cache.generation(bb, Compressor.HEADER_LENGTH);
+	    int found = cache.get(bb, query.keyLength, query.hash, withOPT, query.generation, query.limit);
+	    if(found == ResponseCache.HIT) return ANSWERED;
+	    // the response changed while it was being copied, and the query is gone
+	    if(found == ResponseCache.LOST) return DROP;
+	}
+	if(! parsed) {
+	    query.message = Message.getInstance(bb);
+	    if(query.message != null) query.opt = getOPT(query.message);
+	}
+	if(query.message == null) {
+	    LOG.finest("Couldn't construct a correct message object for this query; dropping.");
+	    return DROP; }
+	if(LOG.isLoggable(Level.FINEST)) LOG.finest("Query: " + query.message.getQuestion());
+	if(query.message.getHeader().isQueryResponse()) {
+	    LOG.fine("Got a query response instead of a query.");
+	    return DROP; }
+	// a different question for every query gets past the buckets for each question, so
+	// everything which has to be resolved also comes out of one bucket for the network
+	if(client != RateLimiter.NO_CLIENT) {
+	    int limited = rateLimiter.checkMiss(client);
+	    if(limited != RateLimiter.ALLOW) return limit(query, limited, true);
+	}
+	return RESOLVE;
+    }
+
+    /** Deal with a query which the rate limiter found is over the limit: drop it, or answer it with
+     * an empty, truncated response.
+     * @param limited DROP or SLIP from the RateLimiter
+     * @param parsed true if the query's message has been parsed
+     * @return ANSWERED or DROP */
+    private int limit(Query query, int limited, boolean parsed) {
+	if(limited == RateLimiter.DROP) return DROP;
+	if(! parsed) query.message = Message.getInstance(query.bb);
+	if((query.message == null) || query.message.getHeader().isQueryResponse()) return DROP;
+	query.opt = getOPT(query.message);
+	return encodeEmpty(query, Header.RCODE_NOERROR, true) ? ANSWERED : DROP;
+    }
+
+    /** Resolve a query which ResponseCache.takeRefresh() wrote into the buffer, for a cached response
+     * which is about to expire, and put the new response in the cache in place of the old one.
+     * It is resolved as if it came over UDP, so that the new response is the one a client would get.
+     * @param withOPT true if the response was to a query with an OPT record, which is added to the query
+     * @return true if there was a new response */
+    boolean refresh(Query query, Resolver resolver, boolean withOPT) throws SQLException {
+	ByteBuffer bb = query.bb;
+	if(withOPT) {
+	    // OPT records may have been turned off since the response was cached
+	    if(ednsBufferSize == 0) return false;
+	    int opt = bb.limit();
+	    bb.limit(opt + 11);
+	    bb.put(opt, (byte) 0);
+	    bb.putShort(opt + 1, Type.OPT);
+	    bb.putShort(opt + 3, (short) ednsBufferSize);
+	    bb.putInt(opt + 5, 0);
+	    bb.putShort(opt + 9, (short) 0);
+	    bb.putShort(10, (short) 1);
+	}
+	query.keyLength = getQuestionLength(bb);
+	if(query.keyLength <= 0) return false;
+	query.hash = ResponseCache.hash(bb, Compressor.HEADER_LENGTH, query.keyLength);
+	query.generation = cache.generation(bb, Compressor.HEADER_LENGTH);
+	query.limit = getLimit(bb, withOPT, ednsBufferSize, true);
+	query.cacheable = true;
+	query.message = Message.getInstance(bb);
+	if(query.message == null) return false;
+	query.opt = getOPT(query.message);
+	return resolve(query, resolver) && encode(query);
+    }
+
+    /** The second step of answering a query, which does all the database work: make the response.
+     * @return true if there is a response, or false if the query should be dropped. */
+    boolean resolve(Query query, Resolver resolver) throws SQLException {
+	try { query.response = makeResponse(query.message, resolver); }
+	catch(ProtocolException pe) { LOG.warning("Caught protocol exception: " + pe); return false; }
+	return query.response != null;
+    }
+
+    /** Make an error response to a query which won't be resolved, for instance because the server
+     * is too busy, and encode it.  It is not cached.
+     * @return true if there is a response to send. */
+    boolean encodeError(Query query, byte rCode) { return encodeEmpty(query, rCode, false); }
+
+    /** Encode a response with only the question, and the OPT record if the query had one. */
+    private boolean encodeEmpty(Query query, byte rCode, boolean truncated) {
+	Set additionalRecords = new HashSet(1);
+	if(query.opt != null)
+	    additionalRecords.add(new ResourceRecord(Name.ROOT, new OPTRdata(ednsBufferSize, 0, 0, false)));
+	Header responseHeader = new Header(query.message.getHeader().getID(), true, false, truncated, false, false,
+					   rCode, Header.QUERY);
+	try {
+	    query.response = new Message(responseHeader, query.message.getQuestion(), new HashSet(),
+					 new HashSet(), additionalRecords);
+	}
+	catch(ProtocolException pe) { LOG.warning("Caught protocol exception: " + pe); return false; }
+	query.cacheable = false;
+	return encode(query);
+    }
+
+    /** Return true if the query has waited longer than maxQueryAge, so that answering it now would be
+     * pointless; the client has given up on it or asked again. */
+    boolean isExpired(Query query) {
+	return (maxQueryAge != 0) && (System.nanoTime() - query.received > maxQueryAge);
+    }
+
+    /** Shed a query which can't be resolved in time, because it is too old or because there is no
+     * room for it, according to the shedAction.  The query must have been prepared.
+     * @return true if there is an error response to send, or false if the query should be dropped. */
+    boolean shed(Query query) {
+	if((shedCount.incrementAndGet() % 1000) == 1)
+	    LOG.warning("Overloaded; " + shedCount.get() + " queries shed so far.");
+	if(shedAction == SHED_DROP) return false;
+	return encodeError(query, (shedAction == SHED_REFUSED) ? Header.RCODE_REFUSED : Header.RCODE_SERVERFAILURE);
+    }
+
+    /** The last step of answering a query: compress the response and write it into the buffer,
+     * truncated if it doesn't fit, and cache it.  The names in the response are upper case, so the
+     * question's name is put back the way it was asked, for resolvers which randomize its case.
+     * @return true if there is a response to send, or false if the query should be dropped. */
+    boolean encode(Query query) {
+	ByteBuffer bb = query.bb;
+	Message m = query.response;
+	byte[] name = null;
+	if(query.keyLength > 0) {
+	    name = new byte[query.keyLength - 4];
+	    bb.get(Compressor.HEADER_LENGTH, name);
+	}
+	try {
 	    m.compress();
 	    bb.clear();
-	    m.send(bb);
-	    bb.flip();
-	    if(cacheP) {
-		if(q != null) { // add this message result to the cache
-		    cached = new byte[bb.limit() - 2];
-		    bb.position(2);
-		    bb.get(cached);
-		    cache.put(q, cached);
-		    bb.rewind();
-		}
+	    bb.limit(query.limit);
+	    try { m.send(bb); }
+	    catch(BufferOverflowException boe) {
+		if(LOG.isLoggable(Level.FINE)) LOG.fine("Response is longer than " + query.limit + " bytes; truncating.");
+		m = m.getTruncated();
+		m.compress();
+		bb.clear();
+		bb.limit(query.limit);
+		m.send(bb);
+		query.cacheable = false;
 	    }
-	    channel.send(bb, sa);
 	}
+	catch(ProtocolException pe) { LOG.warning("Caught protocol exception: " + pe); return false; }
+	bb.flip();
+	if((name == null) || (bb.getShort(4) != 1) ||
+	   (ResponseCache.keyLength(bb, Compressor.HEADER_LENGTH) != query.keyLength)) return true;
+	bb.put(Compressor.HEADER_LENGTH, name);
+	int ttl;
+	// add this message result to the cache, now that its question is written the way it was asked
+	if(query.cacheable && ((ttl = m.getMinimumTtl()) > 0))
+	    cache.put(bb, query.keyLength, query.hash, query.opt != null, query.generation, ttl);
+	return true;
+    }
+
+    /** Return the message's OPT record, or null if it has none or EDNS is turned off, in which case
+     * the response has no OPT record either and is cached as a response to a query without one. */
+    private OPTRdata getOPT(Message m) { return (ednsBufferSize == 0) ? null : m.getOPT(); }
+
+    /** The flags of a query which can be answered from the cache: QR clear and a standard query opcode. */
+    private static final int QUERY_MASK = (1 << 15) | (15 << 12);
+
+    /** Return the length of the question of a simple query, with one question and the standard
+     * opcode, or 0 if the packet isn't one.  The question is read in place, without making any objects. */
+    private static int getQuestionLength(ByteBuffer bb) {
+	if(bb.limit() < Compressor.HEADER_LENGTH) return 0;
+	if(((bb.getShort(2) & QUERY_MASK) != 0) || (bb.getShort(4) != 1)) return 0;
+	int result = ResponseCache.keyLength(bb, Compressor.HEADER_LENGTH);
+	return (result < 0) ? 0 : result;
     }
-    
+
+    /** Return the offset of the OPT record of a simple query which has nothing after the question
+     * but the OPT record, or -1 if the query has anything else and has to be parsed to find it. */
+    private static int getOPTOffset(ByteBuffer bb, int questionLength) {
+	int result = Compressor.HEADER_LENGTH + questionLength;
+	// the answer and authority sections are empty, and there is one additional record
+	if((bb.getShort(6) != 0) || (bb.getShort(8) != 0) || (bb.getShort(10) != 1)) return -1;
+	// the record has the root name and type OPT, and its rdata ends the packet
+	if((result + 11 > bb.limit()) || (bb.get(result) != 0) || (bb.getShort(result + 1) != Type.OPT)) return -1;
+	if(result + 11 + bb.getChar(result + 9) != bb.limit()) return -1;
+	return result;
+    }
+
+    /** Work out how long the response to a query can be.
+     * @param withOPT true if the query has an OPT record
+     * @param payloadSize the payload size of its OPT record */
+    private int getLimit(ByteBuffer bb, boolean withOPT, int payloadSize, boolean udp) {
+	if(! udp) return bb.capacity();
+	if(! withOPT) return LENGTH;
+	int result = payloadSize;
+	// RFC 6891 says to treat anything less than 512 as 512
+	if(result < LENGTH) result = LENGTH;
+	if(result > ednsBufferSize) result = ednsBufferSize;
+	if(result > bb.capacity()) result = bb.capacity();
+	return result;
+    }
+
+    /** Return true if the responses to UDP queries are rate limited. */
+    boolean isRateLimited() { return rateLimiter != null; }
+
+    /** Return the size of the buffers needed for UDP packets, which is the larger of 512 bytes
+     * and the ednsBufferSize. */
+    int getUdpLength() { return (ednsBufferSize > LENGTH) ? ednsBufferSize : LENGTH; }
+
+    /** Return true if the buffer pools should look for leaked buffers. */
+    boolean isDebugBuffers() { return debugBuffers; }
+
+    /** Run the Named workers.  After they start, the workers will not throw any exceptions,
+     * because they should continue resolving even if an exception has occured.  A worker only
+     * stops if its socket or its database connection fails; when that happens all the
+     * workers are stopped and this method returns, so the server can be restarted.
+     * In virtual, selector and pipeline modes, run the listener, which only stops if a socket fails,
+     * or in pipeline mode, if a database connection fails.
+     * The TCP listener runs on a thread of its own; if it fails, UDP queries are still answered. */
+    public void run() throws IOException, InterruptedException {
+	if(cache != null) cache.start();
+	if(zoneWatcher != null) zoneWatcher.start();
+	if(refresher != null) refresher.start();
+	if(cacheFile != null) startCacheSaver();
+	if(tcpListener != null) {
+	    Thread tcpThread = new Thread(new Runnable() {
+		    public void run() { runTcp(); } }, "chiralDNS-tcp");
+	    tcpThread.setDaemon(true);
+	    tcpThread.start();
+	}
+	if(listener != null) { listener.run(); return; }
+	if(selectorListener != null) { selectorListener.run(); return; }
+	if(pipelineListener != null) { pipelineListener.run(); return; }
+	ExecutorService executor = Executors.newFixedThreadPool(workers.length);
+	CompletionService completion = new ExecutorCompletionService(executor);
+	for(int i = 0; i < workers.length; i++) completion.submit(workers[i], null);
+	try { completion.take().get(); }
+	catch(ExecutionException ee) { throw new IOException("A worker failed: " + ee.getCause()); }
+	finally { executor.shutdownNow(); }
+	LOG.warning("A worker stopped; stopping chiralDNS.");
+    }
+
+    /** Read the response cache from the cacheFile, if there is one, and drop the responses whose zone
+     * data has changed since it was saved. */
+    private void loadCache() throws SQLException {
+	int[] marks;
+	try { marks = cache.load(cacheFile, (zoneWatcher == null) ? 0 : zoneWatcher.getMarkCount()); }
+	catch(IOException ioe) { LOG.warning("Couldn't load the response cache from " + cacheFile + ": " + ioe); return; }
+	if((marks != null) && (zoneWatcher != null)) zoneWatcher.replay(marks);
+    }
+
+    /** Write the response cache to the cacheFile. */
+    private synchronized void saveCache() {
+	// the marks are taken first, so that any change after them is dropped when the cache is loaded
+	int[] marks = (zoneWatcher == null) ? new int[0] : zoneWatcher.getMarks();
+	try {
+	    int count = cache.save(cacheFile, marks);
+	    if(LOG.isLoggable(Level.FINE)) LOG.fine("Saved " + count + " responses to the cache file: " + cacheFile);
+	}
+	catch(IOException ioe) { LOG.warning("Couldn't save the response cache to " + cacheFile + ": " + ioe); }
+    }
+
+    /** Start saving the response cache every cacheSaveInterval, and when the JVM is shut down. */
+    private void startCacheSaver() {
+	cacheSaverHook = new Thread(new Runnable() {
+		public void run() { saveCache(); } }, "chiralDNS-cacheSaverHook");
+	Runtime.getRuntime().addShutdownHook(cacheSaverHook);
+	if(cacheSaveInterval == 0) return;
+	cacheSaver = new Thread(new Runnable() {
+		public void run() {
+		    try { while(true) { Thread.sleep(cacheSaveInterval * 1000L); saveCache(); } }
+		    catch(InterruptedException ie) { LOG.finest("Cache saver is stopping."); }
+		} }, "chiralDNS-cacheSaver");
+	cacheSaver.setDaemon(true);
+	cacheSaver.start();
+    }
+
+    private void runTcp() {
+	try { tcpListener.run(); }
+	catch(ClosedSelectorException cse) { LOG.finest("The TCP listener was released."); }
+	catch(IOException ioe) { LOG.warning("The TCP listener failed: " + ioe + "; only UDP queries will be answered."); }
+    }
+
     public static void main(String[] args) {
 	System.out.println("chiralDNS(tm)");
 	System.out.println("Copyright 2001-2017, Eric Hollander.  All rights reserved.");
@@ -314,12 +1210,14 @@ public final class ChiralDNS {
 	LOG.info("chiralDNS starting up.");
 	ChiralDNS n = null;
 	    while(true) {
+		n = null;
 		try {
 		    n = new ChiralDNS();
 		    n.run();
+		    n.release();
 		}
 		catch(Exception e) {
-		    try { n.release(); }
+		    try { if(n != null) n.release(); }
 		    catch(Exception ee) {
 			LOG.warning("Caught this exception while releasing chiralDNS: " + ee);
 		    }
@@ -0,0 +1,103 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A FrequencySketch estimates how often each key has been seen recently, in a fixed amount of
+ * memory, for the admission policy of the ResponseCache.  It is a count-min sketch of four
+ * rows of four bit counters, packed sixteen to a long.  The estimate for a key is the least of its
+ * four counters, which can be too high, because of collisions, but never too low.  Once there
+ * have been ten times as many increments as there are counters in a row, every counter is halved,
+ * so keys which were popular a long time ago are forgotten.<p>
+ * This class is thread-safe.  The counters are updated with compareAndSet, so an increment is
+ * never lost, but halving isn't atomic with respect to increments made while it runs; that only
+ * makes the estimates a little less exact, which the cache can live with.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander
+ * @see <a href="https://arxiv.org/abs/1512.00727">TinyLFU: A Highly Efficient Cache Admission Policy</a> */
+final class FrequencySketch {
+
+    /** Clears the top bit of every counter after they have been shifted right. */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /** Each row hashes the key with its own seed. */
+    private static final long[] SEEDS = {
+	0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    private final AtomicLongArray table;
+    private final int tableMask;
+    private final int sampleSize;
+
+    /** How many increments there have been since the counters were last halved. */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** @param maxEntries about how many keys the cache will hold */
+    FrequencySketch(int maxEntries) {
+	if(maxEntries < 1) throw new IllegalArgumentException("Max entries: " + maxEntries + " is out of range.");
+	int length = 16;
+	while((length < maxEntries) && (length < (1 << 28))) length <<= 1;
+	table = new AtomicLongArray(length);
+	tableMask = length - 1;
+	sampleSize = 10 * length;
+    }
+
+    /** Return the estimated frequency of the key with this hash code, from 0 to 15. */
+    int frequency(int hashCode) {
+	int hash = spread(hashCode);
+	int start = (hash & 3) << 2;
+	int result = 15;
+	int count;
+	for(int i = 0; i < 4; i++) {
+	    count = (int) ((table.get(indexOf(hash, i)) >>> ((start + i) << 2)) & 0xf);
+	    if(count < result) result = count;
+	}
+	return result;
+    }
+
+    /** Count one more use of the key with this hash code. */
+    void increment(int hashCode) {
+	int hash = spread(hashCode);
+	int start = (hash & 3) << 2;
+	boolean added = false;
+	for(int i = 0; i < 4; i++) added |= incrementAt(indexOf(hash, i), start + i);
+	if(added && (size.incrementAndGet() >= sampleSize)) reset();
+    }
+
+    /** Add one to the counter at this position in the long at this index, unless it is already 15. */
+    private boolean incrementAt(int index, int position) {
+	int offset = position << 2;
+	long mask = 0xfL << offset;
+	long value;
+	do {
+	    value = table.get(index);
+	    if((value & mask) == mask) return false;
+	} while(! table.compareAndSet(index, value, value + (1L << offset)));
+	return true;
+    }
+
+    /** Halve every counter. */
+    private synchronized void reset() {
+	// another thread may have reset the counters while this one waited
+	if(size.get() < sampleSize) return;
+	long value;
+	for(int i = 0; i < table.length(); i++) {
+	    do { value = table.get(i); }
+	    while(! table.compareAndSet(i, value, (value >>> 1) & RESET_MASK));
+	}
+	size.set(size.get() / 2);
+    }
+
+    /** Return the index in the table of the key's counter in one row. */
+    private int indexOf(int hash, int row) {
+	long h = (hash + SEEDS[row]) * SEEDS[row];
+	h += h >>> 32;
+	return (int) h & tableMask;
+    }
+
+    /** Spread out the bits of a hash code, which may not be very random to begin with. */
+    private static int spread(int x) {
+	x = ((x >>> 16) ^ x) * 0x45d9f3b;
+	x = ((x >>> 16) ^ x) * 0x45d9f3b;
+	return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,354 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import chiralsoftware.server.chiraldns.resolver.Resolver;
+import java.lang.foreign.AddressLayout;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.logging.Logger;
+
+/** An MmsgWorker is a Worker for Linux which receives and sends whole batches of packets
+ * with one system call each, using recvmmsg(2) and sendmmsg(2) through the Foreign Function
+ * and Memory API.  At high packet rates the one system call per packet of a DatagramChannel
+ * costs more than answering the queries.<p>
+ * All the memory the system calls use is allocated once, off the heap: a packet buffer, an iovec,
+ * a socket address and an mmsghdr for every packet in the batch, and a second array of mmsghdrs
+ * for sending.  Each response is written over its query in the same packet buffer, and the
+ * send mmsghdrs point straight at those buffers and at the addresses the queries came from,
+ * so nothing is copied between receiving and sending.<p>
+ * The worker makes its own socket, bound with SO_REUSEPORT.  Use isSupported() to find out if
+ * this platform can run it; if not, ChiralDNS uses UdpWorkers instead.<p>
+ * This class is not thread-safe, except for release(); each worker is meant to be run by exactly one thread.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+final class MmsgWorker implements Worker {
+
+    private static final Logger LOG = Logger.getLogger(MmsgWorker.class.getName());
+
+    /** Constants from the Linux headers.  These are the same on all Linux architectures
+     * which this class supports. */
+    private static final int AF_INET = 2;
+    private static final int AF_INET6 = 10;
+    private static final int SOCK_DGRAM = 2;
+    private static final int SOL_SOCKET = 1;
+    private static final int SO_REUSEPORT = 15;
+    private static final int SHUT_RDWR = 2;
+    private static final int MSG_WAITFORONE = 0x10000;
+    private static final int EINTR = 4;
+
+    /** The layout of struct iovec. */
+    private static final StructLayout IOVEC = MemoryLayout.structLayout(
+	ValueLayout.ADDRESS.withName("iov_base"),
+	ValueLayout.JAVA_LONG.withName("iov_len"));
+
+    /** The layout of struct mmsghdr, which is a struct msghdr followed by the length of the message. */
+    private static final StructLayout MMSGHDR = MemoryLayout.structLayout(
+	ValueLayout.ADDRESS.withName("msg_name"),
+	ValueLayout.JAVA_INT.withName("msg_namelen"),
+	MemoryLayout.paddingLayout(4),
+	ValueLayout.ADDRESS.withName("msg_iov"),
+	ValueLayout.JAVA_LONG.withName("msg_iovlen"),
+	ValueLayout.ADDRESS.withName("msg_control"),
+	ValueLayout.JAVA_LONG.withName("msg_controllen"),
+	ValueLayout.JAVA_INT.withName("msg_flags"),
+	MemoryLayout.paddingLayout(4),
+	ValueLayout.JAVA_INT.withName("msg_len"),
+	MemoryLayout.paddingLayout(4));
+
+    private static final long IOV_BASE = offset(IOVEC, "iov_base");
+    private static final long IOV_LEN = offset(IOVEC, "iov_len");
+    private static final long MSG_NAME = offset(MMSGHDR, "msg_name");
+    private static final long MSG_NAMELEN = offset(MMSGHDR, "msg_namelen");
+    private static final long MSG_IOV = offset(MMSGHDR, "msg_iov");
+    private static final long MSG_IOVLEN = offset(MMSGHDR, "msg_iovlen");
+    private static final long MSG_LEN = offset(MMSGHDR, "msg_len");
+
+    /** Enough room for a struct sockaddr_in6, which is larger than a struct sockaddr_in. */
+    private static final int SOCKADDR_SIZE = 32;
+
+    /** The layout in which the downcalls leave errno. */
+    private static final StructLayout CAPTURE_STATE = Linker.Option.captureStateLayout();
+    private static final long ERRNO = CAPTURE_STATE.byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+
+    /** The method handles for the C library functions, or null if they couldn't be linked. */
+    private static final MethodHandle SOCKET;
+    private static final MethodHandle SETSOCKOPT;
+    private static final MethodHandle BIND;
+    private static final MethodHandle RECVMMSG;
+    private static final MethodHandle SENDMMSG;
+    private static final MethodHandle SHUTDOWN;
+    private static final MethodHandle CLOSE;
+
+    static {
+	MethodHandle socket = null, setsockopt = null, bind = null, recvmmsg = null,
+	    sendmmsg = null, shutdown = null, close = null;
+	if(System.getProperty("os.name", "").toLowerCase().startsWith("linux") &&
+	   (ValueLayout.ADDRESS.byteSize() == 8)) {
+	    try {
+		Linker linker = Linker.nativeLinker();
+		SymbolLookup libc = linker.defaultLookup();
+		Linker.Option errno = Linker.Option.captureCallState("errno");
+		ValueLayout.OfInt i = ValueLayout.JAVA_INT;
+		AddressLayout a = ValueLayout.ADDRESS;
+		socket = linker.downcallHandle(libc.find("socket").orElseThrow(),
+					       FunctionDescriptor.of(i, i, i, i), errno);
+		setsockopt = linker.downcallHandle(libc.find("setsockopt").orElseThrow(),
+						   FunctionDescriptor.of(i, i, i, i, a, i), errno);
+		bind = linker.downcallHandle(libc.find("bind").orElseThrow(),
+					     FunctionDescriptor.of(i, i, a, i), errno);
+		recvmmsg = linker.downcallHandle(libc.find("recvmmsg").orElseThrow(),
+						 FunctionDescriptor.of(i, i, a, i, i, a), errno);
+		sendmmsg = linker.downcallHandle(libc.find("sendmmsg").orElseThrow(),
+						 FunctionDescriptor.of(i, i, a, i, i), errno);
+		shutdown = linker.downcallHandle(libc.find("shutdown").orElseThrow(),
+						 FunctionDescriptor.of(i, i, i));
+		close = linker.downcallHandle(libc.find("close").orElseThrow(),
+					      FunctionDescriptor.of(i, i));
+	    }
+	    catch(RuntimeException re) {
+		// this includes the IllegalCallerException when native access is not enabled
+		LOG.info("Couldn't link recvmmsg and sendmmsg: " + re);
+		socket = null;
+	    }
+	}
+	SOCKET = socket; SETSOCKOPT = setsockopt; BIND = bind; RECVMMSG = recvmmsg;
+	SENDMMSG = sendmmsg; SHUTDOWN = shutdown; CLOSE = close;
+    }
+
+    /** Returns true if this platform can run MmsgWorkers. */
+    static boolean isSupported() { return SOCKET != null; }
+
+    private static long offset(StructLayout layout, String name) {
+	return layout.byteOffset(MemoryLayout.PathElement.groupElement(name));
+    }
+
+    private final ChiralDNS chiralDNS;
+    private final Resolver resolver;
+    private final int batch;
+    private final int fd;
+
+    /** The memory for the system calls.  An automatic arena is freed when this worker is collected,
+     * so there is no need to worry about freeing it while a system call is still using it. */
+    private final Arena arena = Arena.ofAuto();
+    private final MemorySegment state;
+    private final MemorySegment packets;
+    private final MemorySegment names;
+    private final MemorySegment receiveIovecs;
+    private final MemorySegment receiveHeaders;
+    private final MemorySegment sendIovecs;
+    private final MemorySegment sendHeaders;
+
+    /** A ByteBuffer view of each packet buffer. */
+    private final ByteBuffer[] buffers;
+
+    /** The raw client addresses, for the rate limiter. */
+    private final byte[] address4 = new byte[4];
+    private final byte[] address6 = new byte[16];
+
+    /** The query being answered, which is reset for each packet, so that a cache hit makes no objects. */
+    private final Query query;
+
+    private volatile boolean stopping = false;
+
+    /** Whether run() has started using the socket, and whether the socket has been closed.  The socket
+     * is closed exactly once, by run() when it leaves, or by release() if run() never started, so a
+     * number which the kernel has given to another file is never shut down or closed.  Guarded by this. */
+    private boolean started = false;
+    private boolean closed = false;
+
+    /** Create a new worker with its own socket bound to the given address with SO_REUSEPORT,
+     * and buffers for a batch of packets. */
+    MmsgWorker(ChiralDNS chiralDNS, InetSocketAddress isa, Resolver resolver, int batch) throws IOException {
+	if(! isSupported()) throw new IllegalStateException("recvmmsg and sendmmsg are not available.");
+	if(chiralDNS == null) throw new NullPointerException("Can't create a worker without a chiralDNS.");
+	if(isa == null) throw new NullPointerException("Can't create a worker without an address.");
+	if(resolver == null) throw new NullPointerException("Can't create a worker without a resolver.");
+	if((batch < 1) || (batch > 1024)) throw new IllegalArgumentException("Batch size: " + batch + " is out of range.");
+	this.chiralDNS = chiralDNS;
+	this.resolver = resolver;
+	this.batch = batch;
+	state = arena.allocate(CAPTURE_STATE);
+	int length = chiralDNS.getUdpLength();
+	packets = arena.allocate((long) length * batch, 16);
+	names = arena.allocate((long) SOCKADDR_SIZE * batch, 8);
+	receiveIovecs = arena.allocate(IOVEC.byteSize() * batch, IOVEC.byteAlignment());
+	receiveHeaders = arena.allocate(MMSGHDR.byteSize() * batch, MMSGHDR.byteAlignment());
+	sendIovecs = arena.allocate(IOVEC.byteSize() * batch, IOVEC.byteAlignment());
+	sendHeaders = arena.allocate(MMSGHDR.byteSize() * batch, MMSGHDR.byteAlignment());
+	buffers = new ByteBuffer[batch];
+	for(int i = 0; i < batch; i++) {
+	    MemorySegment packet = packets.asSlice((long) length * i, length);
+	    buffers[i] = packet.asByteBuffer();
+	    receiveIovecs.set(ValueLayout.ADDRESS, IOVEC.byteSize() * i + IOV_BASE, packet);
+	    receiveIovecs.set(ValueLayout.JAVA_LONG, IOVEC.byteSize() * i + IOV_LEN, length);
+	    MemorySegment header = receiveHeaders.asSlice(MMSGHDR.byteSize() * i, MMSGHDR.byteSize());
+	    header.set(ValueLayout.ADDRESS, MSG_NAME, names.asSlice((long) SOCKADDR_SIZE * i, SOCKADDR_SIZE));
+	    header.set(ValueLayout.ADDRESS, MSG_IOV, receiveIovecs.asSlice(IOVEC.byteSize() * i, IOVEC.byteSize()));
+	    header.set(ValueLayout.JAVA_LONG, MSG_IOVLEN, 1);
+	    header = sendHeaders.asSlice(MMSGHDR.byteSize() * i, MMSGHDR.byteSize());
+	    header.set(ValueLayout.ADDRESS, MSG_IOV, sendIovecs.asSlice(IOVEC.byteSize() * i, IOVEC.byteSize()));
+	    header.set(ValueLayout.JAVA_LONG, MSG_IOVLEN, 1);
+	}
+	query = new Query(buffers[0], true, null);
+	fd = openSocket(isa);
+    }
+
+    /** Open a datagram socket, set SO_REUSEPORT and bind it to the address. */
+    private int openSocket(InetSocketAddress isa) throws IOException {
+	InetAddress address = isa.getAddress();
+	MemorySegment sockaddr = arena.allocate(SOCKADDR_SIZE, 8);
+	int family, length;
+	// the family is in host byte order, and the port and address are in network byte order
+	if(address instanceof Inet6Address) {
+	    family = AF_INET6; length = 28;
+	    sockaddr.set(ValueLayout.JAVA_SHORT, 0, (short) AF_INET6);
+	    MemorySegment.copy(address.getAddress(), 0, sockaddr, ValueLayout.JAVA_BYTE, 8, 16);
+	    sockaddr.set(ValueLayout.JAVA_INT, 24, ((Inet6Address) address).getScopeId());
+	} else if(address instanceof Inet4Address) {
+	    family = AF_INET; length = 16;
+	    sockaddr.set(ValueLayout.JAVA_SHORT, 0, (short) AF_INET);
+	    MemorySegment.copy(address.getAddress(), 0, sockaddr, ValueLayout.JAVA_BYTE, 4, 4);
+	} else throw new IOException("Unsupported address: " + isa);
+	sockaddr.set(ValueLayout.JAVA_BYTE, 2, (byte) (isa.getPort() >> 8));
+	sockaddr.set(ValueLayout.JAVA_BYTE, 3, (byte) isa.getPort());
+	int result;
+	try {
+	    result = (int) SOCKET.invokeExact(state, family, SOCK_DGRAM, 0);
+	    if(result < 0) throw new IOException("socket() failed, errno: " + errno());
+	    int socket = result;
+	    MemorySegment one = arena.allocate(ValueLayout.JAVA_INT);
+	    one.set(ValueLayout.JAVA_INT, 0, 1);
+	    result = (int) SETSOCKOPT.invokeExact(state, socket, SOL_SOCKET, SO_REUSEPORT, one, 4);
+	    if(result == 0) result = (int) BIND.invokeExact(state, socket, sockaddr, length);
+	    if(result < 0) {
+		int errno = errno();
+		int ignored = (int) CLOSE.invokeExact(socket);
+		throw new IOException("Couldn't bind to " + isa + ", errno: " + errno);
+	    }
+	    return socket;
+	}
+	catch(IOException ioe) { throw ioe; }
+	catch(Throwable t) { throw new IOException("Native call failed: " + t); }
+    }
+
+    private int errno() { return state.get(ValueLayout.JAVA_INT, ERRNO); }
+
+    /** Release the database connection and shut down the socket, which wakes the thread up
+     * if it is waiting in recvmmsg.  The socket is closed when that thread leaves run(), or now,
+     * if run() hasn't started, and then it never will. */
+    public void release() {
+	stopping = true;
+	resolver.release();
+	synchronized(this) {
+	    if(closed) return;
+	    if(! started) { closeSocket(); return; }
+	    try { int ignored = (int) SHUTDOWN.invokeExact(fd, SHUT_RDWR); }
+	    catch(Throwable t) { LOG.warning("Caught this shutting down the socket: " + t); }
+	}
+    }
+
+    /** Close the socket, unless it has been closed already.  Must hold the lock on this. */
+    private void closeSocket() {
+	if(closed) return;
+	closed = true;
+	try { int ignored = (int) CLOSE.invokeExact(fd); }
+	catch(Throwable t) { LOG.warning("Caught this closing the socket: " + t); }
+    }
+
+    /** Receive a batch of queries, answer them, and send the batch of responses, until
+     * the socket fails, or the database fails and the resolver has a connection of its own. */
+    public void run() {
+	synchronized(this) {
+	    // released before it started, so the socket is already closed
+	    if(closed) return;
+	    started = true;
+	}
+	try { loop(); }
+	catch(SQLException sqe) { LOG.warning("Caught sqlexception: " + sqe); }
+	catch(IOException ioe) { if(! stopping) LOG.warning("Caught ioexception: " + ioe); }
+	catch(Throwable t) { LOG.warning("Caught this in a native call: " + t); }
+	finally { synchronized(this) { closeSocket(); } }
+    }
+
+    /** Return the network of the client address in the sockaddr at this offset in names. */
+    private long client(long offset) {
+	short family = names.get(ValueLayout.JAVA_SHORT, offset);
+	if(family == AF_INET) {
+	    MemorySegment.copy(names, ValueLayout.JAVA_BYTE, offset + 4, address4, 0, 4);
+	    return RateLimiter.prefix(address4);
+	}
+	if(family == AF_INET6) {
+	    MemorySegment.copy(names, ValueLayout.JAVA_BYTE, offset + 8, address6, 0, 16);
+	    return RateLimiter.prefix(address6);
+	}
+	return RateLimiter.NO_CLIENT;
+    }
+
+    private void loop() throws Throwable {
+	int received, responses, sent, result;
+	long headerSize = MMSGHDR.byteSize();
+	long iovecSize = IOVEC.byteSize();
+	ByteBuffer bb;
+	while(! stopping) {
+	    // the kernel changes the name lengths, so they must be reset for every batch
+	    for(int i = 0; i < batch; i++)
+		receiveHeaders.set(ValueLayout.JAVA_INT, headerSize * i + MSG_NAMELEN, SOCKADDR_SIZE);
+	    received = (int) RECVMMSG.invokeExact(state, fd, receiveHeaders, batch, MSG_WAITFORONE, MemorySegment.NULL);
+	    if(received < 0) {
+		if(errno() == EINTR) continue;
+		throw new IOException("recvmmsg failed, errno: " + errno());
+	    }
+	    if(received == 0) continue; // the socket was shut down
+	    responses = 0;
+	    for(int i = 0; i < received; i++) {
+		bb = buffers[i];
+		bb.clear();
+		bb.limit(receiveHeaders.get(ValueLayout.JAVA_INT, headerSize * i + MSG_LEN));
+		query.reset(bb, true, null,
+			    chiralDNS.isRateLimited() ? client(SOCKADDR_SIZE * i) : RateLimiter.NO_CLIENT);
+		try { if(! chiralDNS.answer(query, resolver)) continue; }
+		catch(SQLException sqe) {
+		    // a resolver which shares a ConnectionPool gets a new connection by itself
+		    if(resolver.hasConnection()) throw sqe;
+		    LOG.warning("Caught sqlexception: " + sqe);
+		    continue;
+		}
+		// the response goes back to where the query came from, straight out of its packet buffer.
+		// pointers are copied as longs, which is safe because only 64 bit platforms are supported
+		sendHeaders.set(ValueLayout.JAVA_LONG, headerSize * responses + MSG_NAME,
+				receiveHeaders.get(ValueLayout.JAVA_LONG, headerSize * i + MSG_NAME));
+		sendHeaders.set(ValueLayout.JAVA_INT, headerSize * responses + MSG_NAMELEN,
+				receiveHeaders.get(ValueLayout.JAVA_INT, headerSize * i + MSG_NAMELEN));
+		sendIovecs.set(ValueLayout.JAVA_LONG, iovecSize * responses + IOV_BASE,
+			       receiveIovecs.get(ValueLayout.JAVA_LONG, iovecSize * i + IOV_BASE));
+		sendIovecs.set(ValueLayout.JAVA_LONG, iovecSize * responses + IOV_LEN, bb.limit());
+		responses++;
+	    }
+	    sent = 0;
+	    while(sent < responses) {
+		result = (int) SENDMMSG.invokeExact(state, fd, sendHeaders.asSlice(headerSize * sent),
+						    responses - sent, 0);
+		if(result < 0) {
+		    if(errno() == EINTR) continue;
+		    // the first message couldn't be sent; drop it and go on with the rest
+		    LOG.fine("sendmmsg failed, errno: " + errno());
+		    result = 1;
+		}
+		sent += result;
+	    }
+	}
+    }
+}
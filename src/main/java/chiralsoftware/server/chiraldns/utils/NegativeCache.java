@@ -0,0 +1,153 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import chiralsoftware.server.chiraldns.dns.ResourceRecord;
+import chiralsoftware.server.chiraldns.dns.Type;
+import chiralsoftware.server.chiraldns.dns.rdata.SOARdata;
+import chiralsoftware.server.chiraldns.name.DbName;
+import chiralsoftware.server.chiraldns.resolver.MemoryZoneStore;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A NegativeCache holds the parts of NXDOMAIN and NODATA responses which don't depend on the name
+ * that was asked about: the rcode, the AA bit, the authority section with its SOA record, and the
+ * additional section.  They are keyed by the closest encloser, which is the deepest node of the name
+ * which is in the database, whether the whole name is there, and the type, because every name under
+ * the same encloser gets the same negative response.  The ResponseCache is keyed by the whole question,
+ * so a flood of random labels under one zone misses it every time; this cache lets all of them share
+ * the walk up the tree which finds the SOA.<p>
+ * Each entry is kept for the SOA record's ttl or its minimum, whichever is less, as RFC 2308 says.
+ * When the cache is full it is cleared, which is cheap, because there is one entry per encloser, not
+ * one per name.  It is also cleared whenever the zone data changes.<p>
+ * Compressing a response changes its records, so an entry keeps copies of the records it was given,
+ * and every hit gets copies of those.<p>
+ * This class is thread-safe.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander
+ * @see <a href="http://www.faqs.org/rfcs/rfc2308.html">RFC 2308</a> */
+final class NegativeCache {
+
+    private final int maxEntries;
+
+    /** The entries, by key(). */
+    private final Map entries = new ConcurrentHashMap();
+
+    /** Goes up every time the cache is cleared, so that a response which was being resolved while
+     * the zone data changed isn't put in the cache. */
+    private volatile int generation = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** @param maxEntries how many entries there can be before the cache is cleared */
+    NegativeCache(int maxEntries) {
+	if(maxEntries < 1) throw new IllegalArgumentException("Max entries: " + maxEntries + " is out of range.");
+	this.maxEntries = maxEntries;
+    }
+
+    /** Return the key of the negative response to a question about a name, which has been looked
+     * up in the database, and a type. */
+    static long key(DbName name, int type) {
+	return ((long) name.getNumber() << 17) | (name.isFullyResolved() ? (1 << 16) : 0) | (type & 0xffff);
+    }
+
+    /** Return the entry for a key, or null if there isn't one or it has expired. */
+    Entry get(long key) {
+	Long k = Long.valueOf(key);
+	Entry result = (Entry) entries.get(k);
+	if((result != null) && (System.nanoTime() - result.expires > 0)) {
+	    entries.remove(k, result);
+	    result = null;
+	}
+	if(result == null) misses.incrementAndGet();
+	else hits.incrementAndGet();
+	return result;
+    }
+
+    /** Return the generation, which must be taken before the response is resolved, and given to put(). */
+    int getGeneration() { return generation; }
+
+    /** Add a negative response, if it has an SOA record in its authority section to say how long it
+     * can be kept, and the cache hasn't been cleared since the generation was taken.
+     * @param authority the authority section, which is copied, so it must not have been compressed yet
+     * @param additional the additional section, without any OPT record, which is copied as well */
+    synchronized void put(long key, int generation, byte rCode, boolean authoritative, Set authority, Set additional) {
+	if(generation != this.generation) return;
+	int ttl = getTtl(authority);
+	if(ttl <= 0) return;
+	if(entries.size() >= maxEntries) clear();
+	entries.put(Long.valueOf(key), new Entry(rCode, authoritative, authority, additional,
+						 System.nanoTime() + ttl * 1000000000L));
+    }
+
+    /** Forget every entry, because the zone data has changed or the cache is full. */
+    synchronized void clear() {
+	generation++;
+	entries.clear();
+    }
+
+    /** Return how long a negative response can be cached: the least of the ttl and the minimum of
+     * the SOA record in the authority section, or 0 if there isn't one. */
+    private static int getTtl(Set authority) {
+	Iterator it = authority.iterator();
+	ResourceRecord rr;
+	int result;
+	while(it.hasNext()) {
+	    rr = (ResourceRecord) it.next();
+	    if(rr.getType() != Type.SOA) continue;
+	    result = rr.getTtl();
+	    if(((SOARdata) rr.getRdata()).getMinimum() < result) result = ((SOARdata) rr.getRdata()).getMinimum();
+	    return result;
+	}
+	return 0;
+    }
+
+    long getHits() { return hits.get(); }
+
+    long getMisses() { return misses.get(); }
+
+    public String toString() {
+	return "Negative cache: " + entries.size() + " enclosers; hits: " + hits.get() + "; misses: " + misses.get();
+    }
+
+    /** The parts of a negative response which are the same for every name under an encloser. */
+    static final class Entry {
+	final byte rCode;
+	final boolean authoritative;
+
+	/** The records of the two sections, which are never changed or handed out. */
+	private final Set authority;
+	private final Set additional;
+
+	/** When the entry expires, from System.nanoTime(). */
+	final long expires;
+
+	private Entry(byte rCode, boolean authoritative, Set authority, Set additional, long expires) {
+	    this.rCode = rCode;
+	    this.authoritative = authoritative;
+	    this.authority = copy(authority);
+	    this.additional = copy(additional);
+	    this.expires = expires;
+	}
+
+	/** Return a copy of the authority section, which the caller can use in a response. */
+	Set getAuthority() { return copy(authority); }
+
+	/** Return a copy of the additional section, which the caller can use in a response and add to. */
+	Set getAdditional() { return copy(additional); }
+
+	private static Set copy(Set records) {
+	    Set result = new HashSet(records.size());
+	    Iterator it = records.iterator();
+	    ResourceRecord rr;
+	    while(it.hasNext()) {
+		rr = (ResourceRecord) it.next();
+		result.add(new ResourceRecord(rr.getName(), MemoryZoneStore.copy(rr.getRdata())));
+	    }
+	    return result;
+	}
+    }
+}
@@ -0,0 +1,250 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import chiralsoftware.server.chiraldns.resolver.Resolver;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.net.SocketAddress;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.sql.SQLException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** A PipelineListener answers queries in three stages, connected by bounded queues:
+ * <ol>
+ * <li>The receive stage, on the thread which calls run(), receives each packet, answers it
+ * from the cache if it can, and otherwise parses it and queues it for resolving.</li>
+ * <li>The resolve stage is a set of threads, each with its own Resolver, which make
+ * the responses.  This is the only stage which waits on the database.</li>
+ * <li>The encode stage is a set of threads which compress the responses, write them into
+ * the packet buffers, cache them and send them.</li>
+ * </ol>
+ * Because cache hits and bad packets are dealt with in the receive stage, they never wait
+ * behind queries which need the database.  A query which misses the cache is only admitted to
+ * the resolve queue while the queue is shorter than maxQueueDepth, and a query which has waited
+ * longer than the maxQueryAge by the time a resolve or encode thread gets to it is not answered late.
+ * Either way the query is shed, which by default means it is answered right away with SERVFAIL,
+ * and counted, instead of being dropped silently.  The encode queue
+ * is also bounded; a resolve thread waits for room in it, so a slow encode stage slows down
+ * resolving instead of using up the heap.  The depth of each queue, and the counts of what happened
+ * to the queries, are logged every minute.<p>
+ * Except for release(), this class is not thread-safe; run() is meant to be called by one thread.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+final class PipelineListener {
+
+    private static final Logger LOG = Logger.getLogger(PipelineListener.class.getName());
+
+    /** How often, in milliseconds, the statistics are logged. */
+    private static final long STATISTICS_INTERVAL = 60 * 1000;
+
+    private final ChiralDNS chiralDNS;
+    private final DatagramChannel channel;
+    private final Resolver[] resolvers;
+    private final int encodeThreads;
+
+    /** Queries which miss the cache are shed when the resolve queue is this deep. */
+    private final int maxQueueDepth;
+
+    /** Parsed queries waiting for a resolve thread. */
+    private final BlockingQueue resolveQueue;
+
+    /** Resolved queries waiting for an encode thread. */
+    private final BlockingQueue encodeQueue;
+
+    /** The packet buffers.  A buffer is held by its query through all the stages, so there is one
+     * for every place in the queues and every thread, and one to receive into. */
+    private final BufferPool buffers;
+
+    private final ExecutorService executor;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong resolved = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong resolveDepthMax = new AtomicLong();
+    private final AtomicLong encodeDepthMax = new AtomicLong();
+
+    private volatile boolean stopping = false;
+
+    /** Create a pipeline which receives on the channel.  Each resolve thread opens its own
+     * database connection with ChiralDNS.newResolver(). */
+    PipelineListener(ChiralDNS chiralDNS, DatagramChannel channel,
+		     int resolveThreads, int encodeThreads, int queueSize, int maxQueueDepth)
+	throws SQLException, ClassNotFoundException {
+	if(chiralDNS == null) throw new NullPointerException("Can't create a listener without a chiralDNS.");
+	if(channel == null) throw new NullPointerException("Can't create a listener without a channel.");
+	if(resolveThreads < 1) throw new IllegalArgumentException("resolveThreads: " + resolveThreads + " is out of range.");
+	if(encodeThreads < 1) throw new IllegalArgumentException("encodeThreads: " + encodeThreads + " is out of range.");
+	if(queueSize < 1) throw new IllegalArgumentException("queueSize: " + queueSize + " is out of range.");
+	if((maxQueueDepth < 1) || (maxQueueDepth > queueSize))
+	    throw new IllegalArgumentException("maxQueueDepth: " + maxQueueDepth + " is out of range.");
+	this.chiralDNS = chiralDNS;
+	this.channel = channel;
+	this.encodeThreads = encodeThreads;
+	this.maxQueueDepth = maxQueueDepth;
+	resolveQueue = new ArrayBlockingQueue(queueSize);
+	encodeQueue = new ArrayBlockingQueue(queueSize);
+	buffers = new BufferPool(chiralDNS.getUdpLength(), 2 * queueSize + resolveThreads + encodeThreads + 1,
+				 chiralDNS.isDebugBuffers());
+	resolvers = new Resolver[resolveThreads];
+	try { for(int i = 0; i < resolvers.length; i++) resolvers[i] = chiralDNS.newResolver(); }
+	catch(SQLException sqe) { releaseResolvers(); throw sqe; }
+	catch(ClassNotFoundException cnfe) { releaseResolvers(); throw cnfe; }
+	executor = Executors.newFixedThreadPool(resolveThreads + encodeThreads);
+    }
+
+    private void releaseResolvers() {
+	for(int i = 0; i < resolvers.length; i++) if(resolvers[i] != null) resolvers[i].release();
+    }
+
+    /** Stop the stages and release the channel and the database connections. */
+    void release() {
+	stopping = true;
+	executor.shutdownNow();
+	try { channel.close(); } catch(IOException ioe) { LOG.warning("Caught ioexception: " + ioe); }
+	releaseResolvers();
+	buffers.release();
+    }
+
+    /** Start the resolve and encode stages and run the receive stage.  This only returns by throwing
+     * an exception, when the channel fails, or when a resolve thread's database connection fails,
+     * which closes the channel. */
+    void run() throws IOException {
+	for(int i = 0; i < resolvers.length; i++) executor.execute(new ResolveStage(resolvers[i]));
+	for(int i = 0; i < encodeThreads; i++) executor.execute(new EncodeStage());
+	ByteBuffer bb = buffers.take();
+	SocketAddress sa;
+	// a query which is answered or shed right away is reset() for the next packet
+	Query query = null;
+	int state;
+	long depth;
+	long nextStatistics = System.currentTimeMillis() + STATISTICS_INTERVAL;
+	while(true) {
+	    bb.clear();
+	    sa = channel.receive(bb);
+	    bb.flip();
+	    received.incrementAndGet();
+	    if(query == null) query = new Query(bb, true, sa);
+	    else query.reset(bb, true, sa, RateLimiter.NO_CLIENT);
+	    state = chiralDNS.prepare(query);
+	    if(state == ChiralDNS.ANSWERED) {
+		cacheHits.incrementAndGet();
+		send(query);
+	    } else if(state == ChiralDNS.RESOLVE) {
+		if((resolveQueue.size() < maxQueueDepth) && resolveQueue.offer(query)) {
+		    depth = resolveQueue.size();
+		    if(depth > resolveDepthMax.get()) resolveDepthMax.set(depth);
+		    // the query keeps its buffer until it is sent, so the next packet needs a new one of each
+		    bb = buffers.take();
+		    query = null;
+		} else {
+		    // overloaded: deal with the query now instead of letting the queries pile up
+		    rejected.incrementAndGet();
+		    if(chiralDNS.shed(query)) send(query);
+		}
+	    }
+	    if(System.currentTimeMillis() >= nextStatistics) {
+		logStatistics();
+		nextStatistics = System.currentTimeMillis() + STATISTICS_INTERVAL;
+	    }
+	}
+    }
+
+    /** Send the response in the query's buffer.  A failure to send one response only drops that response. */
+    private void send(Query query) {
+	try {
+	    channel.send(query.bb, query.sa);
+	    sent.incrementAndGet();
+	}
+	catch(IOException ioe) {
+	    if(LOG.isLoggable(Level.FINE)) LOG.fine("Caught ioexception sending to " + query.sa + ": " + ioe);
+	}
+    }
+
+    /** Log the depth of each queue, the deepest each has been since the last time, and the counts. */
+    private void logStatistics() {
+	LOG.info("Pipeline: received: " + received.get() + "; cache hits: " + cacheHits.get() +
+		 "; resolved: " + resolved.get() + "; sent: " + sent.get() + "; rejected: " + rejected.get() +
+		 "; expired: " + expired.get() +
+		 "; resolve queue: " + resolveQueue.size() + " (max " + resolveDepthMax.getAndSet(0) + ")" +
+		 "; encode queue: " + encodeQueue.size() + " (max " + encodeDepthMax.getAndSet(0) + ")");
+    }
+
+    /** A resolve thread takes parsed queries, makes their responses with its own Resolver,
+     * and queues them for encoding. */
+    private final class ResolveStage implements Runnable {
+
+	private final Resolver resolver;
+
+	ResolveStage(Resolver resolver) { this.resolver = resolver; }
+
+	/** Resolve a query.  If the resolver shares a ConnectionPool, which gets a new connection by itself,
+	 * a failed connection only drops the query. */
+	private boolean resolve(Query query) throws SQLException {
+	    try { return chiralDNS.resolve(query, resolver); }
+	    catch(SQLException sqe) {
+		if(resolver.hasConnection()) throw sqe;
+		LOG.warning("Caught sqlexception: " + sqe);
+		return false;
+	    }
+	}
+
+	public void run() {
+	    Query query = null;
+	    long depth;
+	    try {
+		while(true) {
+		    query = (Query) resolveQueue.take();
+		    if(chiralDNS.isExpired(query)) {
+			expired.incrementAndGet();
+			if(chiralDNS.shed(query)) send(query);
+			buffers.give(query.bb);
+		    } else if(resolve(query)) {
+			resolved.incrementAndGet();
+			encodeQueue.put(query);
+			depth = encodeQueue.size();
+			if(depth > encodeDepthMax.get()) encodeDepthMax.set(depth);
+		    } else buffers.give(query.bb);
+		    query = null;
+		}
+	    }
+	    catch(InterruptedException ie) { LOG.finest("Resolve thread is stopping."); }
+	    catch(SQLException sqe) {
+		if(! stopping) {
+		    // same as a worker: a failed connection of its own stops the server so it can be restarted
+		    LOG.warning("Caught sqlexception: " + sqe + "; stopping the pipeline.");
+		    try { channel.close(); } catch(IOException ioe) { LOG.warning("Caught ioexception: " + ioe); }
+		}
+	    }
+	    finally { if(query != null) buffers.give(query.bb); }
+	}
+    }
+
+    /** An encode thread takes resolved queries, encodes and sends them, and gives back their buffers. */
+    private final class EncodeStage implements Runnable {
+
+	public void run() {
+	    Query query;
+	    try {
+		while(true) {
+		    query = (Query) encodeQueue.take();
+		    try {
+			if(chiralDNS.isExpired(query)) {
+			    expired.incrementAndGet();
+			    if(chiralDNS.shed(query)) send(query);
+			} else if(chiralDNS.encode(query)) send(query);
+		    }
+		    finally { buffers.give(query.bb); }
+		}
+	    }
+	    catch(InterruptedException ie) { LOG.finest("Encode thread is stopping."); }
+	}
+    }
+}
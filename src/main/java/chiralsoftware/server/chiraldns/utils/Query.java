@@ -0,0 +1,78 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import chiralsoftware.server.chiraldns.dns.Message;
+import chiralsoftware.server.chiraldns.dns.rdata.OPTRdata;
+import java.nio.ByteBuffer;
+import java.net.SocketAddress;
+
+/** A Query holds one query while it is being answered: the packet buffer, which ends up
+ * holding the response, and what has been found out about the query so far.  This lets answering
+ * be split into steps which can run on different threads: ChiralDNS.prepare(), resolve() and encode().<p>
+ * A worker which answers one query at a time can reset() the same Query for each packet.<p>
+ * This class is not thread-safe; a Query is handed from one thread to the next.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+final class Query {
+
+    /** The query packet, from position to limit, and later the response. */
+    ByteBuffer bb;
+
+    /** True if the response will be sent in a datagram, which limits how long it can be. */
+    boolean udp;
+
+    /** Where the query came from, or null if whoever is answering it keeps track of that. */
+    SocketAddress sa;
+
+    /** The client's network, from RateLimiter.prefix(), or RateLimiter.NO_CLIENT if it hasn't been found yet. */
+    long client;
+
+    /** The length of the question in the packet, which is the key of the response in the cache,
+     * or 0 if the packet isn't a simple query. */
+    int keyLength;
+
+    /** The hash of the question, from ResponseCache.hash(), or 0 if the packet isn't a simple query. */
+    long hash;
+
+    /** The generation of the question's name, from ResponseCache.generation(), if the response can be cached. */
+    int generation;
+
+    /** The parsed query. */
+    Message message;
+
+    /** The query's OPT record, or null if it has none or EDNS is turned off. */
+    OPTRdata opt;
+
+    /** How long the response can be. */
+    int limit;
+
+    /** True if the response can go in the cache. */
+    boolean cacheable;
+
+    /** The response, once it has been resolved. */
+    Message response;
+
+    /** When the query was received, from System.nanoTime(), so it can be shed if it gets too old. */
+    long received;
+
+    Query(ByteBuffer bb, boolean udp, SocketAddress sa) { this(bb, udp, sa, RateLimiter.NO_CLIENT); }
+
+    Query(ByteBuffer bb, boolean udp, SocketAddress sa, long client) { reset(bb, udp, sa, client); }
+
+    /** Forget the last query, and start on a new one, which was received just now. */
+    void reset(ByteBuffer bb, boolean udp, SocketAddress sa, long client) {
+	if(bb == null) throw new NullPointerException("Can't create a query without a buffer.");
+	this.bb = bb;
+	this.udp = udp;
+	this.sa = sa;
+	this.client = client;
+	keyLength = 0;
+	hash = 0;
+	generation = 0;
+	message = null;
+	opt = null;
+	limit = 0;
+	cacheable = false;
+	response = null;
+	received = System.nanoTime();
+    }
+}
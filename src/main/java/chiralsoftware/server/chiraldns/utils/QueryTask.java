@@ -0,0 +1,83 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import chiralsoftware.server.chiraldns.resolver.Resolver;
+import chiralsoftware.server.chiraldns.resolver.ResolverPool;
+import java.nio.ByteBuffer;
+import java.net.SocketAddress;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** A QueryTask answers one query on a thread other than the one which received it,
+ * using a Resolver taken from a ResolverPool.  Subclasses decide how the response is sent.
+ * When the task is done it releases its permit, so the listener which created it can bound
+ * the number of queries in flight.<p>
+ * A query which can be answered from the cache is answered without waiting for a Resolver.
+ * A query which has waited too long for a Resolver is shed instead of being answered late.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+abstract class QueryTask implements Runnable {
+
+    private static final Logger LOG = Logger.getLogger(QueryTask.class.getName());
+
+    private final ChiralDNS chiralDNS;
+    private final ResolverPool pool;
+    private final Semaphore inFlight;
+
+    /** The query, which is replaced by the response when it has been answered. */
+    final ByteBuffer packet;
+
+    /** Where the query came from and where the response goes. */
+    final SocketAddress sa;
+
+    /** The query, which records when it was received. */
+    private final Query query;
+
+    QueryTask(ChiralDNS chiralDNS, ResolverPool pool, Semaphore inFlight, ByteBuffer packet,
+	      SocketAddress sa, boolean udp) {
+	this.chiralDNS = chiralDNS;
+	this.pool = pool;
+	this.inFlight = inFlight;
+	this.packet = packet;
+	this.sa = sa;
+	query = new Query(packet, udp, sa);
+    }
+
+    /** Send the response, which is in packet, back to sa. */
+    abstract void send() throws IOException;
+
+    /** This is called when the task is done, whether or not there was a response, just before
+     * its permit is released.  Subclasses can override it to give back their buffers. */
+    void finish() { }
+
+    public void run() {
+	Resolver resolver = null;
+	try {
+	    int state = chiralDNS.prepare(query);
+	    if(state == ChiralDNS.DROP) return;
+	    if(state == ChiralDNS.ANSWERED) { send(); return; }
+	    resolver = pool.take();
+	    boolean send;
+	    if(chiralDNS.isExpired(query)) send = chiralDNS.shed(query);
+	    else send = chiralDNS.resolve(query, resolver) && chiralDNS.encode(query);
+	    pool.give(resolver);
+	    resolver = null;
+	    if(send) send();
+	}
+	catch(SQLException sqe) {
+	    LOG.warning("Caught sqlexception answering a query from " + sa + ": " + sqe);
+	    if(resolver != null) { pool.discard(resolver); resolver = null; }
+	}
+	catch(InterruptedException ie) { LOG.fine("Interrupted while waiting for a resolver."); }
+	catch(IOException ioe) {
+	    if(LOG.isLoggable(Level.FINE)) LOG.fine("Caught ioexception sending to " + sa + ": " + ioe);
+	}
+	finally {
+	    if(resolver != null) pool.discard(resolver);
+	    finish();
+	    inFlight.release();
+	}
+    }
+}
@@ -0,0 +1,161 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/** A RateLimiter does response rate limiting (RRL) for datagram queries, so that the server can't
+ * be used to reflect and amplify floods of responses at a spoofed address.  The responses to each
+ * client network, a /24 for IPv4 or a /56 for IPv6, for each question are limited to a number per second
+ * by a token bucket.  When a bucket is empty the query is dropped, except that every slip'th one is
+ * answered with an empty response with TC set, so that a real client behind the network can ask again
+ * over TCP, where its address can't be spoofed.<p>
+ * A flood of different questions, such as random names under one zone, would get a fresh bucket for
+ * every query, so the responses to a network which aren't in the cache, which is where such a flood
+ * ends up, also share one bucket for the whole network, with its own rate.<p>
+ * The buckets are in a fixed size table, so an attacker can't make it grow.  Each bucket is one long,
+ * holding the time it was last filled and how many tokens it has left, and it is updated with
+ * compareAndSet, so threads never wait for each other.  Network and question pairs which hash to the
+ * same bucket share it, rather than the newer one getting a full bucket, so that questions which are
+ * picked to collide can't be used to get past the limit; the price is that a real client may be
+ * limited along with another one, which a bigger table makes less likely.<p>
+ * This class is thread-safe.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander
+ * @see <a href="https://kb.isc.org/docs/aa-00994">Using Response Rate Limiting</a> */
+final class RateLimiter {
+
+    private static final Logger LOG = Logger.getLogger(RateLimiter.class.getName());
+
+    /** A client which isn't known, and isn't rate limited. */
+    static final long NO_CLIENT = 0;
+
+    /** check() found the response can be sent. */
+    static final int ALLOW = 0;
+
+    /** check() found the response should be dropped. */
+    static final int DROP = 1;
+
+    /** check() found the response should be replaced with an empty, truncated one. */
+    static final int SLIP = 2;
+
+    /** The largest rate which fits in the token count of a bucket. */
+    static final int MAX_RATE = 0xffff;
+
+    private final int rate;
+    private final int missRate;
+    private final int slip;
+    private final int mask;
+
+    /** The buckets: the time in milliseconds it was last filled in bits 16 to 47, and the tokens in
+     * the low 16. */
+    private final AtomicLongArray buckets;
+
+    /** How many responses have been dropped or slipped. */
+    private final AtomicLong limited = new AtomicLong();
+
+    /** @param rate how many responses per second each network gets for each question, which is also
+     * how many it can get in a burst
+     * @param missRate how many responses per second each network gets which aren't in the cache,
+     * whatever the question
+     * @param slip send a truncated response instead of dropping one out of this many, or 0 to drop them all
+     * @param tableSize how many buckets there are; this is rounded up to a power of two */
+    RateLimiter(int rate, int missRate, int slip, int tableSize) {
+	if((rate < 1) || (rate > MAX_RATE)) throw new IllegalArgumentException("Rate: " + rate + " is out of range.");
+	if((missRate < 1) || (missRate > MAX_RATE))
+	    throw new IllegalArgumentException("Miss rate: " + missRate + " is out of range.");
+	if(slip < 0) throw new IllegalArgumentException("Slip: " + slip + " is out of range.");
+	if((tableSize < 1) || (tableSize > (1 << 30)))
+	    throw new IllegalArgumentException("Table size: " + tableSize + " is out of range.");
+	this.rate = rate;
+	this.missRate = missRate;
+	this.slip = slip;
+	int size = 1;
+	while(size < tableSize) size <<= 1;
+	mask = size - 1;
+	buckets = new AtomicLongArray(size);
+    }
+
+    /** Take a token for a response to the client network for a question.
+     * @param client the client's network, from prefix()
+     * @param question the hash code of the question, or 0 if there isn't a simple question
+     * @return ALLOW, DROP or SLIP */
+    int check(long client, int question) { return take(mix(client * 31 + question), rate); }
+
+    /** Take a token from the client network's bucket for responses which aren't in the cache, as well
+     * as the one check() took for the question.
+     * @param client the client's network, from prefix()
+     * @return ALLOW, DROP or SLIP */
+    int checkMiss(long client) { return take(mix(~client), missRate); }
+
+    private int take(long h, int rate) {
+	int index = (int) h & mask;
+	long now = (System.nanoTime() / 1000000) & 0xffffffffL;
+	long old, next, tokens, stamp, added;
+	do {
+	    old = buckets.get(index);
+	    if(old == 0) {
+		// an empty bucket: start a new one
+		tokens = rate;
+		stamp = now;
+	    } else {
+		// a bucket which is shared with a bucket with a higher rate can't have more than this rate
+		tokens = Math.min(old & 0xffff, rate);
+		stamp = (old >>> 16) & 0xffffffffL;
+		added = ((now - stamp) & 0xffffffffL) * rate / 1000;
+		if(added > 0) {
+		    tokens += added;
+		    if(tokens >= rate) { tokens = rate; stamp = now; }
+		    // only move the time forward by the part which turned into tokens, so none are lost
+		    else stamp = (stamp + added * 1000 / rate) & 0xffffffffL;
+		}
+	    }
+	    if(tokens == 0) break;
+	    next = (stamp << 16) | (tokens - 1);
+	} while(! buckets.compareAndSet(index, old, next));
+	if(tokens > 0) return ALLOW;
+	long count = limited.incrementAndGet();
+	if((count % 10000) == 1) LOG.warning("Rate limiting; " + count + " responses limited so far.");
+	return ((slip != 0) && ((count % slip) == 0)) ? SLIP : DROP;
+    }
+
+    /** The finalizer of MurmurHash3, which spreads every bit of the input over the whole result. */
+    private static long mix(long h) {
+	h ^= h >>> 33;
+	h *= 0xff51afd7ed558ccdL;
+	h ^= h >>> 33;
+	h *= 0xc4ceb9fe1a85ec53L;
+	h ^= h >>> 33;
+	return h;
+    }
+
+    /** Return the network of a client address, or NO_CLIENT if it isn't an internet address. */
+    static long prefix(SocketAddress sa) {
+	if(!(sa instanceof InetSocketAddress)) return NO_CLIENT;
+	InetAddress address = ((InetSocketAddress) sa).getAddress();
+	if(address == null) return NO_CLIENT;
+	return prefix(address.getAddress());
+    }
+
+    /** Return the network of a raw IPv4 or IPv6 address, in network byte order.  An IPv4-mapped
+     * IPv6 address gets the network of its IPv4 address. */
+    static long prefix(byte[] address) {
+	if(address.length == 4) return prefix4(address, 0);
+	if(address.length != 16) return NO_CLIENT;
+	boolean mapped = (address[10] == (byte) 0xff) && (address[11] == (byte) 0xff);
+	for(int i = 0; mapped && (i < 10); i++) if(address[i] != 0) mapped = false;
+	if(mapped) return prefix4(address, 12);
+	// the family goes in the top byte, so the networks of the two families can't be equal
+	long result = 6;
+	for(int i = 0; i < 7; i++) result = (result << 8) | (address[i] & 0xff);
+	return result;
+    }
+
+    private static long prefix4(byte[] address, int offset) {
+	return (4L << 56) | ((address[offset] & 0xff) << 16) | ((address[offset + 1] & 0xff) << 8) |
+	    (address[offset + 2] & 0xff);
+    }
+}
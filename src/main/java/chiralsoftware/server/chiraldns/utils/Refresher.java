@@ -0,0 +1,64 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import chiralsoftware.server.chiraldns.resolver.Resolver;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.logging.Logger;
+
+/** A Refresher resolves the questions of cached responses which are asked for often and are about to
+ * expire, and puts the new responses in the cache in place of the old ones, so that the questions which
+ * are asked most never miss the cache, and never wait for the database.  The ResponseCache decides which
+ * responses to refresh, and when.<p>
+ * A Refresher has a database connection of its own.  If the database fails, the response it was refreshing
+ * expires as usual, and the next one is tried.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+final class Refresher implements Runnable {
+
+    private static final Logger LOG = Logger.getLogger(Refresher.class.getName());
+
+    private final ChiralDNS chiralDNS;
+    private final ResponseCache cache;
+    private final Resolver resolver;
+
+    private Thread thread = null;
+
+    Refresher(ChiralDNS chiralDNS, ResponseCache cache, Resolver resolver) {
+	if(chiralDNS == null) throw new NullPointerException("Can't create a refresher without a server.");
+	if(cache == null) throw new NullPointerException("Can't create a refresher without a cache.");
+	if(resolver == null) throw new NullPointerException("Can't create a refresher without a resolver.");
+	this.chiralDNS = chiralDNS;
+	this.cache = cache;
+	this.resolver = resolver;
+    }
+
+    /** Start refreshing, on a thread of its own. */
+    synchronized void start() {
+	if(thread != null) throw new IllegalStateException("The refresher has already been started.");
+	thread = new Thread(this, "chiralDNS-refresher");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    /** Stop refreshing, and release the database connection. */
+    synchronized void release() {
+	if(thread != null) thread.interrupt();
+	else resolver.release();
+    }
+
+    public void run() {
+	ByteBuffer bb = ByteBuffer.allocate(chiralDNS.getUdpLength());
+	Query query = new Query(bb, true, null);
+	boolean withOPT;
+	try {
+	    while(true) {
+		withOPT = cache.takeRefresh(bb);
+		query.reset(bb, true, null, RateLimiter.NO_CLIENT);
+		try { chiralDNS.refresh(query, resolver, withOPT); }
+		catch(SQLException sqe) { LOG.warning("Caught sqlexception while refreshing a response: " + sqe); }
+	    }
+	}
+	catch(InterruptedException ie) { LOG.finest("Refresher is stopping."); }
+	finally { resolver.release(); }
+    }
+}
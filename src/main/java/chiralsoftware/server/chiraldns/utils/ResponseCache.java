@@ -0,0 +1,849 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import chiralsoftware.server.chiraldns.dns.Compressor;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/** A ResponseCache holds encoded responses, without their ids, off the heap, so that millions
+ * of them don't slow down the garbage collector.  Each response is kept in a Slab with its key,
+ * which is the question of the query in wire format: the name, the type and the class.  The keys
+ * are found through an open addressing index, which is a table of longs, also off the heap, each
+ * holding the top half of a key's hash and the number of the block where its response starts.  A hit
+ * is copied straight from the slab into the packet buffer, and it doesn't make any objects.  Responses
+ * to queries with and without OPT records differ, so each key has a flag to say which it is.<p>
+ * The cache is bounded by a budget in bytes, which is the size of the slab, and it decides what to
+ * keep with W-TinyLFU.  An eighth of the slab is kept for responses which have been taken out but whose
+ * blocks haven't been freed yet, as described below, and the rest is for the responses in the cache.
+ * A new response goes into a small LRU window, which is one percent of that.
+ * A response which falls out of the window is only admitted to the main space if the FrequencySketch
+ * says its question has been asked more often than the question of the response it would push out,
+ * so a flood of names which are only asked once can't push out the responses which are really used.
+ * The main space is a segmented LRU: responses start on probation, and move to the protected segment,
+ * which is eighty percent of the main space, when they are used again.  The LRU lists are kept in
+ * arrays of ints, numbered by the first block of each response.<p>
+ * Lookups never take a lock.  The slab's versions tell a lookup if the response it is copying was
+ * changed under it, and then the packet has been overwritten, so the query is lost, which is counted.
+ * A response which is taken out of the cache, because it was replaced, evicted or expired, is taken
+ * out of the index at once, but its blocks aren't freed until the expiry thread has been round twice,
+ * so a query can only be lost by a lookup which stalled for more than a second between finding a
+ * response and copying it.  If so many responses are taken out in that time that the spare eighth of
+ * the slab fills up, a new response isn't cached until their blocks are freed.  A hit is recorded in a
+ * small ring buffer, which is drained into the LRU lists by whichever thread finds it getting full
+ * and can take the lock without waiting; when the threads go faster than that, some hits aren't
+ * recorded, which only makes the LRU order a little less exact.  Adding a response takes the lock.<p>
+ * Each response is cached for the least ttl of its records, which the caller works out.  The expiry
+ * times are kept in a TimingWheel which ticks once a second, on a thread of its own which is started by
+ * start(), so a response is served at most a second after it expires, and lookups never look at the clock.<p>
+ * A response which is asked for often can be refreshed before it expires, so that its question never
+ * misses and pays for the database.  When refreshing is turned on with setRefresh(), a response is also
+ * scheduled on the wheel for a little before it expires, and if the FrequencySketch says its question
+ * is asked often enough then, it is queued, and whoever calls takeRefresh() resolves it again and
+ * put()s the new response, which takes the old one's place in the index, so lookups find the new one.<p>
+ * When the zone data changes, invalidate() is called with the name which changed.  There is a table
+ * of generation counters, and each name goes with one of them, by its hash; invalidate() bumps the
+ * counter of the name.  Each response is stamped with the sum of the counters of its question's name
+ * and all the names above it, from when the query was received, and a lookup works out the sum again
+ * and ignores a response whose stamp is different, so a change drops the responses for its name and every
+ * name below it, and nothing else, without looking for them.  A stale response is replaced the next
+ * time its question is resolved, or else evicted.  Names which share a counter are dropped together,
+ * which does no harm.<p>
+ * The responses can be saved to a file with save(), and read back with load(), so that a server which
+ * restarts doesn't start out cold.  The file holds the time it was saved, how long each response had
+ * left to live then, and where the caller had got to in looking for changes to the zone data, so that the
+ * responses which have expired since are skipped, and the caller can drop the ones which have changed.
+ * It is read through a memory map, straight into the slab.<p>
+ * This class is thread-safe.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander
+ * @see <a href="https://arxiv.org/abs/1512.00727">TinyLFU: A Highly Efficient Cache Admission Policy</a> */
+final class ResponseCache {
+
+    private static final Logger LOG = Logger.getLogger(ResponseCache.class.getName());
+
+    /** get() copied the response into the buffer. */
+    static final int HIT = 0;
+
+    /** get() didn't find a response which fits. */
+    static final int MISS = 1;
+
+    /** get() found a response, but it changed while it was being copied, and the query was overwritten. */
+    static final int LOST = 2;
+
+    /** The flag of a key for a query with an OPT record. */
+    private static final int WITH_OPT = 1;
+
+    /** The first int of a file written by save(). */
+    private static final int MAGIC = 0x43444e53;
+
+    /** The version of the format of a file written by save(). */
+    private static final int FILE_VERSION = 1;
+
+    /** The size of the table of generation counters; a power of two. */
+    private static final int GENERATIONS = 1 << 16;
+
+    /** The size of the ring buffer of hits; a power of two. */
+    private static final int READ_BUFFER_SIZE = 128;
+
+    /** The hits are drained into the LRU lists every time this many have been recorded; a power of two. */
+    private static final int DRAIN_THRESHOLD = 32;
+
+    /** How many responses can be waiting to be refreshed; any more aren't refreshed. */
+    private static final int REFRESH_QUEUE_SIZE = 1024;
+
+    /** The RD bit of the flags in the header. */
+    private static final int RECURSION_DESIRED = 1 << 8;
+
+    private static final byte WINDOW = 0;
+    private static final byte PROBATION = 1;
+    private static final byte PROTECTED = 2;
+    private static final byte REMOVED = -1;
+
+    private final Slab slab;
+
+    /** The budgets, in blocks. */
+    private final int windowMax;
+    private final int mainMax;
+    private final int protectedMax;
+
+    /** The index: a table of longs, each 0 or the top half of a hash and the first block plus one. */
+    private final ByteBuffer index;
+    private final int indexMask;
+
+    private final FrequencySketch sketch;
+
+    /** The generation counters, which invalidate() bumps. */
+    private final AtomicIntegerArray generations = new AtomicIntegerArray(GENERATIONS);
+
+    /** Guards the slab, the index, the LRU lists, the wheel and the counts of blocks. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** The LRU lists, by first block.  Each list has a sentinel, numbered the block count plus its
+     * queue; its lruNext is the most recently used response and its lruPrev the least recently used. */
+    private final int[] lruPrev;
+    private final int[] lruNext;
+
+    /** Which list each response is on, by first block, or REMOVED. */
+    private final byte[] queue;
+
+    /** How many blocks each response takes, by first block. */
+    private final int[] weight;
+
+    /** The blocks in each queue, by queue. */
+    private final int[] blocks = new int[3];
+
+    /** How many responses are cached. */
+    private int entries = 0;
+
+    /** Hits which haven't been drained into the LRU lists yet, as first blocks plus one. */
+    private final AtomicIntegerArray readBuffer = new AtomicIntegerArray(READ_BUFFER_SIZE);
+    private final AtomicInteger reads = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong crowded = new AtomicLong();
+
+    /** Schedules each response, by first block, for when it expires, or for when it should be
+     * refreshed, if that comes first. */
+    private final TimingWheel wheel;
+
+    /** When each response expires, in seconds since start, by first block. */
+    private final int[] expires;
+
+    /** How many seconds before it expires a response is refreshed, or 0 if responses aren't refreshed. */
+    private int refreshAhead = 0;
+
+    /** How often, from the FrequencySketch, a response's question must be asked for it to be refreshed. */
+    private int refreshFrequency = 0;
+
+    /** The responses to refresh, each the version of the response in the top half and its first block
+     * in the bottom half, so that one which has been replaced or evicted since can be skipped. */
+    private final BlockingQueue refreshQueue = new ArrayBlockingQueue(REFRESH_QUEUE_SIZE);
+
+    /** Responses which have been taken out of the cache, linked by lruNext: those taken out since the
+     * expiry thread last went round, and those taken out the time before, which it frees next time. */
+    private int replaced = Slab.NONE;
+    private int retired = Slab.NONE;
+
+    /** When the cache was created, from System.nanoTime(); the wheel's ticks count seconds from here. */
+    private final long start = System.nanoTime();
+
+    /** The thread which expires responses, or null if it hasn't been started. */
+    private Thread expiryThread = null;
+
+    /** @param maxBytes how much memory the responses and their keys can take; the index and the
+     * LRU lists take about another 40 bytes for every 256 */
+    ResponseCache(int maxBytes) {
+	int blockCount = maxBytes / Slab.BLOCK;
+	if(blockCount < 1024) throw new IllegalArgumentException("Max bytes: " + maxBytes + " is too small.");
+	slab = new Slab(blockCount);
+	// the rest of the slab is for the responses which are waiting to be freed
+	int budget = blockCount - blockCount / 8;
+	windowMax = budget / 100;
+	mainMax = budget - windowMax;
+	protectedMax = mainMax * 4 / 5;
+	// there can't be more responses than blocks, so the index is never more than half full
+	int size = 1;
+	while(size < 2 * blockCount) size <<= 1;
+	index = ByteBuffer.allocateDirect(size * 8).order(ByteOrder.nativeOrder());
+	indexMask = size - 1;
+	sketch = new FrequencySketch(blockCount);
+	lruPrev = new int[blockCount + 3];
+	lruNext = new int[blockCount + 3];
+	for(int i = blockCount; i < blockCount + 3; i++) lruPrev[i] = lruNext[i] = i;
+	queue = new byte[blockCount];
+	Arrays.fill(queue, REMOVED);
+	weight = new int[blockCount];
+	wheel = new TimingWheel(blockCount, 0);
+	expires = new int[blockCount];
+    }
+
+    /** Turn on refreshing, for responses which are added after this.
+     * @param ahead how many seconds before it expires a response is refreshed; a response whose ttl is
+     * less than twice this isn't refreshed, so no response is refreshed more often than that
+     * @param frequency how often, from 1 to 15, a response's question must have been asked lately,
+     * by the FrequencySketch, for it to be refreshed */
+    void setRefresh(int ahead, int frequency) {
+	if(ahead < 1) throw new IllegalArgumentException("Refresh ahead: " + ahead + " is out of range.");
+	if((frequency < 1) || (frequency > 15)) throw new IllegalArgumentException("Refresh frequency: " + frequency + " is out of range.");
+	lock.lock();
+	try {
+	    refreshAhead = ahead;
+	    refreshFrequency = frequency;
+	}
+	finally { lock.unlock(); }
+    }
+
+    /** Start the thread which expires responses. */
+    synchronized void start() {
+	if(expiryThread != null) throw new IllegalStateException("The response cache has already been started.");
+	expiryThread = new Thread(new Runnable() {
+		public void run() {
+		    try { while(true) { Thread.sleep(1000); expire(); } }
+		    catch(InterruptedException ie) { LOG.finest("Expiry thread is stopping."); }
+		} }, "chiralDNS-expiry");
+	expiryThread.setDaemon(true);
+	expiryThread.start();
+    }
+
+    /** Stop the thread which expires responses. */
+    synchronized void release() {
+	if(expiryThread != null) expiryThread.interrupt();
+    }
+
+    /** Return the current tick of the wheel. */
+    private long tick() { return (System.nanoTime() - start) / 1000000000L; }
+
+    /** Return the length of the question which starts at an offset in the packet: the name, which
+     * must not be compressed, then the type and the class.  Returns -1 if the question is malformed
+     * or doesn't fit in the packet. */
+    static int keyLength(ByteBuffer bb, int offset) {
+	int result = nameLength(bb, offset);
+	if((result < 0) || (offset + result + 4 > bb.limit())) return -1;
+	return result + 4;
+    }
+
+    /** Return the length of the name which starts at an offset in the packet, which must not be
+     * compressed, or -1 if it is malformed or doesn't fit in the packet. */
+    private static int nameLength(ByteBuffer bb, int offset) {
+	int position = offset;
+	int length;
+	while(true) {
+	    if(position >= bb.limit()) return -1;
+	    length = bb.get(position) & 0xff;
+	    position++;
+	    if(length == 0) break;
+	    if(length > 63) return -1;
+	    position += length;
+	    if(position - offset > 255) return -1;
+	}
+	return position - offset;
+    }
+
+    /** Return the hash of a key in the packet, without regard to case.  The hash is FNV-1a, with the
+     * bits mixed again at the end so that both halves of it are random.  The responses to a question
+     * with and without an OPT record have the same hash, and are told apart by their flags. */
+    static long hash(ByteBuffer bb, int offset, int length) {
+	long h = 0xcbf29ce484222325L;
+	int b;
+	for(int i = 0; i < length; i++) {
+	    b = bb.get(offset + i);
+	    if((b >= 'A') && (b <= 'Z')) b += 'a' - 'A';
+	    h = (h ^ (b & 0xff)) * 0x100000001b3L;
+	}
+	return mix(h);
+    }
+
+    /** Mix the bits of a hash, so that both halves of it are random. */
+    private static long mix(long h) {
+	h ^= h >>> 33;
+	h *= 0xff51afd7ed558ccdL;
+	h ^= h >>> 33;
+	return h;
+    }
+
+    /** Return the generation counter of the name which starts at an offset in the buffer, which
+     * must be well formed and not compressed. */
+    private static int counter(ByteBuffer bb, int offset) {
+	long h = 0xcbf29ce484222325L;
+	int length, b;
+	do {
+	    length = bb.get(offset);
+	    for(int i = 0; i <= length; i++) {
+		b = bb.get(offset + i);
+		if((b >= 'A') && (b <= 'Z')) b += 'a' - 'A';
+		h = (h ^ (b & 0xff)) * 0x100000001b3L;
+	    }
+	    offset += length + 1;
+	} while(length != 0);
+	return (int) mix(h) & (GENERATIONS - 1);
+    }
+
+    /** Return the generation of a name in the buffer: the sum of the counters of the name and every
+     * name above it, up to the root.  The name must be well formed and not compressed, which it is
+     * if keyLength() found it was. */
+    int generation(ByteBuffer bb, int offset) {
+	int result = 0;
+	int length;
+	do {
+	    length = bb.get(offset);
+	    result += generations.get(counter(bb, offset));
+	    offset += length + 1;
+	} while(length != 0);
+	return result;
+    }
+
+    /** Drop the responses to questions about a name and all the names below it, because the zone data
+     * for the name has changed.  The name is in wire format, without compression, from the buffer's position. */
+    void invalidate(ByteBuffer bb) {
+	if(nameLength(bb, bb.position()) < 0) throw new IllegalArgumentException("The name is malformed.");
+	generations.incrementAndGet(counter(bb, bb.position()));
+	invalidations.incrementAndGet();
+    }
+
+    /** Look for the response to the query in the buffer, and if there is one which fits in the limit,
+     * copy it into the buffer around the query's id and question, so the response has the question
+     * with the case it was asked in, and set the buffer's position to 0 and its limit to the end.
+     * @param keyLength the length of the question, from keyLength()
+     * @param hash the hash of the question, from hash()
+     * @param generation the generation of the question's name, from generation()
+     * @return HIT, MISS or LOST */
+    int get(ByteBuffer bb, int keyLength, long hash, boolean withOPT, int generation, int limit) {
+	sketch.increment((int) (hash ^ (hash >>> 32)));
+	int flags = withOPT ? WITH_OPT : 0;
+	int i = (int) (hash >>> 32) & indexMask;
+	long entry;
+	int first, version, length;
+	for(int probes = 0; probes <= indexMask; probes++) {
+	    entry = index.getLong(i << 3);
+	    if(entry == 0) break;
+	    if((entry >>> 32) == (hash >>> 32)) {
+		first = (int) entry - 1;
+		version = slab.getVersion(first);
+		if(((version & 1) == 0) && (slab.getHash(first) == hash) && (slab.getFlags(first) == flags) &&
+		   slab.keyEquals(first, bb, Compressor.HEADER_LENGTH, keyLength)) {
+		    length = slab.getValueLength(first);
+		    if(length + 2 > limit) break;
+		    // the zone data has changed since the response was made
+		    if(slab.getGeneration(first) != generation) {
+			stale.incrementAndGet();
+			break;
+		    }
+		    // preserve the id (short) and the question in the query, which only differs from the
+		    // cached one in case, and copy the rest straight from the cache; the names in the
+		    // response which are the question's name are pointers to it, so they get its case too
+		    bb.limit(length + 2);
+		    if(! (slab.copyValue(first, 0, bb, 2, Compressor.HEADER_LENGTH - 2) &&
+			  slab.copyValue(first, Compressor.HEADER_LENGTH - 2 + keyLength, bb,
+					 Compressor.HEADER_LENGTH + keyLength,
+					 length - (Compressor.HEADER_LENGTH - 2 + keyLength)) &&
+			  slab.isVersion(first, version))) {
+			lost.incrementAndGet();
+			return LOST;
+		    }
+		    bb.position(0);
+		    hits.incrementAndGet();
+		    recordHit(first);
+		    return HIT;
+		}
+	    }
+	    i = (i + 1) & indexMask;
+	}
+	misses.incrementAndGet();
+	return MISS;
+    }
+
+    /** Remember that a response was used, and move the hits into the LRU lists if it is time. */
+    private void recordHit(int first) {
+	int i = reads.getAndIncrement();
+	readBuffer.lazySet(i & (READ_BUFFER_SIZE - 1), first + 1);
+	if(((i & (DRAIN_THRESHOLD - 1)) == (DRAIN_THRESHOLD - 1)) && lock.tryLock()) {
+	    try { drainReads(); }
+	    finally { lock.unlock(); }
+	}
+    }
+
+    /** Add the response in the buffer, from 0 to its limit, to the cache, replacing any response
+     * already there for the question.
+     * @param keyLength the length of the question, which starts right after the header
+     * @param hash the hash of the question, from hash()
+     * @param generation the generation of the question's name, from generation(), from before the
+     * response was resolved
+     * @param ttl how many seconds the response can be cached; if this isn't positive it isn't cached */
+    void put(ByteBuffer bb, int keyLength, long hash, boolean withOPT, int generation, int ttl) {
+	if(ttl <= 0) return;
+	lock.lock();
+	try { add(bb, 2, bb.limit() - 2, keyLength, hash, withOPT ? WITH_OPT : 0, generation, ttl); }
+	finally { lock.unlock(); }
+    }
+
+    /** Add a response, without its id, from an offset in the buffer; its question starts 10 bytes in.
+     * Must hold the lock. */
+    private void add(ByteBuffer src, int offset, int length, int keyLength, long hash, int flags, int generation, int ttl) {
+	int w = Slab.blocksFor(keyLength, length);
+	// a response which is bigger than the window would go straight through it and be compared
+	// with what it would push out, but one which takes too much of the cache can't be cached
+	if(w > mainMax / 2) return;
+	drainReads();
+	if(! makeRoom(w)) {
+	    crowded.incrementAndGet();
+	    return;
+	}
+	int first = slab.allocate(hash, flags, generation, src, offset + Compressor.HEADER_LENGTH - 2,
+				  keyLength, offset, length);
+	slab.publish(first);
+	int old = insert(first, hash);
+	byte q = WINDOW;
+	if(old != Slab.NONE) {
+	    // a response which replaces another, such as a refreshed one, keeps its place
+	    q = queue[old];
+	    retire(old);
+	}
+	entries++;
+	weight[first] = w;
+	link(first, q);
+	expires[first] = (int) (tick() + ttl);
+	if((refreshAhead > 0) && (ttl >= 2 * refreshAhead)) wheel.schedule(first, expires[first] - refreshAhead);
+	else wheel.schedule(first, expires[first]);
+    }
+
+    /** Wait for a response which should be refreshed, and write a query for it into the buffer, from 0
+     * to its limit: a header with an id of 0 and the RD bit of the response, and the response's question.
+     * The question is copied from the response.  Responses which have been replaced or evicted since they
+     * were queued are skipped.
+     * @return true if the response was to a query with an OPT record, which the caller must add */
+    boolean takeRefresh(ByteBuffer bb) throws InterruptedException {
+	long request;
+	int first, flags;
+	while(true) {
+	    request = ((Long) refreshQueue.take()).longValue();
+	    first = (int) request;
+	    lock.lock();
+	    try {
+		// a response which has been taken out keeps its version until its blocks are freed
+		if((slab.getVersion(first) != (int) (request >>> 32)) || (queue[first] == REMOVED)) continue;
+		bb.clear();
+		bb.limit(Compressor.HEADER_LENGTH + slab.getKeyLength(first));
+		slab.copyValue(first, 0, bb, 2, bb.limit() - 2);
+		flags = bb.getShort(2) & RECURSION_DESIRED;
+		bb.putShort(0, (short) 0);
+		bb.putShort(2, (short) flags);
+		bb.putShort(4, (short) 1);
+		bb.putShort(6, (short) 0);
+		bb.putShort(8, (short) 0);
+		bb.putShort(10, (short) 0);
+		return (slab.getFlags(first) & WITH_OPT) != 0;
+	    }
+	    finally { lock.unlock(); }
+	}
+    }
+
+    /** Write the responses which are still good to a file, least recently used first, so that they
+     * come back in about the same order.  The file is written next to the old one and then moved over it,
+     * so a crash while saving leaves the old one.  This only holds the lock while it lists the responses;
+     * they are copied out and written afterwards, the way lookups read them, so a response which changes
+     * in the meantime is left out and responses can be added while the file is written.
+     * @param marks where the caller had got to in looking for changes to the zone data, which load() returns
+     * @return how many responses were saved */
+    int save(Path file, int[] marks) throws IOException {
+	int base = slab.getBlockCount();
+	int[] firsts = new int[base];
+	int[] versions = new int[base];
+	int[] ttls = new int[base];
+	int entries = 0;
+	lock.lock();
+	try {
+	    long tick = tick();
+	    byte[] order = { PROTECTED, PROBATION, WINDOW };
+	    int first, ttl;
+	    for(int q = 0; q < order.length; q++) {
+		for(first = lruPrev[base + order[q]]; first != base + order[q]; first = lruPrev[first]) {
+		    ttl = (int) (expires[first] - tick);
+		    if(ttl <= 0) continue;
+		    firsts[entries] = first;
+		    versions[entries] = slab.getVersion(first);
+		    ttls[entries] = ttl;
+		    entries++;
+		}
+	    }
+	}
+	finally { lock.unlock(); }
+	Path temporary = file.resolveSibling(file.getFileName() + ".new");
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16));
+	ByteBuffer value = ByteBuffer.allocate(65536);
+	int result = 0;
+	int first, version, flags, keyLength, length, generation;
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeInt(FILE_VERSION);
+	    out.writeLong(System.currentTimeMillis());
+	    out.writeInt(marks.length);
+	    for(int i = 0; i < marks.length; i++) out.writeInt(marks[i]);
+	    for(int i = 0; i < entries; i++) {
+		first = firsts[i];
+		version = versions[i];
+		flags = slab.getFlags(first);
+		keyLength = slab.getKeyLength(first);
+		length = slab.getValueLength(first);
+		generation = slab.getGeneration(first);
+		// a response which was taken out or replaced since it was listed is left out
+		if(! (slab.copyValue(first, value, 0) && slab.isVersion(first, version))) continue;
+		// and so is a response whose zone data has changed
+		if(generation != generation(value, Compressor.HEADER_LENGTH - 2)) continue;
+		out.writeInt(ttls[i]);
+		out.writeByte(flags);
+		out.writeShort(keyLength);
+		out.writeShort(length);
+		out.write(value.array(), 0, length);
+		result++;
+	    }
+	    out.writeInt(0); // a ttl of 0 ends the file
+	}
+	finally { out.close(); }
+	Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	return result;
+    }
+
+    /** Read the responses in a file written by save() into the cache, except for those which have
+     * expired since.  Each one is stamped with the current generation of its name, so the caller must
+     * invalidate() the names which have changed since the file was saved.  A file which is damaged is
+     * read as far as it is good, and the responses after the damage are left out.
+     * @param markCount how many marks the caller expects; if the file has a different number, it isn't read
+     * @return the marks which were given to save(), or null if there is no file, or it can't be used */
+    int[] load(Path file, int markCount) throws IOException {
+	FileChannel channel;
+	try { channel = FileChannel.open(file); }
+	catch(NoSuchFileException nsfe) { return null; }
+	int count = 0;
+	int[] result;
+	try {
+	    MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	    if((in.remaining() < 20) || (in.getInt() != MAGIC) || (in.getInt() != FILE_VERSION)) {
+		LOG.warning("The cache file: " + file + " isn't one this version can read.");
+		return null;
+	    }
+	    long elapsed = (System.currentTimeMillis() - in.getLong()) / 1000;
+	    // the clock may have been set back
+	    if(elapsed < 0) elapsed = 0;
+	    int marks = in.getInt();
+	    if(marks != markCount) {
+		LOG.warning("The cache file: " + file + " was saved with different zone data marks; not loading it.");
+		return null;
+	    }
+	    if((marks < 0) || (marks > 1024)) throw new IOException("The cache file: " + file + " is damaged.");
+	    result = new int[marks];
+	    for(int i = 0; i < marks; i++) result[i] = in.getInt();
+	    int ttl, flags, keyLength, length, offset;
+	    lock.lock();
+	    try {
+		while((ttl = in.getInt()) != 0) {
+		    flags = in.get();
+		    keyLength = in.getShort();
+		    length = in.getChar();
+		    offset = in.position();
+		    // a key length of 0xffff reads as -1, which is what keyLength() returns for a bad name
+		    if((keyLength <= 0) || (offset + length > in.limit()) ||
+		       (length < Compressor.HEADER_LENGTH - 2 + keyLength) ||
+		       (keyLength(in, offset + Compressor.HEADER_LENGTH - 2) != keyLength)) {
+			LOG.warning("The cache file: " + file + " is damaged after " + count + " responses.");
+			break;
+		    }
+		    in.position(offset + length);
+		    if(ttl <= elapsed) continue;
+		    add(in, offset, length, keyLength, hash(in, offset + Compressor.HEADER_LENGTH - 2, keyLength),
+			flags, generation(in, offset + Compressor.HEADER_LENGTH - 2), (int) (ttl - elapsed));
+		    count++;
+		}
+	    }
+	    catch(BufferUnderflowException bue) {
+		LOG.warning("The cache file: " + file + " is cut short after " + count + " responses.");
+	    }
+	    catch(RuntimeException re) {
+		// whatever the damage is, what was read before it is still good
+		LOG.warning("The cache file: " + file + " is damaged after " + count + " responses: " + re);
+	    }
+	    finally { lock.unlock(); }
+	}
+	finally { channel.close(); }
+	LOG.info("Loaded " + count + " responses from the cache file: " + file);
+	return result;
+    }
+
+    /** Remove the responses which have expired, queue the ones which should be refreshed, and free
+     * the ones which were taken out before the last time this was called. */
+    void expire() {
+	lock.lock();
+	try {
+	    freeReplaced(retired);
+	    retired = replaced;
+	    replaced = Slab.NONE;
+	    long tick = tick();
+	    int first = wheel.advance(tick);
+	    int following;
+	    while(first != TimingWheel.NONE) {
+		following = wheel.nextExpired(first);
+		if(expires[first] > tick) {
+		    // it is time to refresh it, if it is asked for often enough; either way it expires later
+		    wheel.schedule(first, expires[first]);
+		    if((frequency(first) >= refreshFrequency) &&
+		       refreshQueue.offer(Long.valueOf(((long) slab.getVersion(first) << 32) | first)))
+			refreshes.incrementAndGet();
+		} else {
+		    remove(first);
+		    expirations.incrementAndGet();
+		}
+		first = following;
+	    }
+	}
+	finally { lock.unlock(); }
+    }
+
+    /** Free a list of responses which were taken out.  Must hold the lock. */
+    private void freeReplaced(int first) {
+	int following;
+	while(first != Slab.NONE) {
+	    following = lruNext[first];
+	    slab.free(first);
+	    first = following;
+	}
+    }
+
+    /** Make room for a new response of this many blocks.  The responses which fall out of the window
+     * are moved to the main space, if they are used more often than the responses they would push out.
+     * If the responses still take too much, because the new response is big, the least recently used
+     * are evicted.  Must hold the lock.
+     * @return false if there aren't enough free blocks, because too many of the responses which were
+     * taken out are waiting to be freed */
+    private boolean makeRoom(int w) {
+	int candidate;
+	int windowSentinel = slab.getBlockCount() + WINDOW;
+	while((blocks[WINDOW] + w > windowMax) && (lruPrev[windowSentinel] != windowSentinel)) {
+	    candidate = lruPrev[windowSentinel];
+	    unlink(candidate);
+	    if(admit(candidate)) link(candidate, PROBATION);
+	    else {
+		rejections.incrementAndGet();
+		evictions.incrementAndGet();
+		remove(candidate);
+	    }
+	}
+	while((blocks[WINDOW] + blocks[PROBATION] + blocks[PROTECTED] + w > windowMax + mainMax) && (entries > 0)) {
+	    evictions.incrementAndGet();
+	    remove(victim());
+	}
+	// the responses which were taken out are never freed early, since a lookup may be copying one
+	return slab.getFreeCount() >= w;
+    }
+
+    /** Make room in the main space for a candidate, by evicting the least recently used responses
+     * there, as long as each is used less often than the candidate.
+     * @return true if there is room for the candidate, or false if it should be evicted instead */
+    private boolean admit(int candidate) {
+	int frequency = frequency(candidate);
+	int victim;
+	while(blocks[PROBATION] + blocks[PROTECTED] + weight[candidate] > mainMax) {
+	    victim = victim();
+	    if(frequency <= frequency(victim)) return false;
+	    evictions.incrementAndGet();
+	    remove(victim);
+	}
+	return true;
+    }
+
+    /** Return the response to evict next: the least recently used on probation, or else in the
+     * protected segment, or else in the window. */
+    private int victim() {
+	int base = slab.getBlockCount();
+	if(lruPrev[base + PROBATION] != base + PROBATION) return lruPrev[base + PROBATION];
+	if(lruPrev[base + PROTECTED] != base + PROTECTED) return lruPrev[base + PROTECTED];
+	if(lruPrev[base + WINDOW] != base + WINDOW) return lruPrev[base + WINDOW];
+	throw new IllegalStateException("There is nothing to evict.");
+    }
+
+    private int frequency(int first) {
+	long hash = slab.getHash(first);
+	return sketch.frequency((int) (hash ^ (hash >>> 32)));
+    }
+
+    /** Move the responses which were hit to the front of their lists.  Must hold the lock. */
+    private void drainReads() {
+	int first;
+	byte q;
+	int protectedSentinel = slab.getBlockCount() + PROTECTED;
+	for(int i = 0; i < READ_BUFFER_SIZE; i++) {
+	    first = readBuffer.getAndSet(i, 0) - 1;
+	    // the response may have been evicted since; if its block starts another response now,
+	    // that one is moved instead, which does no harm
+	    if((first < 0) || (queue[first] == REMOVED)) continue;
+	    if(queue[first] == PROBATION) {
+		unlink(first);
+		link(first, PROTECTED);
+		// the protected segment has grown, so its least used go back on probation
+		while(blocks[PROTECTED] > protectedMax) {
+		    first = lruPrev[protectedSentinel];
+		    unlink(first);
+		    link(first, PROBATION);
+		}
+	    } else {
+		q = queue[first];
+		unlink(first);
+		link(first, q);
+	    }
+	}
+    }
+
+    /** Take a response out of the cache.  It may already be off its list.  Must hold the lock. */
+    private void remove(int first) {
+	delete(first);
+	retire(first);
+    }
+
+    /** Take a response which is no longer in the index off its list and the wheel, and put it on the
+     * list of those which the expiry thread will free.  Must hold the lock. */
+    private void retire(int first) {
+	if(queue[first] != REMOVED) unlink(first);
+	wheel.cancel(first);
+	lruNext[first] = replaced;
+	replaced = first;
+	entries--;
+    }
+
+    /** Put a response which has been written in the slab into the index, and return the first block
+     * of the response it replaces, or Slab.NONE.  Must hold the lock. */
+    private int insert(int first, long hash) {
+	long entry = (hash & 0xffffffff00000000L) | (first + 1);
+	int i = (int) (hash >>> 32) & indexMask;
+	long e;
+	int other;
+	while((e = index.getLong(i << 3)) != 0) {
+	    other = (int) e - 1;
+	    if(((e >>> 32) == (hash >>> 32)) && (slab.getHash(other) == hash) &&
+	       (slab.getFlags(other) == slab.getFlags(first)) && slab.sameKey(first, other)) {
+		// readers see either the old response or the new one
+		index.putLong(i << 3, entry);
+		return other;
+	    }
+	    i = (i + 1) & indexMask;
+	}
+	index.putLong(i << 3, entry);
+	return Slab.NONE;
+    }
+
+    /** Take a response out of the index, and move the entries after it back so that linear probing
+     * still finds them.  Must hold the lock. */
+    private void delete(int first) {
+	long hash = slab.getHash(first);
+	long entry = (hash & 0xffffffff00000000L) | (first + 1);
+	int i = (int) (hash >>> 32) & indexMask;
+	long e;
+	while((e = index.getLong(i << 3)) != entry) {
+	    if(e == 0) return;
+	    i = (i + 1) & indexMask;
+	}
+	int j = i;
+	int home;
+	while(true) {
+	    j = (j + 1) & indexMask;
+	    e = index.getLong(j << 3);
+	    if(e == 0) break;
+	    home = (int) (e >>> 32) & indexMask;
+	    // the entry at j can't move back to i if its home is after i, up to j
+	    if((i <= j) ? ((i < home) && (home <= j)) : ((i < home) || (home <= j))) continue;
+	    index.putLong(i << 3, e);
+	    i = j;
+	}
+	index.putLong(i << 3, 0);
+    }
+
+    /** Take a response off its list.  Must hold the lock. */
+    private void unlink(int first) {
+	lruNext[lruPrev[first]] = lruNext[first];
+	lruPrev[lruNext[first]] = lruPrev[first];
+	blocks[queue[first]] -= weight[first];
+	queue[first] = REMOVED;
+    }
+
+    /** Put a response at the front of a list.  Must hold the lock. */
+    private void link(int first, byte q) {
+	int head = slab.getBlockCount() + q;
+	lruNext[first] = lruNext[head];
+	lruPrev[first] = head;
+	lruPrev[lruNext[head]] = first;
+	lruNext[head] = first;
+	queue[first] = q;
+	blocks[q] += weight[first];
+    }
+
+    long getHits() { return hits.get(); }
+
+    long getMisses() { return misses.get(); }
+
+    long getEvictions() { return evictions.get(); }
+
+    /** Return how many blocks of the slab are free, which doesn't count the blocks of responses which
+     * have been taken out but are waiting to be freed. */
+    int getFreeBlocks() {
+	lock.lock();
+	try { return slab.getFreeCount(); }
+	finally { lock.unlock(); }
+    }
+
+    public String toString() {
+	int count, used;
+	lock.lock();
+	try {
+	    count = entries;
+	    used = slab.getBlockCount() - slab.getFreeCount();
+	}
+	finally { lock.unlock(); }
+	return "Response cache: " + count + " responses; " + used + " of " + slab.getBlockCount() +
+	    " blocks; hits: " + hits.get() + "; misses: " + misses.get() + "; lost: " + lost.get() +
+	    "; evictions: " + evictions.get() + " (" + rejections.get() + " not admitted); not cached while freeing: " +
+	    crowded.get() + "; expired: " +
+	    expirations.get() + "; invalidations: " + invalidations.get() + " (" + stale.get() + " stale); refreshes: " + refreshes.get();
+    }
+}
@@ -0,0 +1,207 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import chiralsoftware.server.chiraldns.resolver.ResolverPool;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** A SelectorListener listens on any number of addresses, IPv4 and IPv6, from one thread,
+ * using non-blocking datagram channels and a Selector.  The I/O thread only receives and
+ * sends packets; each query is answered on a virtual thread with a Resolver from the pool,
+ * so the I/O thread never waits on the database.  Responses are queued back to the I/O thread,
+ * which sends them.  If a socket's send buffer is full the responses wait on that channel until
+ * it is writable again.<p>
+ * Except for queueing responses, this class is not thread-safe; it is meant to be run by one thread.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+final class SelectorListener {
+
+    private static final Logger LOG = Logger.getLogger(SelectorListener.class.getName());
+
+    /** At most this many packets are received from one channel before the other channels
+     * get a turn. */
+    private static final int RECEIVE_BATCH = 64;
+
+    /** At most this many responses can wait for one channel to be writable; more are dropped. */
+    private static final int MAX_PENDING = 1024;
+
+    private final ChiralDNS chiralDNS;
+    private final ResolverPool pool;
+    private final Selector selector;
+    private final DatagramChannel[] channels;
+
+    /** There is one permit for each query which may be in flight. */
+    private final Semaphore inFlight;
+
+    /** How many queries were dropped because too many were in flight. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** Finished queries which are waiting for the I/O thread to send them, or to give back
+     * their buffers if there is nothing to send. */
+    private final Queue outbound = new ConcurrentLinkedQueue();
+
+    /** The packet buffers.  A buffer is held from when its query is received until its response
+     * has been sent, which can be after the query's permit is released, so the pool can run out;
+     * then queries are dropped until buffers come back. */
+    private final BufferPool buffers;
+
+    private final ExecutorService executor =
+	Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("chiralDNS-query-", 0).factory());
+
+    /** Open a non-blocking channel for each address and register it with a new selector. */
+    SelectorListener(ChiralDNS chiralDNS, InetSocketAddress[] addresses, ResolverPool pool, int maxInFlight)
+	throws IOException {
+	if(chiralDNS == null) throw new NullPointerException("Can't create a listener without a chiralDNS.");
+	if(addresses == null) throw new NullPointerException("Can't create a listener without addresses.");
+	if(addresses.length == 0) throw new IllegalArgumentException("Can't create a listener with no addresses.");
+	if(pool == null) throw new NullPointerException("Can't create a listener without a resolver pool.");
+	if(maxInFlight < 1) throw new IllegalArgumentException("maxInFlight: " + maxInFlight + " is out of range.");
+	this.chiralDNS = chiralDNS;
+	this.pool = pool;
+	inFlight = new Semaphore(maxInFlight);
+	buffers = new BufferPool(chiralDNS.getUdpLength(), maxInFlight + 1, chiralDNS.isDebugBuffers());
+	selector = Selector.open();
+	channels = new DatagramChannel[addresses.length];
+	try {
+	    for(int i = 0; i < addresses.length; i++) {
+		channels[i] = ChiralDNS.openChannel(addresses[i], false);
+		channels[i].configureBlocking(false);
+		// the attachment holds the responses waiting for this channel to be writable
+		channels[i].register(selector, SelectionKey.OP_READ, new ArrayDeque());
+		LOG.finest("Listening on: " + addresses[i]);
+	    }
+	}
+	catch(IOException ioe) { release(); throw ioe; }
+    }
+
+    /** Stop all the queries in flight and close the channels and the selector. */
+    void release() {
+	executor.shutdownNow();
+	for(int i = 0; i < channels.length; i++) {
+	    if(channels[i] == null) continue;
+	    try { channels[i].close(); } catch(IOException ioe) { LOG.warning("Caught ioexception: " + ioe); }
+	}
+	try { selector.close(); } catch(IOException ioe) { LOG.warning("Caught ioexception: " + ioe); }
+	buffers.release();
+    }
+
+    /** Run the event loop.  This only returns by throwing an exception, when a channel or
+     * the selector fails. */
+    void run() throws IOException {
+	// packets which are dropped because the pool is empty are received into this
+	ByteBuffer scratch = ByteBuffer.allocateDirect(chiralDNS.getUdpLength());
+	Iterator it;
+	SelectionKey key;
+	while(true) {
+	    selector.select();
+	    sendResponses();
+	    it = selector.selectedKeys().iterator();
+	    while(it.hasNext()) {
+		key = (SelectionKey) it.next();
+		it.remove();
+		if(key.isValid() && key.isWritable()) flush(key);
+		if(key.isValid() && key.isReadable()) receive(key, scratch);
+	    }
+	}
+    }
+
+    /** Receive the packets which are waiting on this key's channel and start a query for each one. */
+    private void receive(SelectionKey key, ByteBuffer scratch) throws IOException {
+	DatagramChannel channel = (DatagramChannel) key.channel();
+	SocketAddress sa;
+	ByteBuffer bb;
+	for(int i = 0; i < RECEIVE_BATCH; i++) {
+	    bb = buffers.take();
+	    if(bb == null) bb = scratch;
+	    sa = channel.receive(bb);
+	    if(sa == null) { // nothing more to read
+		if(bb != scratch) buffers.give(bb);
+		return;
+	    }
+	    bb.flip();
+	    if((bb == scratch) || (! inFlight.tryAcquire())) {
+		if(bb != scratch) buffers.give(bb);
+		else scratch.clear();
+		if((dropped.incrementAndGet() % 1000) == 1)
+		    LOG.warning("Too many queries in flight; " + dropped.get() + " queries dropped so far.");
+		continue;
+	    }
+	    executor.execute(new SelectorQueryTask(key, bb, sa));
+	}
+    }
+
+    /** Send the responses which the query tasks have queued. */
+    private void sendResponses() {
+	SelectorQueryTask task;
+	Queue pending;
+	while((task = (SelectorQueryTask) outbound.poll()) != null) {
+	    if((! task.answered) || (! task.key.isValid())) { buffers.give(task.packet); continue; }
+	    pending = (Queue) task.key.attachment();
+	    // keep the responses in order if some are already waiting for this channel
+	    if(pending.isEmpty() && send(task)) { buffers.give(task.packet); continue; }
+	    if(pending.size() >= MAX_PENDING) { buffers.give(task.packet); continue; }
+	    pending.add(task);
+	    task.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+    }
+
+    /** Send the responses which were waiting for this key's channel to be writable. */
+    private void flush(SelectionKey key) {
+	Queue pending = (Queue) key.attachment();
+	SelectorQueryTask task;
+	while((task = (SelectorQueryTask) pending.peek()) != null) {
+	    if(! send(task)) return; // still full
+	    pending.remove();
+	    buffers.give(task.packet);
+	}
+	key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /** Try to send a response.  Returns false if the socket's send buffer is full. */
+    private boolean send(SelectorQueryTask task) {
+	DatagramChannel channel = (DatagramChannel) task.key.channel();
+	try { return channel.send(task.packet, task.sa) != 0; }
+	catch(IOException ioe) {
+	    // a failure to send one response, for instance to an unreachable address, drops that response only
+	    if(LOG.isLoggable(Level.FINE)) LOG.fine("Caught ioexception sending to " + task.sa + ": " + ioe);
+	    return true;
+	}
+    }
+
+    /** Answer one query on a virtual thread, and hand it back to the I/O thread, which sends
+     * the response if there is one and gives back the buffer. */
+    private final class SelectorQueryTask extends QueryTask {
+
+	/** The key of the channel the query came in on. */
+	private final SelectionKey key;
+
+	/** Set if there is a response to send. */
+	private volatile boolean answered = false;
+
+	SelectorQueryTask(SelectionKey key, ByteBuffer packet, SocketAddress sa) {
+	    super(chiralDNS, pool, inFlight, packet, sa, true);
+	    this.key = key;
+	}
+
+	void send() { answered = true; }
+
+	void finish() {
+	    outbound.add(this);
+	    selector.wakeup();
+	}
+    }
+}
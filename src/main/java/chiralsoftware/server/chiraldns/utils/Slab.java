@@ -0,0 +1,261 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/** A Slab is off-heap memory for the ResponseCache, cut into blocks of one size.  Each record,
+ * which is a key followed by a value, is kept in a chain of as many blocks as it needs, so any
+ * block which is freed can be used by any record, and the memory never fragments.  Each block
+ * starts with a version and the number of the next block in the chain; the first block of a record
+ * also has a header with the record's hash, the lengths of the key and the value, its flags and
+ * its generation.<p>
+ * Records are written by one thread at a time, but they are read without any lock, so the version
+ * in a record's first block works as a seqlock: it is odd while the block is free or being written,
+ * and it goes up every time, so a reader can tell if the record changed under it.  Freed blocks are
+ * used again in the order they were freed, which makes that unlikely.<p>
+ * The key of a record is a question in wire format, and it is stored with its letters folded to
+ * lower case, so that it can be compared with a question in a packet without regard to case.<p>
+ * The methods which change the slab are not thread-safe; the caller must make sure only one thread
+ * at a time calls them.  The methods which read it can be called by any thread at any time.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+final class Slab {
+
+    /** The size of a block. */
+    static final int BLOCK = 256;
+
+    /** No block. */
+    static final int NONE = -1;
+
+    private static final int VERSION = 0;
+    private static final int NEXT = 4;
+    private static final int HASH = 8;
+    private static final int KEY_LENGTH = 16;
+    private static final int VALUE_LENGTH = 18;
+    private static final int FLAGS = 20;
+    private static final int GENERATION = 24;
+
+    /** Where the data starts in the first block of a record, and in the others. */
+    private static final int FIRST_HEADER = 28;
+    private static final int LINK_HEADER = 8;
+
+    private final ByteBuffer memory;
+    private final int blockCount;
+
+    /** The free blocks, in the order they were freed: a ring from freeHead, of freeCount blocks. */
+    private final int[] free;
+    private int freeHead = 0;
+    private int freeCount;
+
+    /** @param blockCount how many blocks there are */
+    Slab(int blockCount) {
+	if((blockCount < 1) || (blockCount > Integer.MAX_VALUE / BLOCK))
+	    throw new IllegalArgumentException("Block count: " + blockCount + " is out of range.");
+	this.blockCount = blockCount;
+	memory = ByteBuffer.allocateDirect(blockCount * BLOCK).order(ByteOrder.nativeOrder());
+	free = new int[blockCount];
+	for(int i = 0; i < blockCount; i++) {
+	    free[i] = i;
+	    memory.putInt(i * BLOCK + VERSION, 1);
+	}
+	freeCount = blockCount;
+    }
+
+    int getBlockCount() { return blockCount; }
+
+    /** Return how many blocks are free. */
+    int getFreeCount() { return freeCount; }
+
+    /** Return how many blocks a record with a key and a value of these lengths takes. */
+    static int blocksFor(int keyLength, int valueLength) {
+	int length = keyLength + valueLength - (BLOCK - FIRST_HEADER);
+	if(length <= 0) return 1;
+	return 1 + (length + (BLOCK - LINK_HEADER) - 1) / (BLOCK - LINK_HEADER);
+    }
+
+    /** Write a record into a new chain of blocks, and return its first block, or NONE if there aren't
+     * enough free blocks.  The key is copied from the source buffer and folded to lower case as it
+     * goes.  The record can't be read until it is published. */
+    int allocate(long hash, int flags, int generation, ByteBuffer src, int keyOffset, int keyLength,
+		 int valueOffset, int valueLength) {
+	int count = blocksFor(keyLength, valueLength);
+	if(count > freeCount) return NONE;
+	int first = takeFree();
+	int block = first;
+	int version = memory.getInt(first * BLOCK + VERSION);
+	// a block which wasn't the first of its record last time may have an even version
+	if((version & 1) == 0) memory.putInt(first * BLOCK + VERSION, version + 1);
+	for(int i = 1; i < count; i++) {
+	    int following = takeFree();
+	    memory.putInt(block * BLOCK + NEXT, following);
+	    block = following;
+	}
+	memory.putInt(block * BLOCK + NEXT, NONE);
+	int base = first * BLOCK;
+	memory.putLong(base + HASH, hash);
+	memory.putShort(base + KEY_LENGTH, (short) keyLength);
+	memory.putChar(base + VALUE_LENGTH, (char) valueLength);
+	memory.put(base + FLAGS, (byte) flags);
+	memory.putInt(base + GENERATION, generation);
+	copyIn(first, 0, src, keyOffset, keyLength, true);
+	copyIn(first, keyLength, src, valueOffset, valueLength, false);
+	return first;
+    }
+
+    /** Make a record which has been written visible to readers. */
+    void publish(int first) {
+	// everything written before this store must be seen by a reader which sees the new version
+	VarHandle.releaseFence();
+	memory.putInt(first * BLOCK + VERSION, memory.getInt(first * BLOCK + VERSION) + 1);
+    }
+
+    /** Free the blocks of a record.  A reader which is reading it will see that it has changed. */
+    void free(int first) {
+	memory.putInt(first * BLOCK + VERSION, memory.getInt(first * BLOCK + VERSION) + 1);
+	VarHandle.releaseFence();
+	int block = first;
+	while(block != NONE) {
+	    free[(freeHead + freeCount) % blockCount] = block;
+	    freeCount++;
+	    block = memory.getInt(block * BLOCK + NEXT);
+	}
+    }
+
+    private int takeFree() {
+	int result = free[freeHead];
+	freeHead = (freeHead + 1) % blockCount;
+	freeCount--;
+	return result;
+    }
+
+    /** Return the version of the record which starts at a block, which is odd if the record isn't there. */
+    int getVersion(int first) {
+	int result = memory.getInt(first * BLOCK + VERSION);
+	VarHandle.acquireFence();
+	return result;
+    }
+
+    /** Return true if the record still has this version, after it has been read. */
+    boolean isVersion(int first, int version) {
+	VarHandle.acquireFence();
+	return memory.getInt(first * BLOCK + VERSION) == version;
+    }
+
+    long getHash(int first) { return memory.getLong(first * BLOCK + HASH); }
+
+    int getKeyLength(int first) { return memory.getShort(first * BLOCK + KEY_LENGTH); }
+
+    int getValueLength(int first) { return memory.getChar(first * BLOCK + VALUE_LENGTH); }
+
+    int getFlags(int first) { return memory.get(first * BLOCK + FLAGS); }
+
+    int getGeneration(int first) { return memory.getInt(first * BLOCK + GENERATION); }
+
+    /** Return true if the record's key is the same as the key in the buffer, without regard to
+     * case.  If the record changes while this runs the result is meaningless, but it doesn't fail. */
+    boolean keyEquals(int first, ByteBuffer bb, int offset, int length) {
+	if(getKeyLength(first) != length) return false;
+	int block = first;
+	int position = FIRST_HEADER;
+	int b;
+	for(int i = 0; i < length; i++) {
+	    if(position == BLOCK) {
+		block = memory.getInt(block * BLOCK + NEXT);
+		if((block < 0) || (block >= blockCount)) return false;
+		position = LINK_HEADER;
+	    }
+	    b = bb.get(offset + i);
+	    if((b >= 'A') && (b <= 'Z')) b += 'a' - 'A';
+	    if(memory.get(block * BLOCK + position) != b) return false;
+	    position++;
+	}
+	return true;
+    }
+
+    /** Return true if two records have the same key.  Only called by the thread which changes the slab. */
+    boolean sameKey(int first, int other) {
+	int length = getKeyLength(first);
+	if(getKeyLength(other) != length) return false;
+	int a = first;
+	int b = other;
+	int position = FIRST_HEADER;
+	for(int i = 0; i < length; i++) {
+	    if(position == BLOCK) {
+		a = memory.getInt(a * BLOCK + NEXT);
+		b = memory.getInt(b * BLOCK + NEXT);
+		position = LINK_HEADER;
+	    }
+	    if(memory.get(a * BLOCK + position) != memory.get(b * BLOCK + position)) return false;
+	    position++;
+	}
+	return true;
+    }
+
+    /** Copy the record's value into the buffer, at an offset.  Returns false if the chain of blocks
+     * was broken, which can only happen if the record changed while it was being read. */
+    boolean copyValue(int first, ByteBuffer dst, int offset) {
+	return copyOut(first, getKeyLength(first), dst, offset, getValueLength(first));
+    }
+
+    /** Copy part of the record's value, from a position in the value, into the buffer at an offset. */
+    boolean copyValue(int first, int from, ByteBuffer dst, int offset, int length) {
+	return copyOut(first, getKeyLength(first) + from, dst, offset, length);
+    }
+
+    /** Copy part of a record, starting at a position after the header, into the buffer. */
+    private boolean copyOut(int first, int position, ByteBuffer dst, int offset, int length) {
+	int block = first;
+	int start = FIRST_HEADER;
+	int n;
+	while(position >= BLOCK - start) {
+	    position -= BLOCK - start;
+	    block = memory.getInt(block * BLOCK + NEXT);
+	    if((block < 0) || (block >= blockCount)) return false;
+	    start = LINK_HEADER;
+	}
+	while(length > 0) {
+	    n = BLOCK - start - position;
+	    if(n > length) n = length;
+	    dst.put(offset, memory, block * BLOCK + start + position, n);
+	    offset += n;
+	    length -= n;
+	    position = 0;
+	    if(length > 0) {
+		block = memory.getInt(block * BLOCK + NEXT);
+		if((block < 0) || (block >= blockCount)) return false;
+		start = LINK_HEADER;
+	    }
+	}
+	return true;
+    }
+
+    /** Copy bytes from the buffer into a record, starting at a position after the header. */
+    private void copyIn(int first, int position, ByteBuffer src, int offset, int length, boolean fold) {
+	int block = first;
+	int start = FIRST_HEADER;
+	int n, b;
+	while(position >= BLOCK - start) {
+	    position -= BLOCK - start;
+	    block = memory.getInt(block * BLOCK + NEXT);
+	    start = LINK_HEADER;
+	}
+	while(length > 0) {
+	    n = BLOCK - start - position;
+	    if(n > length) n = length;
+	    if(fold) for(int i = 0; i < n; i++) {
+		b = src.get(offset + i);
+		if((b >= 'A') && (b <= 'Z')) b += 'a' - 'A';
+		memory.put(block * BLOCK + start + position + i, (byte) b);
+	    }
+	    else memory.put(block * BLOCK + start + position, src, offset, n);
+	    offset += n;
+	    length -= n;
+	    position = 0;
+	    if(length > 0) {
+		block = memory.getInt(block * BLOCK + NEXT);
+		start = LINK_HEADER;
+	    }
+	}
+    }
+}
@@ -0,0 +1,418 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import chiralsoftware.server.chiraldns.resolver.ResolverPool;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** A TcpListener answers queries over TCP, as described in RFC 7766, on any number of addresses.
+ * Each message on a connection is preceded by its length in two bytes, so a response can be
+ * as long as 65535 bytes instead of the 512 bytes of a UDP response.<p>
+ * Connections are kept open, and a client can send many queries on one connection without
+ * waiting for the answers.  One thread runs a Selector for all the connections and only reads
+ * and writes; each query is answered on its own virtual thread, using a Resolver from the pool,
+ * and the responses are written in the order they are ready, not the order the queries came in.
+ * Clients match them up with the message ids.<p>
+ * So that a client can't use up the heap, there is a limit on the number of connections,
+ * on the number of queries each connection can have in flight, and on the number of queries
+ * in flight over all the connections.  A connection which reaches a limit is not read from
+ * until its queries are answered, which pushes back on the client through TCP's flow control.
+ * Connections with nothing in flight are closed after the idle timeout, and so are connections
+ * whose client hasn't taken a response within the idle timeout, however many queries they have
+ * in flight, so a client which sends queries but never reads can't hold on to buffers and permits.<p>
+ * Except for finishing queries, this class is not thread-safe; it is meant to be run by one thread.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander
+ * @see <a href="http://www.faqs.org/rfcs/rfc7766.html">RFC 7766</a> */
+final class TcpListener {
+
+    private static final Logger LOG = Logger.getLogger(TcpListener.class.getName());
+
+    /** The longest DNS message, which is the most that the two byte length can describe. */
+    static final int LENGTH = 65535;
+
+    /** The size of a connection's read buffer to start with.  It grows if a longer query comes in. */
+    private static final int READ_BUFFER = 1024;
+
+    /** How often, in milliseconds, to look for idle connections. */
+    private static final long SCAN_INTERVAL = 1000;
+
+    private final ChiralDNS chiralDNS;
+    private final ResolverPool pool;
+    private final Selector selector;
+    private final ServerSocketChannel[] servers;
+
+    private final long idleTimeout;
+    private final int maxConnections;
+    private final int maxQueries;
+
+    /** There is one permit for each query which may be in flight, over all the connections. */
+    private final Semaphore inFlight;
+
+    /** The open connections. */
+    private final Set open = new HashSet();
+
+    /** Queries which have been answered, or dropped, and are waiting for the I/O thread. */
+    private final Queue finished = new ConcurrentLinkedQueue();
+
+    /** Connections which have a query ready but are waiting for a permit or a buffer. */
+    private final List stalled = new ArrayList();
+
+    /** The buffers the queries are answered in.  Each one has room for the two byte length and
+     * the longest message, so the response can be written straight out of it.  A buffer is held
+     * until its response is written, which can be after the query's permit is released. */
+    private final BufferPool buffers;
+
+    private final ExecutorService executor =
+	Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("chiralDNS-tcp-query-", 0).factory());
+
+    /** Open a non-blocking server socket for each address and register it with a new selector.
+     * @param idleTimeout how many seconds a connection with nothing in flight stays open, and
+     * how long a response can wait to be written before its connection is closed
+     * @param maxConnections how many connections can be open at once; more are closed right away
+     * @param maxQueries how many queries each connection can have in flight
+     * @param maxInFlight how many queries can be in flight over all the connections */
+    TcpListener(ChiralDNS chiralDNS, InetSocketAddress[] addresses, ResolverPool pool,
+		int idleTimeout, int maxConnections, int maxQueries, int maxInFlight) throws IOException {
+	if(chiralDNS == null) throw new NullPointerException("Can't create a listener without a chiralDNS.");
+	if(addresses == null) throw new NullPointerException("Can't create a listener without addresses.");
+	if(addresses.length == 0) throw new IllegalArgumentException("Can't create a listener with no addresses.");
+	if(pool == null) throw new NullPointerException("Can't create a listener without a resolver pool.");
+	if(idleTimeout < 1) throw new IllegalArgumentException("idleTimeout: " + idleTimeout + " is out of range.");
+	if(maxConnections < 1) throw new IllegalArgumentException("maxConnections: " + maxConnections + " is out of range.");
+	if(maxQueries < 1) throw new IllegalArgumentException("maxQueries: " + maxQueries + " is out of range.");
+	if(maxInFlight < 1) throw new IllegalArgumentException("maxInFlight: " + maxInFlight + " is out of range.");
+	this.chiralDNS = chiralDNS;
+	this.pool = pool;
+	this.idleTimeout = idleTimeout * 1000L;
+	this.maxConnections = maxConnections;
+	this.maxQueries = maxQueries;
+	inFlight = new Semaphore(maxInFlight);
+	buffers = new BufferPool(LENGTH + 2, maxInFlight, chiralDNS.isDebugBuffers());
+	selector = Selector.open();
+	servers = new ServerSocketChannel[addresses.length];
+	try {
+	    for(int i = 0; i < addresses.length; i++) {
+		servers[i] = ServerSocketChannel.open();
+		servers[i].setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+		servers[i].bind(addresses[i]);
+		servers[i].configureBlocking(false);
+		servers[i].register(selector, SelectionKey.OP_ACCEPT);
+		LOG.finest("Listening for TCP connections on: " + addresses[i]);
+	    }
+	}
+	catch(IOException ioe) { release(); throw ioe; }
+    }
+
+    /** Stop all the queries in flight and close the server sockets and the selector.  Closing the
+     * selector stops the event loop, which closes the connections on its way out. */
+    void release() {
+	executor.shutdownNow();
+	for(int i = 0; i < servers.length; i++) {
+	    if(servers[i] == null) continue;
+	    try { servers[i].close(); } catch(IOException ioe) { LOG.warning("Caught ioexception: " + ioe); }
+	}
+	try { selector.close(); } catch(IOException ioe) { LOG.warning("Caught ioexception: " + ioe); }
+	buffers.release();
+    }
+
+    /** Run the event loop.  This only returns by throwing an exception, when a server socket
+     * or the selector fails, or when the listener is released. */
+    void run() throws IOException {
+	Iterator it;
+	SelectionKey key;
+	long lastScan = System.currentTimeMillis();
+	long now;
+	try {
+	    while(true) {
+		selector.select(SCAN_INTERVAL);
+		finishQueries();
+		resumeStalled();
+		it = selector.selectedKeys().iterator();
+		while(it.hasNext()) {
+		    key = (SelectionKey) it.next();
+		    it.remove();
+		    if(! key.isValid()) continue;
+		    if(key.isAcceptable()) { accept((ServerSocketChannel) key.channel()); continue; }
+		    if(key.isWritable()) write((Connection) key.attachment());
+		    if(key.isValid() && key.isReadable()) read((Connection) key.attachment());
+		}
+		// writes may have given back buffers which stalled connections are waiting for
+		resumeStalled();
+		now = System.currentTimeMillis();
+		if(now - lastScan >= SCAN_INTERVAL) { closeIdle(now); lastScan = now; }
+	    }
+	}
+	finally {
+	    Object[] connections = open.toArray();
+	    for(int i = 0; i < connections.length; i++) close((Connection) connections[i]);
+	}
+    }
+
+    /** Accept the connections which are waiting on this server socket. */
+    private void accept(ServerSocketChannel server) throws IOException {
+	SocketChannel channel;
+	Connection c;
+	while((channel = server.accept()) != null) {
+	    if(open.size() >= maxConnections) {
+		LOG.fine("Too many TCP connections; closing a new one.");
+		try { channel.close(); } catch(IOException ioe) { LOG.warning("Caught ioexception: " + ioe); }
+		continue;
+	    }
+	    try {
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+		c = new Connection(channel);
+		c.key = channel.register(selector, SelectionKey.OP_READ, c);
+	    }
+	    catch(IOException ioe) {
+		LOG.fine("Caught ioexception accepting a connection: " + ioe);
+		try { channel.close(); } catch(IOException ioe2) { LOG.warning("Caught ioexception: " + ioe2); }
+		continue;
+	    }
+	    open.add(c);
+	}
+    }
+
+    /** Read what is waiting on this connection and start a query for each complete message. */
+    private void read(Connection c) {
+	int count;
+	try { count = c.channel.read(c.in); }
+	catch(IOException ioe) {
+	    if(LOG.isLoggable(Level.FINE)) LOG.fine("Caught ioexception reading from " + c.sa + ": " + ioe);
+	    close(c);
+	    return;
+	}
+	if(count == -1) {
+	    // the client won't send any more, but it still gets the answers to what it already sent
+	    c.eof = true;
+	    update(c);
+	    return;
+	}
+	c.lastActive = System.currentTimeMillis();
+	dispatch(c);
+    }
+
+    /** Start a query for each complete message in the connection's read buffer, until there are
+     * no more or a limit is reached, and then leave the rest for later. */
+    private void dispatch(Connection c) {
+	if(c.closed) return;
+	ByteBuffer in = c.in;
+	ByteBuffer buffer, packet, message;
+	int length, needed = 0;
+	in.flip();
+	while(in.remaining() >= 2) {
+	    length = in.getShort(in.position()) & 0xffff;
+	    if(length < 12) {
+		// too short to even hold a header, so this client doesn't speak DNS
+		if(LOG.isLoggable(Level.FINE)) LOG.fine("Closing connection from " + c.sa + ": message length " + length);
+		close(c);
+		return;
+	    }
+	    if(in.remaining() < length + 2) { needed = length + 2; break; }
+	    if(c.queries >= maxQueries) break;
+	    buffer = null;
+	    if(inFlight.tryAcquire() && ((buffer = buffers.take()) == null)) inFlight.release();
+	    if(buffer == null) {
+		if(! c.stalled) { c.stalled = true; stalled.add(c); }
+		break;
+	    }
+	    // the message goes in a view which starts at zero, after the room for the length
+	    packet = buffer.slice(2, LENGTH);
+	    message = in.slice(in.position() + 2, length);
+	    packet.put(message);
+	    packet.flip();
+	    in.position(in.position() + 2 + length);
+	    c.queries++;
+	    executor.execute(new TcpQueryTask(c, buffer, packet));
+	}
+	in.compact();
+	if(needed > in.capacity()) {
+	    ByteBuffer bigger = ByteBuffer.allocate(needed);
+	    in.flip();
+	    bigger.put(in);
+	    c.in = bigger;
+	}
+	update(c);
+    }
+
+    /** Add the answered queries to their connections' output and write it. */
+    private void finishQueries() {
+	TcpQueryTask task;
+	Connection c;
+	ByteBuffer response;
+	while((task = (TcpQueryTask) finished.poll()) != null) {
+	    c = task.connection;
+	    if(c.closed) { buffers.give(task.buffer); continue; }
+	    if(task.answered) {
+		// the response is already in the buffer after the room for its length
+		response = task.buffer;
+		response.putShort(0, (short) task.packet.remaining());
+		response.limit(task.packet.remaining() + 2);
+		response.position(0);
+		if(c.out.isEmpty()) c.writeWaiting = System.currentTimeMillis();
+		c.out.add(response);
+		write(c);
+	    } else {
+		// there is nothing to send for a dropped query
+		buffers.give(task.buffer);
+		c.queries--;
+		dispatch(c);
+	    }
+	}
+    }
+
+    /** Give the connections which were waiting for a permit another try. */
+    private void resumeStalled() {
+	if(stalled.isEmpty()) return;
+	Object[] waiting = stalled.toArray();
+	stalled.clear();
+	Connection c;
+	for(int i = 0; i < waiting.length; i++) {
+	    c = (Connection) waiting[i];
+	    c.stalled = false;
+	    dispatch(c);
+	}
+    }
+
+    /** Write as much of the connection's output as the socket will take. */
+    private void write(Connection c) {
+	ByteBuffer response;
+	try {
+	    while((response = (ByteBuffer) c.out.peek()) != null) {
+		c.channel.write(response);
+		if(response.hasRemaining()) break; // the send buffer is full
+		c.out.remove();
+		buffers.give(response);
+		c.queries--;
+		c.lastActive = System.currentTimeMillis();
+		c.writeWaiting = c.lastActive;
+	    }
+	}
+	catch(IOException ioe) {
+	    if(LOG.isLoggable(Level.FINE)) LOG.fine("Caught ioexception writing to " + c.sa + ": " + ioe);
+	    close(c);
+	    return;
+	}
+	// the connection may have been waiting for these queries to finish before reading more
+	dispatch(c);
+    }
+
+    /** Set the connection's interest in reading and writing, or close it if it's done. */
+    private void update(Connection c) {
+	if(c.closed) return;
+	if(c.eof && (c.queries == 0)) { close(c); return; }
+	int ops = 0;
+	if((! c.eof) && (! c.stalled) && (c.queries < maxQueries)) ops |= SelectionKey.OP_READ;
+	if(! c.out.isEmpty()) ops |= SelectionKey.OP_WRITE;
+	c.key.interestOps(ops);
+    }
+
+    /** Close the connections which have had nothing in flight for longer than the idle timeout,
+     * and the ones whose next response has been waiting to be written for longer than that. */
+    private void closeIdle(long now) {
+	Object[] connections = open.toArray();
+	Connection c;
+	for(int i = 0; i < connections.length; i++) {
+	    c = (Connection) connections[i];
+	    if((c.queries == 0) && (now - c.lastActive > idleTimeout)) { close(c); continue; }
+	    if((! c.out.isEmpty()) && (now - c.writeWaiting > idleTimeout)) {
+		if(LOG.isLoggable(Level.FINE)) LOG.fine("Closing connection from " + c.sa + ": it isn't reading its responses");
+		close(c);
+	    }
+	}
+    }
+
+    private void close(Connection c) {
+	if(c.closed) return;
+	c.closed = true;
+	open.remove(c);
+	ByteBuffer response;
+	while((response = (ByteBuffer) c.out.poll()) != null) buffers.give(response);
+	if(c.key != null) c.key.cancel();
+	try { c.channel.close(); } catch(IOException ioe) { LOG.warning("Caught ioexception: " + ioe); }
+    }
+
+    /** The state of one client connection.  It is only used by the I/O thread. */
+    private static final class Connection {
+
+	private final SocketChannel channel;
+	private SelectionKey key;
+
+	/** Where the client is, for the logs. */
+	private final SocketAddress sa;
+
+	/** Bytes read from the client which aren't part of a query yet. */
+	private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+
+	/** Responses, with their lengths, which are waiting to be written. */
+	private final Queue out = new ArrayDeque();
+
+	/** Queries which are being answered or whose responses haven't been written yet. */
+	private int queries = 0;
+
+	private long lastActive = System.currentTimeMillis();
+
+	/** When the response at the head of out started waiting to be written. */
+	private long writeWaiting = 0;
+
+	private boolean eof = false;
+	private boolean stalled = false;
+	private boolean closed = false;
+
+	Connection(SocketChannel channel) throws IOException {
+	    this.channel = channel;
+	    sa = channel.getRemoteAddress();
+	}
+    }
+
+    /** Answer one query on a virtual thread, and hand it back to the I/O thread whether or not
+     * there is a response, so the connection knows it is finished and the buffer can be given back. */
+    private final class TcpQueryTask extends QueryTask {
+
+	private final Connection connection;
+
+	/** The pooled buffer which packet is a view of. */
+	private final ByteBuffer buffer;
+
+	/** Set if there is a response to write. */
+	private volatile boolean answered = false;
+
+	TcpQueryTask(Connection connection, ByteBuffer buffer, ByteBuffer packet) {
+	    super(chiralDNS, pool, inFlight, packet, connection.sa, false);
+	    this.connection = connection;
+	    this.buffer = buffer;
+	}
+
+	void send() { answered = true; }
+
+	/** The task is handed back after its permit is released, so that the I/O thread
+	 * can use the permit for the connection's next query right away. */
+	public void run() {
+	    try { super.run(); }
+	    finally {
+		finished.add(this);
+		selector.wakeup();
+	    }
+	}
+    }
+}
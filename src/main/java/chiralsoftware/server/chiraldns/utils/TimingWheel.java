@@ -0,0 +1,169 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import java.util.Arrays;
+
+/** A TimingWheel keeps track of when entries expire, so that they can be found without
+ * checking the time on every lookup or scanning everything.  It is hierarchical: there are four
+ * wheels of 64 slots, and a slot of the first wheel is one tick, a slot of the second is 64 ticks,
+ * and so on, so the wheels reach about 16 million ticks ahead.  An entry goes in the slot
+ * of the finest wheel which reaches its expiry time.  When the wheel advances past a slot of one of the
+ * coarser wheels, the entries in it are moved down to the finer wheels, and the entries in each slot of
+ * the first wheel have expired by the time it is passed.  Scheduling, cancelling and expiring an
+ * entry all take constant time.  An entry which expires further ahead than the wheels reach is kept
+ * in the last slot of the coarsest wheel, and is moved back up when that slot comes round.<p>
+ * Entries are numbered from 0 to the capacity, and the lists of entries in each slot are kept in
+ * arrays, so there is no object for each entry.<p>
+ * The wheel doesn't know what a tick is; whoever uses it decides that, and calls advance() with the
+ * current tick.<p>
+ * This class is not thread-safe.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+final class TimingWheel {
+
+    /** How many bits of the tick each wheel covers. */
+    private static final int BITS = 6;
+
+    private static final int SLOTS = 1 << BITS;
+
+    private static final int WHEELS = 4;
+
+    /** How far ahead, in ticks, the wheels reach. */
+    private static final long SPAN = 1L << (BITS * WHEELS);
+
+    /** No entry. */
+    static final int NONE = -1;
+
+    private final int capacity;
+
+    /** When each entry expires. */
+    private final long[] expires;
+
+    /** The neighbours of each entry in its slot, or NONE if it isn't scheduled.  The sentinel of
+     * each slot's list comes after the entries, numbered capacity + wheel * SLOTS + slot.  After advance(),
+     * next links the expired entries. */
+    private final int[] prev;
+    private final int[] next;
+
+    /** The last tick the wheel advanced to. */
+    private long current;
+
+    /** How many entries are scheduled. */
+    private int size = 0;
+
+    /** @param capacity how many entries there can be
+     * @param start the current tick */
+    TimingWheel(int capacity, long start) {
+	if(capacity < 1) throw new IllegalArgumentException("Capacity: " + capacity + " is out of range.");
+	this.capacity = capacity;
+	current = start;
+	expires = new long[capacity];
+	prev = new int[capacity + WHEELS * SLOTS];
+	next = new int[capacity + WHEELS * SLOTS];
+	Arrays.fill(prev, NONE);
+	Arrays.fill(next, NONE);
+	for(int i = capacity; i < prev.length; i++) prev[i] = next[i] = i;
+    }
+
+    /** Schedule an entry to expire at a tick.  An entry which has already expired
+     * expires the next time the wheel advances.  The entry must not be scheduled already. */
+    void schedule(int entry, long tick) {
+	if((entry < 0) || (entry >= capacity)) throw new IllegalArgumentException("Entry: " + entry + " is out of range.");
+	if(prev[entry] != NONE) throw new IllegalArgumentException("Entry: " + entry + " is already scheduled.");
+	expires[entry] = tick;
+	// the slot for the current tick has already been passed
+	add(entry, current + 1);
+	size++;
+    }
+
+    /** Cancel an entry, if it is scheduled. */
+    void cancel(int entry) {
+	if(prev[entry] == NONE) return;
+	unlink(entry);
+	size--;
+    }
+
+    /** Return true if the entry is scheduled. */
+    boolean isScheduled(int entry) { return prev[entry] != NONE; }
+
+    /** Return the tick at which an entry expires. */
+    long getExpires(int entry) { return expires[entry]; }
+
+    /** Move the wheel forward to a tick, and return the first of the entries which have expired, or NONE
+     * if none have.  The rest are found with nextExpired().  They are no longer scheduled. */
+    int advance(long now) {
+	int expired = NONE;
+	int head, e;
+	// if the wheel hasn't been advanced for a very long time, every slot has to be looked at once
+	if(now - current > SPAN) current = now - SPAN;
+	while(current < now) {
+	    current++;
+	    // move the entries down from the coarser wheels whose slot has just come round
+	    for(int wheel = WHEELS - 1; wheel > 0; wheel--)
+		if((current & ((1L << (BITS * wheel)) - 1)) == 0) cascade(wheel, slot(current, wheel));
+	    head = sentinel(0, slot(current, 0));
+	    while((e = next[head]) != head) {
+		unlink(e);
+		if(expires[e] > current) add(e, current + 1);
+		else {
+		    size--;
+		    next[e] = expired;
+		    expired = e;
+		}
+	    }
+	}
+	return expired;
+    }
+
+    /** Return the expired entry after this one, from the list returned by advance(), or NONE. */
+    int nextExpired(int entry) {
+	int result = next[entry];
+	next[entry] = NONE;
+	return result;
+    }
+
+    /** Return how many entries are scheduled. */
+    int size() { return size; }
+
+    /** Put all the entries in one slot back in the wheels, which moves them to finer wheels. */
+    private void cascade(int wheel, int slot) {
+	int head = sentinel(wheel, slot);
+	// take the whole list first, because entries can be put back in the same slot
+	int e = next[head];
+	if(e == head) return;
+	next[prev[head]] = NONE;
+	prev[head] = next[head] = head;
+	int following;
+	while(e != NONE) {
+	    following = next[e];
+	    prev[e] = next[e] = NONE;
+	    // the slot for the current tick is looked at next, so an entry can go in it
+	    add(e, current);
+	    e = following;
+	}
+    }
+
+    /** Put an entry in the slot for its expiry time, or for the earliest tick if it expires before then. */
+    private void add(int entry, long earliest) {
+	long tick = expires[entry];
+	if(tick < earliest) tick = earliest;
+	if(tick - current >= SPAN) tick = current + SPAN - 1;
+	long delta = tick - current;
+	int wheel = 0;
+	while((wheel < WHEELS - 1) && (delta >= (1L << (BITS * (wheel + 1))))) wheel++;
+	int head = sentinel(wheel, slot(tick, wheel));
+	next[entry] = next[head];
+	prev[entry] = head;
+	prev[next[head]] = entry;
+	next[head] = entry;
+    }
+
+    private void unlink(int entry) {
+	next[prev[entry]] = next[entry];
+	prev[next[entry]] = prev[entry];
+	prev[entry] = next[entry] = NONE;
+    }
+
+    private int sentinel(int wheel, int slot) { return capacity + wheel * SLOTS + slot; }
+
+    private static int slot(long tick, int wheel) { return (int) (tick >>> (BITS * wheel)) & (SLOTS - 1); }
+}
@@ -0,0 +1,75 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import chiralsoftware.server.chiraldns.resolver.Resolver;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.net.SocketAddress;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** A UdpWorker receives queries on a datagram channel and answers them, one at a time.
+ * Each worker owns its receive buffer and its Resolver, and so its own database connection.
+ * Normally each worker also owns its socket, which is bound with SO_REUSEPORT so that
+ * the kernel can balance the queries across the workers.<p>
+ * This class is not thread-safe; each worker is meant to be run by exactly one thread.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+final class UdpWorker implements Worker {
+
+    private static final Logger LOG = Logger.getLogger(UdpWorker.class.getName());
+
+    private final ChiralDNS chiralDNS;
+    private final DatagramChannel channel;
+    private final Resolver resolver;
+
+    /** A direct buffer offers the highest IO performance. */
+    private final ByteBuffer bb;
+
+    /** The query being answered, which is reset() for each packet. */
+    private final Query query;
+
+    UdpWorker(ChiralDNS chiralDNS, DatagramChannel channel, Resolver resolver) {
+	if(chiralDNS == null) throw new NullPointerException("Can't create a worker without a chiralDNS.");
+	if(channel == null) throw new NullPointerException("Can't create a worker without a channel.");
+	if(resolver == null) throw new NullPointerException("Can't create a worker without a resolver.");
+	this.chiralDNS = chiralDNS;
+	this.channel = channel;
+	this.resolver = resolver;
+	bb = ByteBuffer.allocateDirect(chiralDNS.getUdpLength());
+	query = new Query(bb, true, null);
+    }
+
+    /** Release the socket and the database connection of this worker. */
+    public void release() {
+	resolver.release();
+	try { channel.close(); } catch(IOException ioe) { LOG.warning("Caught ioexception: " + ioe); }
+    }
+
+    /** Receive and answer queries until the channel fails, or the database fails and the resolver has
+     * a connection of its own.  A resolver which shares a ConnectionPool gets a new connection by itself,
+     * so the query is dropped and the worker goes on. */
+    public void run() {
+	SocketAddress sa;
+	while(true) {
+	    bb.clear();
+	    try { sa = channel.receive(bb); }
+	    catch(ClosedChannelException cce) { LOG.fine("Channel was closed; worker stopping."); return; }
+	    catch(IOException ioe) { LOG.warning("Caught ioexception while receiving: " + ioe); return; }
+	    if(LOG.isLoggable(Level.FINEST)) LOG.finest("Received a packet from this sa: " + sa);
+	    bb.flip();
+	    query.reset(bb, true, sa, RateLimiter.NO_CLIENT);
+	    try {
+		if(! chiralDNS.answer(query, resolver)) continue;
+		channel.send(bb, sa);
+	    }
+	    catch(SQLException sqe) {
+		LOG.warning("Caught sqlexception: " + sqe);
+		if(resolver.hasConnection()) return;
+	    }
+	    catch(IOException ioe) { LOG.warning("Caught ioexception while sending to " + sa + ": " + ioe); }
+	}
+    }
+}
@@ -0,0 +1,94 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import chiralsoftware.server.chiraldns.resolver.ResolverPool;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.net.SocketAddress;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/** A VirtualThreadListener receives queries on one datagram channel and hands each one to
+ * its own virtual thread.  Almost all the time spent answering a query is spent blocked in the
+ * database, and a blocked virtual thread costs very little, so thousands of queries can wait
+ * on the database at the same time instead of waiting in line.  The number of database
+ * connections is bounded by the ResolverPool, and the number of queries in flight is bounded
+ * so that a flood can't use up the heap; queries beyond that bound are dropped.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+final class VirtualThreadListener {
+
+    private static final Logger LOG = Logger.getLogger(VirtualThreadListener.class.getName());
+
+    private final ChiralDNS chiralDNS;
+    private final DatagramChannel channel;
+    private final ResolverPool pool;
+
+    /** There is one permit for each query which may be in flight. */
+    private final Semaphore inFlight;
+
+    /** How many queries were dropped because too many were in flight. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** The packet buffers.  There is one more than there are permits, so there is always
+     * one to receive into. */
+    private final BufferPool buffers;
+
+    private final ExecutorService executor =
+	Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("chiralDNS-query-", 0).factory());
+
+    VirtualThreadListener(ChiralDNS chiralDNS, DatagramChannel channel, ResolverPool pool, int maxInFlight) {
+	if(chiralDNS == null) throw new NullPointerException("Can't create a listener without a chiralDNS.");
+	if(channel == null) throw new NullPointerException("Can't create a listener without a channel.");
+	if(pool == null) throw new NullPointerException("Can't create a listener without a resolver pool.");
+	if(maxInFlight < 1) throw new IllegalArgumentException("maxInFlight: " + maxInFlight + " is out of range.");
+	this.chiralDNS = chiralDNS;
+	this.channel = channel;
+	this.pool = pool;
+	inFlight = new Semaphore(maxInFlight);
+	buffers = new BufferPool(chiralDNS.getUdpLength(), maxInFlight + 1, chiralDNS.isDebugBuffers());
+    }
+
+    /** Stop all the queries in flight and close the channel. */
+    void release() {
+	executor.shutdownNow();
+	try { channel.close(); } catch(IOException ioe) { LOG.warning("Caught ioexception: " + ioe); }
+	buffers.release();
+    }
+
+    /** Receive queries and start a virtual thread for each one.  This only returns by throwing
+     * an exception, when the channel fails. */
+    void run() throws IOException {
+	ByteBuffer bb = buffers.take();
+	SocketAddress sa;
+	while(true) {
+	    bb.clear();
+	    sa = channel.receive(bb);
+	    bb.flip();
+	    if(! inFlight.tryAcquire()) {
+		if((dropped.incrementAndGet() % 1000) == 1)
+		    LOG.warning("Too many queries in flight; " + dropped.get() + " queries dropped so far.");
+		continue;
+	    }
+	    // the query keeps the buffer it was received into, and the next one gets a new buffer
+	    executor.execute(new VirtualQueryTask(bb, sa));
+	    bb = buffers.take();
+	}
+    }
+
+    /** Answer one query, on its own virtual thread, and send the response straight back on the channel,
+     * which is safe because DatagramChannel.send is thread-safe. */
+    private final class VirtualQueryTask extends QueryTask {
+
+	VirtualQueryTask(ByteBuffer packet, SocketAddress sa) {
+	    super(chiralDNS, pool, inFlight, packet, sa, true);
+	}
+
+	void send() throws IOException { channel.send(packet, sa); }
+
+	void finish() { buffers.give(packet); }
+    }
+}
@@ -0,0 +1,12 @@
+package chiralsoftware.server.chiraldns.utils;
+
+/** A Worker is a thread's worth of query answering, with its own socket, buffers and Resolver.
+ * ChiralDNS runs one thread per Worker.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+interface Worker extends Runnable {
+
+    /** Release the socket and the database connection of this worker.  This may be called
+     * from another thread, and it should make run() return. */
+    void release();
+}
@@ -0,0 +1,176 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import chiralsoftware.server.chiraldns.name.Name;
+import chiralsoftware.server.chiraldns.resolver.AuthorityIndex;
+import chiralsoftware.server.chiraldns.resolver.MemoryZoneStore;
+import chiralsoftware.server.chiraldns.resolver.NodeCache;
+import chiralsoftware.server.chiraldns.resolver.Resolver;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** A ZoneWatcher looks in the database, every so often, for nodes and records which have been added
+ * since it last looked, and drops the cached responses for their names and the names below them.  If the
+ * resolvers answer from a MemoryZoneStore, it reads all the zone data into the store again first.  The
+ * zone data is changed by Resolver.addName() and addRdata(), which LoadFile and the console call from
+ * processes of their own, so the database is the only place the server can find out about them.
+ * Any change at all clears the NegativeCache, because a new name can fill in any closest encloser, and the
+ * NodeCache, which may remember that a new label wasn't there, and the AuthorityIndex, since new SOA or NS
+ * records move the apex or the cut of every node below them.<p>
+ * A change to a wildcard node, *.example.com, drops the responses for example.com and every name below it,
+ * since any of those names which doesn't have a node of its own may have been answered from the wildcard.<p>
+ * Responses which depend on names somewhere else, such as the target of a CNAME or the address of a
+ * name server in another zone, aren't dropped when those names change; they last until their ttl runs out.<p>
+ * Rows are numbered from sequences, and a row's number is taken before it is committed, so a row can
+ * become visible after rows with higher numbers.  The watcher keeps looking at the rows above where it
+ * had got to LAG seconds ago, and skips the ones it has already seen, so a row is only missed if the
+ * transaction which adds it takes longer than that to commit.<p>
+ * A ZoneWatcher has a database connection of its own.  If the database fails, it keeps trying, and it
+ * picks up where it left off, so no changes are missed.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+final class ZoneWatcher implements Runnable {
+
+    private static final Logger LOG = Logger.getLogger(ZoneWatcher.class.getName());
+
+    /** How many seconds behind the newest rows it has seen the watcher keeps looking for rows. */
+    static final int LAG = 60;
+
+    private final Resolver resolver;
+    private final ResponseCache cache;
+    private final NegativeCache negativeCache;
+    private final MemoryZoneStore zoneStore;
+    private final NodeCache nodeCache;
+    private final AuthorityIndex authorityIndex;
+    private final long interval;
+
+    /** Where the last look at the database got to: the highest row it found in each table. */
+    private final int[] marks;
+
+    /** Where the marks were LAG seconds ago; the rows above these are looked at every time. */
+    private final int[] floors;
+
+    /** The rows above the floors which have been found, for Database.getChangedNodes(). */
+    private Set seen = new HashSet();
+
+    /** The marks after each of the last few looks, oldest first, which become the floors in turn. */
+    private final LinkedList history = new LinkedList();
+
+    /** How many looks there are in LAG seconds. */
+    private final int lagChecks;
+
+    /** Holds each changed name, in wire format; no name is longer than 255 bytes. */
+    private final ByteBuffer name = ByteBuffer.allocate(256);
+
+    private Thread thread = null;
+
+    /** Create a new watcher, which will find the changes made after this.
+     * @param cache the response cache, or null if there isn't one
+     * @param negativeCache the negative cache, or null if there isn't one
+     * @param zoneStore the store to read the zone data into again, or null if there isn't one
+     * @param nodeCache the node cache, or null if there isn't one
+     * @param authorityIndex the authority index, or null if there isn't one
+     * @param interval how many seconds to wait between looks */
+    ZoneWatcher(Resolver resolver, ResponseCache cache, NegativeCache negativeCache, MemoryZoneStore zoneStore,
+		NodeCache nodeCache, AuthorityIndex authorityIndex, int interval) throws SQLException {
+	if(resolver == null) throw new NullPointerException("Can't create a watcher without a resolver.");
+	if((cache == null) && (zoneStore == null) && (nodeCache == null) && (authorityIndex == null)) throw new NullPointerException("Can't create a watcher with nothing to watch for.");
+	if(interval < 1) throw new IllegalArgumentException("Interval: " + interval + " is out of range.");
+	this.resolver = resolver;
+	this.cache = cache;
+	this.negativeCache = negativeCache;
+	this.zoneStore = zoneStore;
+	this.nodeCache = nodeCache;
+	this.authorityIndex = authorityIndex;
+	this.interval = interval * 1000L;
+	marks = resolver.getChangeMarks();
+	floors = marks.clone();
+	lagChecks = (LAG + interval - 1) / interval;
+    }
+
+    /** Start watching, on a thread of its own. */
+    synchronized void start() {
+	if(thread != null) throw new IllegalStateException("The zone watcher has already been started.");
+	thread = new Thread(this, "chiralDNS-zoneWatcher");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    /** Stop watching, and release the database connection. */
+    synchronized void release() {
+	if(thread != null) thread.interrupt();
+	else resolver.release();
+    }
+
+    public void run() {
+	try {
+	    while(true) {
+		Thread.sleep(interval);
+		try { check(); }
+		catch(SQLException sqe) { LOG.warning("Caught sqlexception while looking for changes: " + sqe); }
+	    }
+	}
+	catch(InterruptedException ie) { LOG.finest("Zone watcher is stopping."); }
+	finally { resolver.release(); }
+    }
+
+    /** Return a copy of where the watcher has got to, for ResponseCache.save(): the floors, since a
+     * row below the marks may not have been found yet.  Every change before them has already been
+     * dropped from the cache. */
+    synchronized int[] getMarks() { return floors.clone(); }
+
+    /** Return how many marks there are. */
+    int getMarkCount() { return marks.length; }
+
+    /** Drop the responses affected by the changes made since some earlier marks, which came from
+     * getMarks(), for a cache which was loaded from a file.  The changes between the saved marks and
+     * where this watcher started may be found again later, which does no harm. */
+    synchronized void replay(int[] saved) throws SQLException {
+	if(saved.length != marks.length) throw new IllegalArgumentException("There should be " + marks.length + " marks.");
+	invalidate(resolver.getChangedNames(saved, saved.clone(), new HashSet()));
+    }
+
+    /** Look for changes once, read the zone data again if there are any, and drop the responses they affect.
+     * The marks only move once that is done, so if it fails the changes are found again next time. */
+    synchronized void check() throws SQLException {
+	int[] next = marks.clone();
+	Set nextSeen = new HashSet(seen);
+	Set names = resolver.getChangedNames(floors, next, nextSeen);
+	if(! names.isEmpty()) {
+	    // the store is loaded first, so a response resolved after the cache is invalidated has the new data
+	    if(zoneStore != null) resolver.load(zoneStore);
+	    if(nodeCache != null) nodeCache.clear();
+	    if(authorityIndex != null) authorityIndex.clear();
+	    invalidate(names);
+	}
+	System.arraycopy(next, 0, marks, 0, marks.length);
+	seen = nextSeen;
+	history.addLast(next);
+	if(history.size() > lagChecks) System.arraycopy((int[]) history.removeFirst(), 0, floors, 0, floors.length);
+    }
+
+    private void invalidate(Set names) {
+	if(names.isEmpty() || (cache == null)) return;
+	if(negativeCache != null) negativeCache.clear();
+	Iterator it = names.iterator();
+	Name n;
+	while(it.hasNext()) {
+	    n = (Name) it.next();
+	    if(LOG.isLoggable(Level.FINE)) LOG.fine("Zone data changed for: " + n);
+	    name.clear();
+	    n.send(name);
+	    name.flip();
+	    cache.invalidate(name);
+	    // the names the wildcard matched are below its parent, so that is dropped as well
+	    if((name.get(0) == 1) && (name.get(1) == '*')) {
+		name.position(2);
+		cache.invalidate(name);
+	    }
+	}
+    }
+}
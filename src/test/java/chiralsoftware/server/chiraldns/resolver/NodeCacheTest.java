@@ -0,0 +1,89 @@
+package chiralsoftware.server.chiraldns.resolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/** Tests of the NodeCache: what is found and what is absent, forgetting labels which may have been
+ * added, and the generation which keeps a lookup from before a change out of the cache.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+public class NodeCacheTest {
+
+    @Test
+    public void aNodeWhichWasFoundIsRemembered() {
+	NodeCache cache = new NodeCache(1024);
+	assertEquals(NodeCache.UNKNOWN, cache.get(7, "www"));
+	cache.put(7, "www", NodeCache.found(42, true), cache.getGeneration());
+	long found = cache.get(7, "www");
+	assertEquals(42, NodeCache.getNumber(found));
+	assertTrue(NodeCache.isStar(found));
+	cache.put(7, "ftp", NodeCache.found(43, false), cache.getGeneration());
+	assertEquals(43, NodeCache.getNumber(cache.get(7, "ftp")));
+	assertFalse(NodeCache.isStar(cache.get(7, "ftp")));
+    }
+
+    @Test
+    public void aLabelWhichIsntThereIsRememberedAsAbsent() {
+	NodeCache cache = new NodeCache(1024);
+	cache.put(7, "nothere", NodeCache.ABSENT, cache.getGeneration());
+	assertEquals(NodeCache.ABSENT, cache.get(7, "nothere"));
+    }
+
+    @Test
+    public void labelsAreKeptApartByTheirPreviousNode() {
+	NodeCache cache = new NodeCache(1024);
+	cache.put(7, "www", NodeCache.found(42, false), cache.getGeneration());
+	assertEquals(NodeCache.UNKNOWN, cache.get(8, "www"));
+	assertEquals(NodeCache.UNKNOWN, cache.get(7 + (1 << 20), "www"));
+	cache.put(8, "www", NodeCache.ABSENT, cache.getGeneration());
+	assertEquals(42, NodeCache.getNumber(cache.get(7, "www")));
+	assertEquals(NodeCache.ABSENT, cache.get(8, "www"));
+    }
+
+    @Test
+    public void aRemovedLabelIsForgotten() {
+	NodeCache cache = new NodeCache(1024);
+	cache.put(7, "new", NodeCache.ABSENT, cache.getGeneration());
+	cache.put(7, "old", NodeCache.found(42, false), cache.getGeneration());
+	cache.remove(7, "new");
+	assertEquals(NodeCache.UNKNOWN, cache.get(7, "new"));
+	assertEquals(42, NodeCache.getNumber(cache.get(7, "old")));
+	cache.clear();
+	assertEquals(NodeCache.UNKNOWN, cache.get(7, "old"));
+    }
+
+    @Test
+    public void whatWasLookedUpBeforeAChangeIsntCached() {
+	NodeCache cache = new NodeCache(1024);
+	int generation = cache.getGeneration();
+	// the label is added, and the cache is told, while it is being looked up
+	cache.remove(7, "new");
+	cache.put(7, "new", NodeCache.ABSENT, generation);
+	assertEquals(NodeCache.UNKNOWN, cache.get(7, "new"));
+	cache.put(7, "new", NodeCache.found(42, false), cache.getGeneration());
+	assertEquals(42, NodeCache.getNumber(cache.get(7, "new")));
+    }
+
+    @Test
+    public void aFullCacheReplacesEntries() {
+	NodeCache cache = new NodeCache(4);
+	for(int i = 1; i <= 100; i++) {
+	    cache.put(7, "label" + i, NodeCache.found(i, false), cache.getGeneration());
+	    assertEquals(i, NodeCache.getNumber(cache.get(7, "label" + i)));
+	}
+	int remembered = 0;
+	for(int i = 1; i <= 100; i++) {
+	    long found = cache.get(7, "label" + i);
+	    if(found == NodeCache.UNKNOWN) continue;
+	    // nothing is ever taken for another label's node
+	    assertEquals(i, NodeCache.getNumber(found));
+	    remembered++;
+	}
+	assertTrue(remembered <= 4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nodeNumbersStartAtOne() { NodeCache.found(0, false); }
+}
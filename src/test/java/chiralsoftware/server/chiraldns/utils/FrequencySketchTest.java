@@ -0,0 +1,36 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/** Tests of the FrequencySketch which the ResponseCache uses to decide what to admit.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+public class FrequencySketchTest {
+
+    @Test
+    public void estimatesAreNeverTooLow() {
+	FrequencySketch sketch = new FrequencySketch(1024);
+	for(int key = 0; key < 200; key++)
+	    for(int i = 0; i < key % 20; i++) sketch.increment(key);
+	for(int key = 0; key < 200; key++)
+	    assertTrue("key " + key, sketch.frequency(key) >= Math.min(key % 20, 15));
+    }
+
+    @Test
+    public void countersStopAtFifteen() {
+	FrequencySketch sketch = new FrequencySketch(16);
+	for(int i = 0; i < 100; i++) sketch.increment(42);
+	assertEquals(15, sketch.frequency(42));
+    }
+
+    @Test
+    public void countersAreHalvedAfterTheSample() {
+	// sixteen longs of sixteen counters, so the counters are halved after 160 increments
+	FrequencySketch sketch = new FrequencySketch(16);
+	for(int i = 0; i < 15; i++) sketch.increment(42);
+	for(int key = 1000; key < 1145; key++) sketch.increment(key);
+	assertEquals(7, sketch.frequency(42));
+    }
+}
@@ -0,0 +1,90 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import org.junit.Test;
+
+/** Tests of the RateLimiter: the token buckets, which responses are dropped and which slip,
+ * the bucket for each network's cache misses, and the networks clients are counted by.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+public class RateLimiterTest {
+
+    private static final long CLIENT = RateLimiter.prefix(new byte[] { 10, 1, 2, 3 });
+
+    private static final long OTHER = RateLimiter.prefix(new byte[] { 10, 1, 3, 3 });
+
+    @Test
+    public void aBurstOfTheRateIsAllowedAndTheRestAreDropped() {
+	RateLimiter limiter = new RateLimiter(5, 5, 0, 1024);
+	for(int i = 0; i < 5; i++) assertEquals("query " + i, RateLimiter.ALLOW, limiter.check(CLIENT, 7));
+	for(int i = 0; i < 5; i++) assertEquals("query " + i, RateLimiter.DROP, limiter.check(CLIENT, 7));
+    }
+
+    @Test
+    public void everySlipthLimitedResponseSlips() {
+	RateLimiter limiter = new RateLimiter(1, 1, 3, 1024);
+	assertEquals(RateLimiter.ALLOW, limiter.check(CLIENT, 7));
+	int[] expected = { RateLimiter.DROP, RateLimiter.DROP, RateLimiter.SLIP,
+			   RateLimiter.DROP, RateLimiter.DROP, RateLimiter.SLIP };
+	for(int i = 0; i < expected.length; i++) assertEquals("query " + i, expected[i], limiter.check(CLIENT, 7));
+    }
+
+    @Test
+    public void eachNetworkAndQuestionHasItsOwnBucket() {
+	RateLimiter limiter = new RateLimiter(1, 1, 0, 1 << 16);
+	assertEquals(RateLimiter.ALLOW, limiter.check(CLIENT, 7));
+	assertEquals(RateLimiter.DROP, limiter.check(CLIENT, 7));
+	assertEquals(RateLimiter.ALLOW, limiter.check(CLIENT, 8));
+	assertEquals(RateLimiter.ALLOW, limiter.check(OTHER, 7));
+    }
+
+    @Test
+    public void missesShareOneBucketForTheNetwork() {
+	RateLimiter limiter = new RateLimiter(10, 2, 0, 1 << 16);
+	// a different question every time gets past the buckets for each question, but not this one
+	for(int question = 0; question < 2; question++) {
+	    assertEquals(RateLimiter.ALLOW, limiter.check(CLIENT, question));
+	    assertEquals(RateLimiter.ALLOW, limiter.checkMiss(CLIENT));
+	}
+	assertEquals(RateLimiter.ALLOW, limiter.check(CLIENT, 2));
+	assertEquals(RateLimiter.DROP, limiter.checkMiss(CLIENT));
+	assertEquals(RateLimiter.ALLOW, limiter.checkMiss(OTHER));
+    }
+
+    @Test
+    public void bucketsFillUpAgain() throws InterruptedException {
+	RateLimiter limiter = new RateLimiter(100, 100, 0, 1024);
+	for(int i = 0; i < 100; i++) limiter.check(CLIENT, 7);
+	assertEquals(RateLimiter.DROP, limiter.check(CLIENT, 7));
+	// a token every ten milliseconds
+	Thread.sleep(50);
+	assertEquals(RateLimiter.ALLOW, limiter.check(CLIENT, 7));
+    }
+
+    @Test
+    public void clientsAreCountedByNetwork() throws UnknownHostException {
+	assertEquals(CLIENT, RateLimiter.prefix(new byte[] { 10, 1, 2, (byte) 200 }));
+	assertNotEquals(CLIENT, OTHER);
+	assertEquals(CLIENT, RateLimiter.prefix(new InetSocketAddress(InetAddress.getByName("10.1.2.9"), 53)));
+	// an IPv4-mapped IPv6 address is the IPv4 address
+	byte[] mapped = new byte[16];
+	mapped[10] = (byte) 0xff;
+	mapped[11] = (byte) 0xff;
+	mapped[12] = 10;
+	mapped[13] = 1;
+	mapped[14] = 2;
+	assertEquals(CLIENT, RateLimiter.prefix(mapped));
+	assertEquals(RateLimiter.prefix(InetAddress.getByName("2001:db8:1:200::1").getAddress()),
+		     RateLimiter.prefix(InetAddress.getByName("2001:db8:1:2ff::2").getAddress()));
+	assertNotEquals(RateLimiter.prefix(InetAddress.getByName("2001:db8:1:200::1").getAddress()),
+			RateLimiter.prefix(InetAddress.getByName("2001:db8:1:300::1").getAddress()));
+	assertEquals(RateLimiter.NO_CLIENT, RateLimiter.prefix(new byte[3]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aRateWhichDoesntFitIsRejected() { new RateLimiter(RateLimiter.MAX_RATE + 1, 1, 0, 1024); }
+}
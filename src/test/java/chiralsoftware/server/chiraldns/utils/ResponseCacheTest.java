@@ -0,0 +1,236 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import chiralsoftware.server.chiraldns.dns.Compressor;
+import chiralsoftware.server.chiraldns.dns.Type;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/** Tests of the ResponseCache: its open addressing index, the deferred freeing of responses which
+ * are taken out, W-TinyLFU admission, dropping responses when the zone data changes, and the cache file.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+public class ResponseCacheTest {
+
+    /** A cache of 1024 blocks, whose index has 2048 slots. */
+    private static final int BYTES = 1024 * Slab.BLOCK;
+
+    private static final int INDEX_SIZE = 2048;
+
+    /** Write a name, whose labels are separated by dots, in wire format. */
+    private static void putName(ByteBuffer bb, String name) {
+	String[] labels = name.split("\\.");
+	for(int i = 0; i < labels.length; i++) {
+	    bb.put((byte) labels[i].length());
+	    bb.put(labels[i].getBytes(StandardCharsets.US_ASCII));
+	}
+	bb.put((byte) 0);
+    }
+
+    /** Make a query for a name. */
+    private static ByteBuffer query(String label) {
+	ByteBuffer bb = ByteBuffer.allocate(512);
+	bb.position(Compressor.HEADER_LENGTH);
+	putName(bb, label);
+	bb.putShort(Type.A);
+	bb.putShort((short) 1);
+	bb.flip();
+	return bb;
+    }
+
+    private static int keyLength(ByteBuffer bb) { return ResponseCache.keyLength(bb, Compressor.HEADER_LENGTH); }
+
+    private static long hash(ByteBuffer bb) { return ResponseCache.hash(bb, Compressor.HEADER_LENGTH, keyLength(bb)); }
+
+    /** Cache a response to the query for a label, which is the query with a marker after it. */
+    private static void put(ResponseCache cache, String label, long hash, int marker, int ttl) {
+	ByteBuffer bb = query(label);
+	bb.limit(bb.limit() + 4);
+	bb.putInt(bb.limit() - 4, marker);
+	cache.put(bb, keyLength(bb), hash, false, cache.generation(bb, Compressor.HEADER_LENGTH), ttl);
+    }
+
+    private static void put(ResponseCache cache, String label, int marker) {
+	put(cache, label, hash(query(label)), marker, 300);
+    }
+
+    /** Look up the response to the query for a label, and return its marker, or -1 if it isn't cached. */
+    private static int get(ResponseCache cache, String label, long hash) {
+	ByteBuffer bb = query(label);
+	int found = cache.get(bb, keyLength(bb), hash, false, cache.generation(bb, Compressor.HEADER_LENGTH), 512);
+	assertTrue(found != ResponseCache.LOST);
+	if(found == ResponseCache.MISS) return -1;
+	return bb.getInt(bb.limit() - 4);
+    }
+
+    private static int get(ResponseCache cache, String label) { return get(cache, label, hash(query(label))); }
+
+    private static void invalidate(ResponseCache cache, String name) {
+	ByteBuffer bb = ByteBuffer.allocate(256);
+	putName(bb, name);
+	bb.flip();
+	cache.invalidate(bb);
+    }
+
+    /** Return a hash whose home slot in the index is this one. */
+    private static long home(int slot, int low) { return ((long) slot << 32) | low; }
+
+    @Test
+    public void aResponseIsFoundWithItsQuestionInAnyCase() {
+	ResponseCache cache = new ResponseCache(BYTES);
+	put(cache, "www", 7);
+	assertEquals(7, get(cache, "WwW"));
+	assertEquals(-1, get(cache, "ftp"));
+    }
+
+    @Test
+    public void deletingKeepsTheRestOfTheProbeSequence() throws InterruptedException {
+	ResponseCache cache = new ResponseCache(BYTES);
+	// a, b and c all belong in one slot, and d in the one after it, so d is pushed past c;
+	// the same again at the end of the index, where the probes wrap round
+	int[] homes = { 5, INDEX_SIZE - 1 };
+	for(int i = 0; i < homes.length; i++) {
+	    put(cache, "a" + i, home(homes[i], 1), 1, 1);
+	    put(cache, "b" + i, home(homes[i], 2), 2, 300);
+	    put(cache, "c" + i, home(homes[i], 3), 3, 300);
+	    put(cache, "d" + i, home((homes[i] + 1) % INDEX_SIZE, 4), 4, 300);
+	}
+	// the wheel ticks once a second, so a expires at the second tick
+	Thread.sleep(2100);
+	cache.expire();
+	for(int i = 0; i < homes.length; i++) {
+	    assertEquals(-1, get(cache, "a" + i, home(homes[i], 1)));
+	    assertEquals(2, get(cache, "b" + i, home(homes[i], 2)));
+	    assertEquals(3, get(cache, "c" + i, home(homes[i], 3)));
+	    assertEquals(4, get(cache, "d" + i, home((homes[i] + 1) % INDEX_SIZE, 4)));
+	}
+    }
+
+    @Test
+    public void aReplacedResponseIsFreedAfterTwoRounds() {
+	ResponseCache cache = new ResponseCache(BYTES);
+	int free = cache.getFreeBlocks();
+	put(cache, "www", 1);
+	put(cache, "www", 2);
+	assertEquals(2, get(cache, "www"));
+	// a lookup may still be copying the old response, so its blocks aren't used again yet
+	assertEquals(free - 2, cache.getFreeBlocks());
+	cache.expire();
+	assertEquals(free - 2, cache.getFreeBlocks());
+	cache.expire();
+	assertEquals(free - 1, cache.getFreeBlocks());
+	assertEquals(2, get(cache, "www"));
+    }
+
+    @Test
+    public void aFloodOfNewQuestionsDoesntPushOutPopularOnes() {
+	ResponseCache cache = new ResponseCache(BYTES);
+	int popular = 200;
+	for(int i = 0; i < popular; i++) {
+	    assertEquals(-1, get(cache, "popular" + i));
+	    put(cache, "popular" + i, i);
+	}
+	for(int round = 0; round < 5; round++)
+	    for(int i = 0; i < popular; i++) assertEquals(i, get(cache, "popular" + i));
+	// far more names than fit, each asked once, as a random name attack would
+	for(int i = 0; i < 5000; i++) {
+	    assertEquals(-1, get(cache, "flood" + i));
+	    put(cache, "flood" + i, i);
+	    // stand in for the expiry thread, which frees the responses which were evicted
+	    if((i % 50) == 0) { cache.expire(); cache.expire(); }
+	}
+	assertTrue(cache.getEvictions() > 0);
+	for(int i = 0; i < popular; i++) assertEquals(i, get(cache, "popular" + i));
+	// the newest response is in the window, whatever its frequency
+	assertEquals(4999, get(cache, "flood4999"));
+    }
+
+    @Test
+    public void savedResponsesAreLoadedAgain() throws java.io.IOException {
+	Path file = Files.createTempFile("responses", ".cache");
+	try {
+	    ResponseCache cache = new ResponseCache(BYTES);
+	    for(int i = 0; i < 50; i++) put(cache, "name" + i, i);
+	    int[] marks = { 3, 4 };
+	    assertEquals(50, cache.save(file, marks));
+	    ResponseCache loaded = new ResponseCache(BYTES);
+	    assertArrayEquals(marks, loaded.load(file, marks.length));
+	    for(int i = 0; i < 50; i++) assertEquals(i, get(loaded, "name" + i));
+	}
+	finally { Files.deleteIfExists(file); }
+    }
+
+    /** Save three responses, damage the second one's key length and the first byte of its name,
+     * and return how many of the three are found after the file is loaded into a new cache. */
+    private static int loadDamaged(int keyLength, int label) throws java.io.IOException {
+	Path file = Files.createTempFile("responses", ".cache");
+	try {
+	    ResponseCache cache = new ResponseCache(BYTES);
+	    for(int i = 0; i < 3; i++) put(cache, "name" + i, i);
+	    assertEquals(3, cache.save(file, new int[0]));
+	    byte[] bytes = Files.readAllBytes(file);
+	    // the header is 20 bytes, and each response has 9 bytes in front of it
+	    ByteBuffer bb = ByteBuffer.wrap(bytes);
+	    int second = 20 + 9 + bb.getShort(20 + 7);
+	    bb.putShort(second + 5, (short) keyLength);
+	    bb.put(second + 9 + Compressor.HEADER_LENGTH - 2, (byte) label);
+	    Files.write(file, bytes);
+	    ResponseCache loaded = new ResponseCache(BYTES);
+	    assertEquals(0, loaded.load(file, 0).length);
+	    int result = 0;
+	    for(int i = 0; i < 3; i++) if(get(loaded, "name" + i) != -1) result++;
+	    return result;
+	}
+	finally { Files.deleteIfExists(file); }
+    }
+
+    @Test
+    public void aDamagedFileIsReadAsFarAsItIsGood() throws java.io.IOException {
+	// a key length of 0xffff reads as -1, which is also what a name which isn't well formed measures
+	assertEquals(1, loadDamaged(0xffff, 0xc0));
+	assertEquals(1, loadDamaged(0xffff, 0xff));
+	assertEquals(1, loadDamaged(0, 0));
+	assertEquals(1, loadDamaged(6, 0x40));
+    }
+
+    @Test
+    public void aChangeDropsTheResponsesForTheNameAndTheNamesBelowIt() {
+	ResponseCache cache = new ResponseCache(BYTES);
+	put(cache, "example", 1);
+	put(cache, "www.example", 2);
+	put(cache, "a.b.example", 3);
+	put(cache, "other", 4);
+	put(cache, "example.other", 5);
+	invalidate(cache, "EXAMPLE");
+	assertEquals(-1, get(cache, "example"));
+	assertEquals(-1, get(cache, "www.example"));
+	assertEquals(-1, get(cache, "a.b.example"));
+	assertEquals(4, get(cache, "other"));
+	assertEquals(5, get(cache, "example.other"));
+	// a new response is used again
+	put(cache, "www.example", 6);
+	assertEquals(6, get(cache, "www.example"));
+	// and a change below a name leaves the name alone
+	invalidate(cache, "b.example");
+	assertEquals(-1, get(cache, "a.b.example"));
+	assertEquals(6, get(cache, "www.example"));
+    }
+
+    @Test
+    public void aResponseMadeBeforeAChangeIsntUsed() {
+	ResponseCache cache = new ResponseCache(BYTES);
+	ByteBuffer bb = query("www.example");
+	// the generation is taken before the response is resolved, and the zone data changes meanwhile
+	int generation = cache.generation(bb, Compressor.HEADER_LENGTH);
+	invalidate(cache, "example");
+	bb.limit(bb.limit() + 4);
+	bb.putInt(bb.limit() - 4, 1);
+	cache.put(bb, keyLength(bb), hash(bb), false, generation, 300);
+	assertEquals(-1, get(cache, "www.example"));
+    }
+}
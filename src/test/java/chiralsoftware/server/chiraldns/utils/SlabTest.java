@@ -0,0 +1,107 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/** Tests of the Slab: the versions which readers use as a seqlock, the order blocks are used again in,
+ * and records which take more than one block.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+public class SlabTest {
+
+    /** Write a record with a key and a value and publish it, and return its first block, or NONE. */
+    private static int put(Slab slab, String key, String value) {
+	ByteBuffer bb = ByteBuffer.wrap((key + value).getBytes(StandardCharsets.US_ASCII));
+	int first = slab.allocate(key.hashCode(), 0, 0, bb, 0, key.length(), key.length(), value.length());
+	if(first != Slab.NONE) slab.publish(first);
+	return first;
+    }
+
+    private static String value(Slab slab, int first) {
+	ByteBuffer bb = ByteBuffer.allocate(slab.getValueLength(first));
+	assertTrue(slab.copyValue(first, bb, 0));
+	return new String(bb.array(), StandardCharsets.US_ASCII);
+    }
+
+    private static String repeat(char c, int count) {
+	StringBuffer sb = new StringBuffer(count);
+	for(int i = 0; i < count; i++) sb.append(c);
+	return sb.toString();
+    }
+
+    @Test
+    public void versionIsOddUntilPublishedAndAfterFreed() {
+	Slab slab = new Slab(4);
+	assertEquals(1, slab.getVersion(0) & 1);
+	ByteBuffer bb = ByteBuffer.wrap("keyvalue".getBytes(StandardCharsets.US_ASCII));
+	int first = slab.allocate(1, 0, 0, bb, 0, 3, 3, 5);
+	assertEquals(1, slab.getVersion(first) & 1);
+	slab.publish(first);
+	int version = slab.getVersion(first);
+	assertEquals(0, version & 1);
+	assertTrue(slab.isVersion(first, version));
+	slab.free(first);
+	assertEquals(1, slab.getVersion(first) & 1);
+	assertFalse(slab.isVersion(first, version));
+    }
+
+    @Test
+    public void freedBlocksAreUsedAgainLast() {
+	Slab slab = new Slab(4);
+	int a = put(slab, "a", "1");
+	int version = slab.getVersion(a);
+	slab.free(a);
+	// the blocks which were never used come first, so a reader of a has as long as possible
+	int b = put(slab, "b", "2");
+	int c = put(slab, "c", "3");
+	int d = put(slab, "d", "4");
+	assertNotEquals(a, b);
+	assertNotEquals(a, c);
+	assertNotEquals(a, d);
+	int e = put(slab, "e", "5");
+	assertEquals(a, e);
+	// the block which came back has a version which no reader of a can mistake for a's
+	assertNotEquals(version, slab.getVersion(e));
+	assertEquals(0, slab.getVersion(e) & 1);
+	assertEquals("5", value(slab, e));
+    }
+
+    @Test
+    public void recordsCanTakeMoreThanOneBlock() {
+	Slab slab = new Slab(8);
+	String value = repeat('x', 300) + repeat('y', 300);
+	assertEquals(3, Slab.blocksFor(3, value.length()));
+	int first = put(slab, "key", value);
+	assertEquals(5, slab.getFreeCount());
+	assertEquals(value, value(slab, first));
+	ByteBuffer part = ByteBuffer.allocate(10);
+	assertTrue(slab.copyValue(first, 295, part, 0, 10));
+	assertEquals("xxxxxyyyyy", new String(part.array(), StandardCharsets.US_ASCII));
+	slab.free(first);
+	assertEquals(8, slab.getFreeCount());
+    }
+
+    @Test
+    public void allocateFailsWhenThereIsNoRoom() {
+	Slab slab = new Slab(2);
+	assertEquals(Slab.NONE, put(slab, "key", repeat('x', 600)));
+	assertEquals(2, slab.getFreeCount());
+    }
+
+    @Test
+    public void keysAreComparedWithoutRegardToCase() {
+	Slab slab = new Slab(4);
+	int first = put(slab, "WwW", "value");
+	ByteBuffer bb = ByteBuffer.wrap("xwWw".getBytes(StandardCharsets.US_ASCII));
+	assertTrue(slab.keyEquals(first, bb, 1, 3));
+	assertFalse(slab.keyEquals(first, bb, 0, 3));
+	assertFalse(slab.keyEquals(first, bb, 1, 2));
+	int other = put(slab, "www", "other");
+	assertTrue(slab.sameKey(first, other));
+    }
+}
@@ -0,0 +1,103 @@
+package chiralsoftware.server.chiraldns.utils;
+
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/** Tests of the TimingWheel, mostly that entries come out at their tick when they have been moved
+ * down from the coarser wheels.<p>
+ * Copyright 2001-2017, Eric Hollander.  All rights reserved.
+ * @author Eric Hollander */
+public class TimingWheelTest {
+
+    /** Advance the wheel to a tick and return the entries which expired, as Integers. */
+    private static Set advance(TimingWheel wheel, long tick) {
+	Set result = new HashSet();
+	for(int e = wheel.advance(tick); e != TimingWheel.NONE; e = wheel.nextExpired(e))
+	    result.add(Integer.valueOf(e));
+	return result;
+    }
+
+    @Test
+    public void entriesExpireAtTheirTick() {
+	TimingWheel wheel = new TimingWheel(4, 0);
+	wheel.schedule(0, 5);
+	assertTrue(advance(wheel, 4).isEmpty());
+	assertTrue(wheel.isScheduled(0));
+	assertEquals(1, advance(wheel, 5).size());
+	assertFalse(wheel.isScheduled(0));
+	assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void entriesCascadeAtTheBoundariesOfTheWheels() {
+	long[] ticks = { 1, 63, 64, 65, 127, 128, 4095, 4096, 4097, 262143, 262144, 262145, 300000 };
+	TimingWheel wheel = new TimingWheel(ticks.length, 0);
+	for(int i = 0; i < ticks.length; i++) wheel.schedule(i, ticks[i]);
+	Set expired;
+	int count = 0;
+	for(long tick = 1; tick <= ticks[ticks.length - 1]; tick++) {
+	    expired = advance(wheel, tick);
+	    for(int i = 0; i < ticks.length; i++)
+		assertEquals("entry " + i + " at tick " + tick, ticks[i] == tick, expired.contains(Integer.valueOf(i)));
+	    count += expired.size();
+	}
+	assertEquals(ticks.length, count);
+	assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void advancingManyTicksAtOnceExpiresEverythingBefore() {
+	TimingWheel wheel = new TimingWheel(3, 10);
+	wheel.schedule(0, 100);
+	wheel.schedule(1, 5000);
+	wheel.schedule(2, 5001);
+	Set expired = advance(wheel, 5000);
+	assertEquals(2, expired.size());
+	assertTrue(expired.contains(Integer.valueOf(0)));
+	assertTrue(expired.contains(Integer.valueOf(1)));
+	assertEquals(1, advance(wheel, 5001).size());
+    }
+
+    @Test
+    public void entriesBeyondTheWheelsComeBackAtTheirTick() {
+	long tick = (1L << 24) + 10;
+	TimingWheel wheel = new TimingWheel(1, 0);
+	wheel.schedule(0, tick);
+	assertTrue(advance(wheel, tick - 1).isEmpty());
+	assertEquals(1, advance(wheel, tick).size());
+    }
+
+    @Test
+    public void entriesWhichHaveExpiredAlreadyExpireNextTick() {
+	TimingWheel wheel = new TimingWheel(1, 100);
+	wheel.schedule(0, 50);
+	assertEquals(1, advance(wheel, 101).size());
+    }
+
+    @Test
+    public void cancelledEntriesDontExpire() {
+	TimingWheel wheel = new TimingWheel(2, 0);
+	wheel.schedule(0, 70);
+	wheel.schedule(1, 70);
+	wheel.cancel(0);
+	wheel.cancel(0);
+	assertEquals(1, wheel.size());
+	Set expired = advance(wheel, 70);
+	assertEquals(1, expired.size());
+	assertTrue(expired.contains(Integer.valueOf(1)));
+	// a cancelled entry can be scheduled again
+	wheel.schedule(0, 80);
+	assertEquals(1, advance(wheel, 80).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void anEntryCantBeScheduledTwice() {
+	TimingWheel wheel = new TimingWheel(1, 0);
+	wheel.schedule(0, 10);
+	wheel.schedule(0, 20);
+    }
+}